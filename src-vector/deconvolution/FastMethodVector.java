@@ -0,0 +1,63 @@
+package deconvolution;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+// This class computes the interior of the Fast-Method with the Vector API, one vector of neighboring pixels
+// at a time.  For each ring offset, it loads the shifted input under the whole vector and adds it to the
+// lanes, so the pixels take the same operations in the same order as fastMethod(), and the results are
+// identical.
+// It needs JDK 16 or newer, compiled and run with --add-modules jdk.incubator.vector.  The rest of the
+// project still builds for Java 8, so this file is kept in its own source folder, and Algorithms only
+// loads it by reflection.
+
+final class FastMethodVector implements FastMethodSpan {
+	
+	// The widest vectors the CPU supports (eg. 16 floats with AVX-512)
+	private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+	
+	public void interior(final float[] orig, final float[] approx, final float[] out, final int origStart,
+			final int approxStart, final int outStart, final int count, final int[] offsets1,
+			final int[] offsets2, final int[] offsetsOuter, final float innerToOuterRatio, final float innerMult,
+			final int coordsOuterCount) {
+		
+		final int lanes = SPECIES.length();
+		final float outerCount = coordsOuterCount;
+		
+		int x = 0;
+		for (; x + lanes <= count; x += lanes) {
+			final int origCenter = origStart + x;
+			final int approxCenter = approxStart + x;
+			
+			// Inner negative ring, scaled to the weight of the inner positive ring
+			FloatVector gradient = FloatVector.zero(SPECIES);
+			for (int i = 0; i < offsets2.length; i++) {
+				gradient = gradient.sub(FloatVector.fromArray(SPECIES, orig, origCenter + offsets2[i]));
+			}
+			gradient = gradient.mul(innerToOuterRatio);
+			
+			// Inner positive ring
+			for (int i = 0; i < offsets1.length; i++) {
+				gradient = gradient.add(FloatVector.fromArray(SPECIES, orig, origCenter + offsets1[i]));
+			}
+			
+			// Outer positive ring
+			FloatVector outer = FloatVector.zero(SPECIES);
+			for (int i = 0; i < offsetsOuter.length; i++) {
+				outer = outer.add(FloatVector.fromArray(SPECIES, approx, approxCenter + offsetsOuter[i]));
+			}
+			
+			gradient.mul(innerMult).add(outer.div(outerCount)).intoArray(out, outStart + x);
+		}
+		
+		// The last few pixels, fewer than one vector
+		for (; x < count; x++) {
+			out[outStart + x] = Algorithms.fastMethodInteriorPixel(orig, approx, origStart + x, approxStart + x,
+					offsets1, offsets2, offsetsOuter, innerToOuterRatio, innerMult, coordsOuterCount);
+		}
+	}
+	
+	public String getName() {
+		return "Vector API, " + SPECIES.length() + " lanes";
+	}
+}
@@ -1,5 +1,6 @@
 package deconvolution;
 
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 
@@ -9,17 +10,8 @@ import gpuAbstraction.GPUProgram;
 
 public class Algorithms {
 	
-	// This is the image in array form
-	static float[][][] imageArray;
-	
-	// This is used only for GPU programs which need to reuse data many times
-	static byte[] cachedByteBuffer;
-	
-	// Number of threads to use in calculations or rendering
-	static int numThreads = 20;
-	
-	// Used to keep track of multithreaded algorithms
-	static int threadsCompleted = 0;
+	// Number of threads to use in calculations or rendering (see ParallelExecutor)
+	static int numThreads = Math.max(Runtime.getRuntime().availableProcessors(), 1);
 	
 	// Whether to use the GPU when available
 	static boolean useOpenCL = true;
@@ -30,71 +22,60 @@ public class Algorithms {
 	// Sqrt(2) constant
 	static final float sqrt2 = (float)Math.sqrt(2);
 	
+	// The SIMD engine for the interior pixels of fastMethod(), or null to compute one pixel at a time.
+	// It is loaded when jdk.incubator.vector is available (see FastMethodSpan), and can be turned off with
+	// -Ddeconvolution.vector=false.
+	static final FastMethodSpan fastMethodSpan = loadFastMethodSpan();
+	
 	// Change the contrast of the image around a certain brightness level
-	static float[][][] adjust(final float[][][] image,
-			final float contrast, final float brightness, final float saturation, final float exposure) {
+	static PlanarImage adjust(final PlanarImage image,
+			final float contrast, final float brightness, final float saturation, final float exposure,
+			final ProgressMonitor monitor) {
 		
-		UserInterface.setProcessName("Adjusting contrast");
+		monitor.setProcessName("Adjusting contrast");
 		
-		final int width = image[0].length;
-		final int height = image[0][0].length;
+		final int width = image.width;
+		final int height = image.height;
 		
 		final float newContrast = (float)(Math.pow(1.03, contrast));
 		
-		final float[][][] newImage = new float[3][width][height];
+		final PlanarImage newImage = image.createCompatible();
+		final float[][] in = image.planes;
+		final float[][] out = newImage.planes;
 		
 		final float modifiedExposure = (float)Math.pow(2, (exposure-1) * 0.3);
 		
 		// Loop over the pixels in parallel
-		threadsCompleted = 0;
-		for (int k = 0; k < numThreads; k++) {
-			final int threadOffset = k;
-			new Thread(new Runnable() {
-				public void run() {
-					for (int x = threadOffset; x < width; x += numThreads) {
-						for (int y = 0; y < height; y++) {
-							for (int j = 0; j < 3; j++) {
-								newImage[j][x][y] = (image[j][x][y] - 127) * newContrast + 127 + brightness;
-								if (exposure != 1) {
-									newImage[j][x][y] = exposeColor(newImage[j][x][y], exposure, modifiedExposure);
-								}
-							}
-							
-							if (saturation != 1) {
-								float average = (newImage[0][x][y] + newImage[1][x][y] + newImage[2][x][y])/3f;
-								newImage[0][x][y] = average + (newImage[0][x][y] - average) * saturation;
-								newImage[1][x][y] = average + (newImage[1][x][y] - average) * saturation;
-								newImage[2][x][y] = average + (newImage[2][x][y] - average) * saturation;
+		ParallelExecutor.forEachRow(height, monitor, true, new ParallelExecutor.RangeTask() {
+			public void run(final int yStart, final int yEnd) {
+				for (int y = yStart; y < yEnd; y++) {
+					final int inRow = image.index(0, y);
+					final int outRow = newImage.index(0, y);
+					for (int x = 0; x < width; x++) {
+						final int i = inRow + x;
+						final int o = outRow + x;
+						for (int j = 0; j < 3; j++) {
+							out[j][o] = (in[j][i] - 127) * newContrast + 127 + brightness;
+							if (exposure != 1) {
+								out[j][o] = exposeColor(out[j][o], exposure, modifiedExposure);
 							}
 						}
-						if (threadOffset == 0) {
-							UserInterface.updateProgress((double)x/width);
-						}
-						
-						// Exit early if the effect has been canceled
-						if (ImageEffects.isCanceled) {
-							break;
+
+						if (saturation != 1) {
+							float average = (out[0][o] + out[1][o] + out[2][o])/3f;
+							out[0][o] = average + (out[0][o] - average) * saturation;
+							out[1][o] = average + (out[1][o] - average) * saturation;
+							out[2][o] = average + (out[2][o] - average) * saturation;
 						}
 					}
-					
-					synchronized(Algorithms.class) {
-						threadsCompleted++;
-					}
 				}
-			}).start();
-		}
-		
-		// Wait for all of the threads to complete
-		while (threadsCompleted < numThreads) {
-			try {
-				Thread.sleep(1);
-			} catch (Exception e) {}
-		}
+			}
+		});
 		
-		UserInterface.updateProgress(1);
+		monitor.updateProgress(1);
 		
 		// Exit early if the effect has been canceled
-		if (ImageEffects.isCanceled) {
+		if (monitor.isCanceled()) {
 			return null;
 		}
 		
@@ -114,14 +95,14 @@ public class Algorithms {
 	}
 	
 	// Driver method for the fastMethod function
-	static float[][][] fastMethodSwitch(final float[][][] image,
+	static PlanarImage fastMethodSwitch(final PlanarImage image,
 			final float amountOffset, final float radius,
-			final int iterations, boolean commit) {
+			final int iterations, boolean commit, final ProgressMonitor monitor) {
 		
 		if (useOpenGL) { // Render with OpenGL
 
-			int width = image[0].length;
-			int height = image[0][0].length;
+			int width = image.width;
+			int height = image.height;
 			
 			// Enable deblurring only if we are using an image effects dialog
 			DeblurOpenGL.setDeblurEnabled(true);
@@ -129,19 +110,12 @@ public class Algorithms {
 			// Set the image parameters
 			DeblurOpenGL.setImageParameters(width, height, radius, amountOffset);
 			
-			if (cachedByteBuffer == null) {
+			if (GPUAlgorithms.cachedByteBuffer == null) {
 				// Deconvolve and display using OpenGL
-				cachedByteBuffer = extractByteArray(UserInterface.previewImage);
+				GPUAlgorithms.cachedByteBuffer = extractByteArray(UserInterface.previewImage);
 				
 				// Copy from the float image to the preview image
-				for (int x = 0; x < width; x++) {
-					for (int y = 0; y < height; y++) {
-						int i = (y * width + x) * 3;
-						cachedByteBuffer[i + 0] = (byte)clamp(image[2][x][y]);
-						cachedByteBuffer[i + 1] = (byte)clamp(image[1][x][y]);
-						cachedByteBuffer[i + 2] = (byte)clamp(image[0][x][y]);
-					}
-				}
+				copyToByteArray(image, GPUAlgorithms.cachedByteBuffer);
 			}
 			
 			// No deblurring here:
@@ -157,11 +131,11 @@ public class Algorithms {
 			
 		} else if (useOpenCL) { // Render with OpenCL (GPU)
 			
-			int width = image[0].length;
-			int height = image[0][0].length;
+			int width = image.width;
+			int height = image.height;
 			
 			// Only convert the image if it hasn't already been done
-			if (!GPUProgram.isInitialized() || cachedByteBuffer == null) {
+			if (!GPUProgram.isInitialized() || GPUAlgorithms.cachedByteBuffer == null) {
 				GPUProgram.initializeGPU();
 				
 				// Convert the preview image to 3BYTE_BGR format
@@ -169,195 +143,397 @@ public class Algorithms {
 				byte[] buffer = extractByteArray(UserInterface.previewImage);
 				
 				// Copy from the float image to the preview image
-				for (int x = 0; x < width; x++) {
-					for (int y = 0; y < height; y++) {
-						int i = (y * width + x) * 3;
-						buffer[i + 0] = (byte)clamp(image[2][x][y]);
-						buffer[i + 1] = (byte)clamp(image[1][x][y]);
-						buffer[i + 2] = (byte)clamp(image[0][x][y]);
-					}
-				}
+				copyToByteArray(image, buffer);
 				
 				// Make a copy of the image
-				cachedByteBuffer = new byte[buffer.length];
-				System.arraycopy(buffer, 0, cachedByteBuffer, 0, buffer.length);
+				GPUAlgorithms.cachedByteBuffer = new byte[buffer.length];
+				System.arraycopy(buffer, 0, GPUAlgorithms.cachedByteBuffer, 0, buffer.length);
 			}
 			
-			return GPUAlgorithms.fastMethodGPU(cachedByteBuffer, iterations,
-					width, height, amountOffset, radius, commit);
+			return GPUAlgorithms.fastMethodGPU(GPUAlgorithms.cachedByteBuffer, iterations,
+					width, height, amountOffset, radius, commit, monitor);
 			
 		} else { // Render pixels using CPU
-			
-			UserInterface.setProcessName("Deblurring");
-			final long startTime = System.currentTimeMillis();
-			
-			// This contains the most accurate image on each iteration
-			float[][][] newApproximation = image;
-			for (int i = 0; i < iterations; i++) {
-				newApproximation = fastMethod(image, newApproximation, amountOffset, radius);
+			return fastMethodIterations(image, amountOffset, radius, iterations, monitor);
+		}
+	}
+	
+	// Run the given number of iterations of the Fast-Method on the CPU.
+	// Returns null if the monitor was canceled.
+	static PlanarImage fastMethodIterations(final PlanarImage image,
+			final float amountOffset, final float radius, final int iterations, final ProgressMonitor monitor) {
+		return fastMethodIterations(image, amountOffset, radius, iterations, monitor, null, null);
+	}
+	
+	// Same as above, but the iterations alternate between writing to 'buffer1' and 'buffer2', and the
+	// result is one of them.  These must be the same size as the image, or null to allocate new images.
+	static PlanarImage fastMethodIterations(final PlanarImage image,
+			final float amountOffset, final float radius, final int iterations, final ProgressMonitor monitor,
+			final PlanarImage buffer1, final PlanarImage buffer2) {
+		
+		monitor.setProcessName("Deblurring");
+		final long startTime = System.currentTimeMillis();
+		
+		// This contains the most accurate image on each iteration
+		PlanarImage newApproximation = image;
+		for (int i = 0; i < iterations; i++) {
+			PlanarImage outImage = (i % 2 == 0) ? buffer1 : buffer2;
+			if (outImage == null) {
+				outImage = image.createCompatible();
 			}
+			newApproximation = fastMethod(image, newApproximation, outImage, amountOffset, radius, monitor);
 			
-			UserInterface.setProcessName("Deblurring (" + (System.currentTimeMillis() - startTime) + "ms)");
-			UserInterface.updateProgress(1);
-			
-			return newApproximation;
+			// Exit early if the effect has been canceled
+			if (newApproximation == null) {
+				return null;
+			}
 		}
+		
+		monitor.setProcessName("Deblurring (" + (System.currentTimeMillis() - startTime) + "ms)");
+		monitor.updateProgress(1);
+		
+		return newApproximation;
+	}
+	
+	// A cheaper version of fastMethodIterations(), for when there is no time for the full method
+	// (eg. live video that is falling behind).
+	// The image is deblurred at half resolution with half the radius (about an eighth of the work), and the
+	// change this makes is scaled back up and added to the full-resolution image.
+	// Returns null if the monitor was canceled.
+	static PlanarImage fastMethodHalfResolution(final PlanarImage image,
+			final float amountOffset, final float radius, final int iterations, final ProgressMonitor monitor) {
+		final PlanarImage half = new PlanarImage(Math.max(image.width / 2, 1), Math.max(image.height / 2, 1),
+				image.getChannels());
+		return fastMethodHalfResolution(image, amountOffset, radius, iterations, monitor, half, null, null,
+				image.createCompatible());
+	}
+	
+	// Same as above, but in the given buffers, so nothing is allocated.
+	// 'half', 'buffer1', and 'buffer2' are half the size of the image (rounded down, but at least 1), and
+	// are used as in fastMethodIterations().  The buffers may be null to allocate new images.
+	// The result is written to 'output', which may be the image itself.
+	static PlanarImage fastMethodHalfResolution(final PlanarImage image,
+			final float amountOffset, final float radius, final int iterations, final ProgressMonitor monitor,
+			final PlanarImage half, final PlanarImage buffer1, final PlanarImage buffer2,
+			final PlanarImage output) {
+		
+		final int width = image.width;
+		final int height = image.height;
+		final int channels = image.getChannels();
+		final int halfWidth = half.width;
+		final int halfHeight = half.height;
+		
+		// Average each 2x2 block
+		ParallelExecutor.forEachRow(halfHeight, new ParallelExecutor.RangeTask() {
+			public void run(final int yStart, final int yEnd) {
+				for (int c = 0; c < channels; c++) {
+					final float[] source = image.planes[c];
+					final float[] target = half.planes[c];
+					for (int y = yStart; y < yEnd; y++) {
+						final int row0 = image.index(0, Math.min(y * 2, height - 1));
+						final int row1 = image.index(0, Math.min(y * 2 + 1, height - 1));
+						for (int x = 0; x < halfWidth; x++) {
+							final int x0 = Math.min(x * 2, width - 1);
+							final int x1 = Math.min(x * 2 + 1, width - 1);
+							target[half.index(x, y)] = 0.25f * (source[row0 + x0] + source[row0 + x1] +
+									source[row1 + x0] + source[row1 + x1]);
+						}
+					}
+				}
+			}
+		});
+		
+		final PlanarImage deblurred = fastMethodIterations(half, amountOffset, Math.max(radius / 2, 1),
+				iterations, monitor, buffer1, buffer2);
+		if (deblurred == null) {
+			return null;
+		}
+		
+		// Add the change, interpolated bilinearly between the centers of the half-resolution pixels.
+		// Each pixel of the image is read just before the same pixel of the output is written.
+		final PlanarImage result = output;
+		ParallelExecutor.forEachRow(height, new ParallelExecutor.RangeTask() {
+			public void run(final int yStart, final int yEnd) {
+				for (int c = 0; c < channels; c++) {
+					final float[] source = image.planes[c];
+					final float[] before = half.planes[c];
+					final float[] after = deblurred.planes[c];
+					final float[] target = result.planes[c];
+					for (int y = yStart; y < yEnd; y++) {
+						final float fy = Math.min(Math.max((y + 0.5f) / 2 - 0.5f, 0), halfHeight - 1);
+						final int y0 = (int)fy;
+						final int y1 = Math.min(y0 + 1, halfHeight - 1);
+						final float ty = fy - y0;
+						for (int x = 0; x < width; x++) {
+							final float fx = Math.min(Math.max((x + 0.5f) / 2 - 0.5f, 0), halfWidth - 1);
+							final int x0 = (int)fx;
+							final int x1 = Math.min(x0 + 1, halfWidth - 1);
+							final float tx = fx - x0;
+							
+							final int i00 = half.index(x0, y0);
+							final int i10 = half.index(x1, y0);
+							final int i01 = half.index(x0, y1);
+							final int i11 = half.index(x1, y1);
+							final float top = (after[i00] - before[i00]) * (1 - tx) + (after[i10] - before[i10]) * tx;
+							final float bottom = (after[i01] - before[i01]) * (1 - tx) + (after[i11] - before[i11]) * tx;
+							target[result.index(x, y)] = source[image.index(x, y)] + top * (1 - ty) + bottom * ty;
+						}
+					}
+				}
+			}
+		});
+		
+		return result;
 	}
 	
 	// Deblur using a new more precise iterative technique
 	// Programmed by Daniel Williams on May 4, 2019
-	// Array is accessed as image[rgb][x index][y index]
+	// Pixels are accessed as image.planes[rgb][image.index(x, y)]
 	// REMARKS:
 	// This is the most accurate and fast algorithm.  It is best.
 	// Subtracts two circles to compute the gradient, then suppresses ringing with an outer circle.
 	// The mathematical proof backs up this technique very well.
-	static float[][][] fastMethod(final float[][][] originalImage,
-			final float[][][] newApproximation, final float amountOffset, final float radius) {
-		
-		final int width = originalImage[0].length;
-		final int height = originalImage[0][0].length;
-		
-		// Generate the blur kernel
-		final int[] coords1 = generateCircle(radius);
-		final int[] coords2 = generateCircle(radius + 1);
-		final int[] coordsOuter;
-		if (radius <= 3) {
-			coordsOuter = generateCircle(radius * 2 + 0.5f);
-		} else {
-			// Skip 75% of pixels for speed on larger blur radiuses.
-			coordsOuter = generateCircleQuarterDensity(radius * 2 + 0.5f);
-		}
-		final int coords1Count = coords1.length/2;
-		final int coords2Count = coords2.length/2;
-		final int coordsOuterCount = coordsOuter.length/2;
+	static PlanarImage fastMethod(final PlanarImage originalImage,
+			final PlanarImage newApproximation, final float amountOffset, final float radius,
+			final ProgressMonitor monitor) {
+		return fastMethod(originalImage, newApproximation, originalImage.createCompatible(),
+				amountOffset, radius, monitor);
+	}
+	
+	// Same as above, but the result is written to 'outImage' (which must not be either input).
+	// Images may have any number of channels (eg. one for the luma of a video frame).
+	static PlanarImage fastMethod(final PlanarImage originalImage, final PlanarImage newApproximation,
+			final PlanarImage outImage, final float amountOffset, final float radius,
+			final ProgressMonitor monitor) {
+		
+		final int width = originalImage.width;
+		final int height = originalImage.height;
+		
+		// RGB border pixels do all three channels at once.  Other images use the slower path.
+		final int channels = originalImage.getChannels();
+		final boolean isRGB = channels == 3;
+		
+		// Direct access to the planes of each image
+		final float[] origR = originalImage.planes[0];
+		final float[] origG = isRGB ? originalImage.planes[1] : null;
+		final float[] origB = isRGB ? originalImage.planes[2] : null;
+		final float[] approxR = newApproximation.planes[0];
+		final float[] approxG = isRGB ? newApproximation.planes[1] : null;
+		final float[] approxB = isRGB ? newApproximation.planes[2] : null;
+		
+		// Get the blur kernel (generated once per radius)
+		final KernelCache.Rings rings = KernelCache.getRings(radius, KernelCache.STANDARD);
+		final int[] coords1 = rings.coords1;
+		final int[] coords2 = rings.coords2;
+		final int[] coordsOuter = rings.coordsOuter;
+		final int coords1Count = rings.coords1Count;
+		final int coords2Count = rings.coords2Count;
+		final int coordsOuterCount = rings.coordsOuterCount;
 		
 		// Used to ensure that the weight of the inner ring is the same as the weight of the outer ring
-		final float innerToOuterRatio =  (float)coords1Count / coords2Count;
+		final float innerToOuterRatio = rings.innerToOuterRatio;
 		
 		final float innerMult = amountOffset / 2.0f * 0.67f; // Why 0.67 here?
 		
-		// Create the image to write to
-		final float[][][] outImage = new float[3][width][height];
-		
-		// Start this in a number of parallel threads
-		final Thread[] threads = new Thread[numThreads];
-		for (int k = 0; k < numThreads; k++) {
-			final int threadOffset = k;
-			threads[k] = new Thread(new Runnable() {
-				public void run() {
-
-					float gradientR = 0;
-					float gradientG = 0;
-					float gradientB = 0;
+		final float[] outR = outImage.planes[0];
+		final float[] outG = isRGB ? outImage.planes[1] : null;
+		final float[] outB = isRGB ? outImage.planes[2] : null;
+		
+		// Pixels at least this far from every edge never need their ring coordinates clamped.
+		// For those pixels, the rings are read at fixed offsets from the center pixel's array index
+		// (sorted by row, so the reads move forward through memory).
+		final int extent = rings.extent;
+		final int[] offsets1 = linearOffsets(rings.coords1ByRow, originalImage.stride);
+		final int[] offsets2 = linearOffsets(rings.coords2ByRow, originalImage.stride);
+		final int[] offsetsOuter = linearOffsets(rings.coordsOuterByRow, newApproximation.stride);
+		final int interiorXStart = Math.min(extent, width);
+		final int interiorXEnd = Math.max(width - extent, interiorXStart);
+		
+		// Run this in parallel, one band of rows at a time
+		ParallelExecutor.forEachRow(height, monitor, true, new ParallelExecutor.RangeTask() {
+			public void run(final int yStart, final int yEnd) {
+				
+				float gradientR = 0;
+				float gradientG = 0;
+				float gradientB = 0;
+				
+				float outerR = 0;
+				float outerG = 0;
+				float outerB = 0;
+				
+				int x2 = 0;
+				int y2 = 0;
+				int i2 = 0;
+				
+				// Convolve over the image with the data from the two coordinate lists
+				for (int y = yStart; y < yEnd; y++) {
 					
-					float outerR = 0;
-					float outerG = 0;
-					float outerB = 0;
+					final int outRow = outImage.index(0, y);
 					
-					int x2 = 0;
-					int y2 = 0;
+					// In rows near the top or bottom, every pixel uses the border path
+					final boolean isInteriorRow = y >= extent && y < height - extent;
+					final int xStart = isInteriorRow ? interiorXStart : width;
+					final int xEnd = isInteriorRow ? interiorXEnd : width;
 					
-					// Convolve over the image with the data from the two coordinate lists
-					for (int x = threadOffset; x < width; x += numThreads) {
+					// Interior pixels: no clamping is needed.
+					// The SIMD engine does the span of each plane at once, and then the loop below is skipped.
+					if (fastMethodSpan != null && xEnd > xStart) {
+						for (int c = 0; c < channels; c++) {
+							fastMethodSpan.interior(originalImage.planes[c], newApproximation.planes[c],
+									outImage.planes[c], originalImage.index(xStart, y),
+									newApproximation.index(xStart, y), outRow + xStart, xEnd - xStart,
+									offsets1, offsets2, offsetsOuter, innerToOuterRatio, innerMult,
+									coordsOuterCount);
+						}
+					}
+					final int scalarXEnd = fastMethodSpan != null ? xStart : xEnd;
+					for (int x = xStart; x < scalarXEnd; x++) {
 						
-						for (int y = 0; y < height; y++) {
-							
-							gradientR = 0;
-							gradientG = 0;
-							gradientB = 0;
-							
-							// Integrate over the inner negative ring (radius r+1)
-							for (int i = 0; i < coords2Count; i++) {
-								x2 = coords2[i * 2 + 0] + x;
-								y2 = coords2[i * 2 + 1] + y;
-								
-								// Clamp coordinates to the image bounds
-								x2 = clamp(x2, 0, width-1);
-								y2 = clamp(y2, 0, height-1);
-								
-								gradientR -= originalImage[0][x2][y2];
-								gradientG -= originalImage[1][x2][y2];
-								gradientB -= originalImage[2][x2][y2];
+						final int origCenter = originalImage.index(x, y);
+						final int approxCenter = newApproximation.index(x, y);
+						
+						if (!isRGB) {
+							for (int c = 0; c < channels; c++) {
+								outImage.planes[c][outRow + x] = fastMethodInteriorPixel(originalImage.planes[c],
+										newApproximation.planes[c], origCenter, approxCenter, offsets1, offsets2,
+										offsetsOuter, innerToOuterRatio, innerMult, coordsOuterCount);
 							}
-							
-							// Scale the negative ring to the same weight as the inner positive ring
-							gradientR *= innerToOuterRatio;
-							gradientG *= innerToOuterRatio;
-							gradientB *= innerToOuterRatio;
-							
-							// Integrate over the inner positive ring (radius r)
-							for (int i = 0; i < coords1Count; i++) {
-								x2 = coords1[i * 2 + 0] + x;
-								y2 = coords1[i * 2 + 1] + y;
-								
-								// Clamp coordinates to the image bounds
-								x2 = clamp(x2, 0, width-1);
-								y2 = clamp(y2, 0, height-1);
-								
-								gradientR += originalImage[0][x2][y2];
-								gradientG += originalImage[1][x2][y2];
-								gradientB += originalImage[2][x2][y2];
+							continue;
+						}
+						
+						gradientR = 0;
+						gradientG = 0;
+						gradientB = 0;
+						
+						// Integrate over the inner negative ring (radius r+1)
+						for (int i = 0; i < offsets2.length; i++) {
+							i2 = origCenter + offsets2[i];
+							gradientR -= origR[i2];
+							gradientG -= origG[i2];
+							gradientB -= origB[i2];
+						}
+						
+						// Scale the negative ring to the same weight as the inner positive ring
+						gradientR *= innerToOuterRatio;
+						gradientG *= innerToOuterRatio;
+						gradientB *= innerToOuterRatio;
+						
+						// Integrate over the inner positive ring (radius r)
+						for (int i = 0; i < offsets1.length; i++) {
+							i2 = origCenter + offsets1[i];
+							gradientR += origR[i2];
+							gradientG += origG[i2];
+							gradientB += origB[i2];
+						}
+						
+						outerR = 0;
+						outerG = 0;
+						outerB = 0;
+						
+						// Integrate over the outer positive ring (radius 2r)
+						for (int i = 0; i < offsetsOuter.length; i++) {
+							i2 = approxCenter + offsetsOuter[i];
+							outerR += approxR[i2];
+							outerG += approxG[i2];
+							outerB += approxB[i2];
+						}
+						
+						outR[outRow + x] = innerMult * gradientR + outerR / coordsOuterCount;
+						outG[outRow + x] = innerMult * gradientG + outerG / coordsOuterCount;
+						outB[outRow + x] = innerMult * gradientB + outerB / coordsOuterCount;
+					}
+					
+					// Border pixels: the coordinates are clamped to the image bounds
+					for (int x = 0; x < width; x++) {
+						
+						// Skip the interior pixels, which were done above
+						if (x >= xStart && x < xEnd) {
+							x = xEnd - 1;
+							continue;
+						}
+						
+						if (!isRGB) {
+							for (int c = 0; c < channels; c++) {
+								outImage.planes[c][outRow + x] = fastMethodBorderPixel(originalImage, newApproximation,
+										c, x, y, rings, innerMult);
 							}
+							continue;
+						}
+						
+						gradientR = 0;
+						gradientG = 0;
+						gradientB = 0;
+						
+						// Integrate over the inner negative ring (radius r+1)
+						for (int i = 0; i < coords2Count; i++) {
+							x2 = coords2[i * 2 + 0] + x;
+							y2 = coords2[i * 2 + 1] + y;
 							
-							outerR = 0;
-							outerG = 0;
-							outerB = 0;
-							
-							// Integrate over the outer positive ring (radius 2r)
-							for (int i = 0; i < coordsOuterCount; i++) {
-								x2 = coordsOuter[i * 2 + 0] + x;
-								y2 = coordsOuter[i * 2 + 1] + y;
-								
-								// Clamp coordinates to the image bounds
-								x2 = clamp(x2, 0, width-1);
-								y2 = clamp(y2, 0, height-1);
-								
-								outerR += newApproximation[0][x2][y2];
-								outerG += newApproximation[1][x2][y2];
-								outerB += newApproximation[2][x2][y2];
-							}
+							// Clamp coordinates to the image bounds
+							x2 = clamp(x2, 0, width-1);
+							y2 = clamp(y2, 0, height-1);
 							
-							// Calculate the new color of this pixel.
-							// Inner ring contributes (+2*pi*r * f(x,y)) * 255
-							// Outer ring contributes (-2*pi*r * f(x,y)) * 255
-							// Outermost ring contributes (+1.0 * f(x,y)) * 255
-							outImage[0][x][y] = innerMult * gradientR + outerR / coordsOuterCount;
-							outImage[1][x][y] = innerMult * gradientG + outerG / coordsOuterCount;
-							outImage[2][x][y] = innerMult * gradientB + outerB / coordsOuterCount;
+							i2 = originalImage.index(x2, y2);
+							gradientR -= origR[i2];
+							gradientG -= origG[i2];
+							gradientB -= origB[i2];
 						}
 						
-						// Update the progress
-						if ((threadOffset == 0) && (x % 32 == 0)) {
-							UserInterface.updateProgress((double)x/width);
+						// Scale the negative ring to the same weight as the inner positive ring
+						gradientR *= innerToOuterRatio;
+						gradientG *= innerToOuterRatio;
+						gradientB *= innerToOuterRatio;
+						
+						// Integrate over the inner positive ring (radius r)
+						for (int i = 0; i < coords1Count; i++) {
+							x2 = coords1[i * 2 + 0] + x;
+							y2 = coords1[i * 2 + 1] + y;
+							
+							// Clamp coordinates to the image bounds
+							x2 = clamp(x2, 0, width-1);
+							y2 = clamp(y2, 0, height-1);
+							
+							i2 = originalImage.index(x2, y2);
+							gradientR += origR[i2];
+							gradientG += origG[i2];
+							gradientB += origB[i2];
 						}
-
-						// Exit early if the effect has been canceled
-						if (ImageEffects.isCanceled) {
-							break;
+						
+						outerR = 0;
+						outerG = 0;
+						outerB = 0;
+						
+						// Integrate over the outer positive ring (radius 2r)
+						for (int i = 0; i < coordsOuterCount; i++) {
+							x2 = coordsOuter[i * 2 + 0] + x;
+							y2 = coordsOuter[i * 2 + 1] + y;
+							
+							// Clamp coordinates to the image bounds
+							x2 = clamp(x2, 0, width-1);
+							y2 = clamp(y2, 0, height-1);
+							
+							i2 = newApproximation.index(x2, y2);
+							outerR += approxR[i2];
+							outerG += approxG[i2];
+							outerB += approxB[i2];
 						}
+						
+						// Calculate the new color of this pixel.
+						// Inner ring contributes (+2*pi*r * f(x,y)) * 255
+						// Outer ring contributes (-2*pi*r * f(x,y)) * 255
+						// Outermost ring contributes (+1.0 * f(x,y)) * 255
+						outR[outRow + x] = innerMult * gradientR + outerR / coordsOuterCount;
+						outG[outRow + x] = innerMult * gradientG + outerG / coordsOuterCount;
+						outB[outRow + x] = innerMult * gradientB + outerB / coordsOuterCount;
 					}
 				}
-			});
-		}
-		
-		// Start all the threads
-		for (int k = 0; k < numThreads; k++) {
-			threads[k].start();
-		}
-		
-		// Wait for all of the threads to complete
-		try {
-			for (int k = 0; k < numThreads; k++) {
-				threads[k].join();
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+		});
 		
-		UserInterface.updateProgress(1);
+		monitor.updateProgress(1);
 		
 		// Exit early if the effect has been canceled
-		if (ImageEffects.isCanceled) {
+		if (monitor.isCanceled()) {
 			return null;
 		}
 		
@@ -365,198 +541,114 @@ public class Algorithms {
 	}
 	
 	// This function switches between the GPU and CPU
-	static float[][][] richardsonLucySwitch(final float[][][] image,
-					float radius, int iterations, boolean commit) {
+	static PlanarImage richardsonLucySwitch(final PlanarImage image,
+					float radius, int iterations, boolean commit, final ProgressMonitor monitor) {
 		if (useOpenCL) {
 			GPUProgram.initializeGPU();
-			return GPUAlgorithms.deblurRichardsonLucyGPU(image, radius, iterations, commit);
+			return GPUAlgorithms.deblurRichardsonLucyGPU(image, radius, iterations, commit, monitor);
 		} else {
-			return richardsonLucy(image, radius, iterations);
+			return richardsonLucy(image, radius, iterations, monitor);
 		}
 	}
 	
-	// Deblur using Richardson-Lucy algorithm
-	static float[][][] richardsonLucy(final float[][][] image, float radius, final int iterations) {
+	// Deblur using Richardson-Lucy algorithm.
+	// Both disk convolutions in each iteration cost O(radius) per pixel.  See DiskSum.java.
+	static PlanarImage richardsonLucy(final PlanarImage image, float radius, final int iterations,
+			final ProgressMonitor monitor) {
 		
-		UserInterface.setProcessName("Deblurring");
+		monitor.setProcessName("Deblurring");
 		
 		final long startTime = System.currentTimeMillis();
 		
-		final int width = image[0].length;
-		final int height = image[0][0].length;
+		final int width = image.width;
+		final int height = image.height;
 		
 		// Generate a disk kernel
 		// This must have an odd width and height
-		final float[][] kernel = new float[(int)(radius + 0.2) * 2 + 1][(int)(radius + 0.2) * 2 + 1];
-		final int offset = kernel.length / 2;
-		for (int x = 0; x < kernel.length; x++) {
-			for (int y = 0; y < kernel[0].length; y++) {
-				if (Math.hypot(x - offset, y - offset) < radius + 0.375) {
-					kernel[x][y] = 1;
-				}
-			}
-		}
+		final DiskSum disk = DiskSum.forOpenDisk(radius + 0.375, (int)(radius + 0.2));
 		
 		// Save this for a preview
-		UserInterface.lastKernel = kernel;
+		monitor.setKernel(disk.toKernel());
+		
+		// The number of samples for each pixel is the same for every convolution, so count them once
+		final int[][] sampleCounts = disk.countSamples(width, height);
 		
 		// Create the image that stores the previous image approximation
-		//final float[][][] firstApproximation = Algorithms.fastMethod(Algorithms.copyImage(image), Algorithms.copyImage(image), 1, radius);
-		final float[][][] newImage = new float[3][width][height];
-		for (int x = 0; x < width; x += 1) {
-			for (int y = 0; y < height; y++) {
-				newImage[0][x][y] = image[0][x][y];
-				newImage[1][x][y] = image[1][x][y];
-				newImage[2][x][y] = image[2][x][y];
-			}
-		}
+		//final PlanarImage firstApproximation = Algorithms.fastMethod(Algorithms.copyImage(image), Algorithms.copyImage(image), 1, radius);
+		final PlanarImage newImage = image.copy();
+		final float[][] newPlanes = newImage.planes;
+		final float[][] imagePlanes = image.planes;
 		
 		// Create the image to perform calculations on in the middle of the calculation
-		final float[][][] middleBlur = new float[3][width][height];
-
+		final PlanarImage middleBlur = newImage.createCompatible();
+		final float[][] middlePlanes = middleBlur.planes;
+		
 		// Run the whole algorithm many times
 		for (int i = 0; i < iterations; i++) {
 			
 			// middleBlur = image / blur(oldImage)
 			// Run this in parallel
-			threadsCompleted = 0;
-			for (int k = 0; k < numThreads; k++) {
-				final int threadOffset = k;
-				new Thread(new Runnable() {
-					public void run() {
+			ParallelExecutor.forEachRow(height, monitor, false, new ParallelExecutor.RangeTask() {
+				public void run(final int yStart, final int yEnd) {
+					final double[][] sums = new double[3][width];
+					
+					// Convolve over the image
+					for (int y = yStart; y < yEnd; y++) {
 						
-						// Convolve over the image
-						for (int x = threadOffset; x < width; x += numThreads) {
-							for (int y = 0; y < height; y++) {
-								// Sum the pixels around this pixel
-								float r = 0;
-								float g = 0;
-								float b = 0;
-								int sampleCount = 0;
-								for (int x2 = -offset; x2 <= offset; x2++) {
-									if (x2 + x < 0 || x2 + x >= width) {
-										continue;
-									}
-									for (int y2 =  -offset; y2 <= offset; y2++) {
-										if (y2 + y < 0 || y2 + y >= height ||
-												kernel[x2 + offset][y2 + offset] == 0) {
-											continue;
-										}
-										
-										r += newImage[0][x + x2][y + y2];
-										g += newImage[1][x + x2][y + y2];
-										b += newImage[2][x + x2][y + y2];
-										sampleCount++;
-									}
-								}
-								
-								r /= sampleCount;
-								g /= sampleCount;
-								b /= sampleCount;
-								
-								if (r < 0.01f) {
-									r = 0.01f;
-								}
-								if (g < 0.01f) {
-									g = 0.01f;
-								}
-								if (b < 0.01f) {
-									b = 0.01f;
+						// Sum the pixels around each pixel in this row
+						disk.sumRow(newImage, y, sums);
+						
+						final int[] counts = sampleCounts[y];
+						final int imageRow = image.index(0, y);
+						final int middleRow = middleBlur.index(0, y);
+						for (int c = 0; c < 3; c++) {
+							final double[] sum = sums[c];
+							for (int x = 0; x < width; x++) {
+								float blurred = (float)(sum[x] / counts[x]);
+								if (blurred < 0.01f) {
+									blurred = 0.01f;
 								}
-								
-								middleBlur[0][x][y] = image[0][x][y] / r;
-								middleBlur[1][x][y] = image[1][x][y] / g;
-								middleBlur[2][x][y] = image[2][x][y] / b;
+								middlePlanes[c][middleRow + x] = imagePlanes[c][imageRow + x] / blurred;
 							}
-							
-							// Exit early if the effect has been canceled
-							if (ImageEffects.isCanceled) {
-								break;
-							}
-						}
-						
-						synchronized(Algorithms.class) {
-							threadsCompleted++;
 						}
 					}
-				}).start();
-			}
-			
-			// Wait for all of the threads to complete
-			while (threadsCompleted < numThreads) {
-				try {
-					Thread.sleep(1);
-				} catch (Exception e) {}
-			}
+				}
+			});
 			
 			// newImage *= blur(middleBlur)
 			// Run this in parallel
-			threadsCompleted = 0;
-			for (int k = 0; k < numThreads; k++) {
-				final int threadOffset = k;
-				new Thread(new Runnable() {
-					public void run() {
+			ParallelExecutor.forEachRow(height, monitor, false, new ParallelExecutor.RangeTask() {
+				public void run(final int yStart, final int yEnd) {
+					final double[][] sums = new double[3][width];
+					
+					// Convolve over the image
+					for (int y = yStart; y < yEnd; y++) {
 						
-						// Convolve over the image
-						for (int x = threadOffset; x < width; x += numThreads) {
-							for (int y = 0; y < height; y++) {
-								// Sum the pixels around this pixel
-								float r = 0;
-								float g = 0;
-								float b = 0;
-								int sampleCount = 0;
-								for (int x2 = -offset; x2 <= offset; x2++) {
-									if (x2 + x < 0 || x2 + x >= width) {
-										continue;
-									}
-									for (int y2 =  -offset; y2 <= offset; y2++) {
-										if (y2 + y < 0 || y2 + y >= height ||
-												kernel[x2 + offset][y2 + offset] == 0) {
-											continue;
-										}
-										
-										r += middleBlur[0][x + x2][y + y2];
-										g += middleBlur[1][x + x2][y + y2];
-										b += middleBlur[2][x + x2][y + y2];
-										sampleCount++;
-									}
-								}
-								
-								newImage[0][x][y] *= (r / sampleCount);
-								newImage[1][x][y] *= (g / sampleCount);
-								newImage[2][x][y] *= (b / sampleCount);
-							}
-							
-							// Exit early if the effect has been canceled
-							if (ImageEffects.isCanceled) {
-								break;
-							}
-						}
+						// Sum the pixels around each pixel in this row
+						disk.sumRow(middleBlur, y, sums);
 						
-						synchronized(Algorithms.class) {
-							threadsCompleted++;
+						final int[] counts = sampleCounts[y];
+						final int newRow = newImage.index(0, y);
+						for (int c = 0; c < 3; c++) {
+							final double[] sum = sums[c];
+							for (int x = 0; x < width; x++) {
+								newPlanes[c][newRow + x] *= (float)(sum[x] / counts[x]);
+							}
 						}
 					}
-				}).start();
-			}
-			
-			// Wait for all of the threads to complete
-			while (threadsCompleted < numThreads) {
-				try {
-					Thread.sleep(1);
-				} catch (Exception e) {}
-			}
+				}
+			});
 			
-			UserInterface.updateProgress((double)i / iterations);
+			monitor.updateProgress((double)i / iterations);
 			
 			// Exit early if the effect has been canceled
-			if (ImageEffects.isCanceled) {
+			if (monitor.isCanceled()) {
 				return null;
 			}
 		}
 		
-		UserInterface.setProcessName("Deblurring (" + (System.currentTimeMillis() - startTime) + "ms)");
-		UserInterface.updateProgress(1);
+		monitor.setProcessName("Deblurring (" + (System.currentTimeMillis() - startTime) + "ms)");
+		monitor.updateProgress(1);
 		
 		return newImage;
 	}
@@ -613,8 +705,12 @@ public class Algorithms {
 		float[] previousIteration = inputSamples;
 		//float[] previousIteration = new float[inputSamples.length];
 		
+		// Each iteration only reads the one before, so two buffers are enough
+		final float[] buffer1 = (ITERATIONS > 0) ? new float[inputSamples.length] : null;
+		final float[] buffer2 = (ITERATIONS > 1) ? new float[inputSamples.length] : null;
+		
 		for (int j = 0; j < ITERATIONS; j++) {
-			outputSamples = new float[inputSamples.length];
+			outputSamples = (j % 2 == 0) ? buffer1 : buffer2;
 			
 			for (int i = 0; i < radius*4 + 2; i++) {
 				outputSamples[i] = innerRingScale * (
@@ -666,15 +762,15 @@ public class Algorithms {
 		return outputSamples;
 	}
 	
-	static float[][][] sharpenSwitch(final float[][][] originalImage, final float weight,
-									final float radius, final boolean commit) {
+	static PlanarImage sharpenSwitch(final PlanarImage originalImage, final float weight,
+									final float radius, final boolean commit, final ProgressMonitor monitor) {
 		
 		if (useOpenCL) {
-			int width = originalImage[0].length;
-			int height = originalImage[0][0].length;
+			int width = originalImage.width;
+			int height = originalImage.height;
 			
 			// Only convert the image if it hasn't already been done
-			if (!GPUProgram.isInitialized() || cachedByteBuffer == null) {
+			if (!GPUProgram.isInitialized() || GPUAlgorithms.cachedByteBuffer == null) {
 				GPUProgram.initializeGPU();
 				
 				// Convert the preview image to 3BYTE_BGR format
@@ -682,125 +778,69 @@ public class Algorithms {
 				byte[] buffer = extractByteArray(UserInterface.previewImage);
 				
 				// Copy from the float image to the preview image
-				for (int x = 0; x < width; x++) {
-					for (int y = 0; y < height; y++) {
-						int i = (y * width + x) * 3;
-						buffer[i + 0] = (byte)clamp(originalImage[2][x][y]);
-						buffer[i + 1] = (byte)clamp(originalImage[1][x][y]);
-						buffer[i + 2] = (byte)clamp(originalImage[0][x][y]);
-					}
-				}
+				copyToByteArray(originalImage, buffer);
 				
 				// Make a copy of the image
-				cachedByteBuffer = new byte[buffer.length];
-				System.arraycopy(buffer, 0, cachedByteBuffer, 0, buffer.length);
+				GPUAlgorithms.cachedByteBuffer = new byte[buffer.length];
+				System.arraycopy(buffer, 0, GPUAlgorithms.cachedByteBuffer, 0, buffer.length);
 			}
 			
-			return GPUAlgorithms.sharpenGPU(cachedByteBuffer, width, height, weight, radius, commit);
+			return GPUAlgorithms.sharpenGPU(GPUAlgorithms.cachedByteBuffer, width, height, weight, radius, commit, monitor);
 		} else {
-			return sharpen(originalImage, weight, radius);
+			return sharpen(originalImage, weight, radius, monitor);
 		}
 	}
 	
 	// Perform unsharp masking (also known as 'sharpen' effect).
 	// Radius is a minimum of 0.5.
-	static float[][][] sharpen(final float[][][] originalImage, final float weight, final float radius) {
-		UserInterface.setProcessName("Sharpening");
+	// The disk average costs O(radius) per pixel.  See DiskSum.java.
+	static PlanarImage sharpen(final PlanarImage originalImage, final float weight, final float radius,
+			final ProgressMonitor monitor) {
+		monitor.setProcessName("Sharpening");
 		final long startTime = System.currentTimeMillis();
 		
-		final int width = originalImage[0].length;
-		final int height = originalImage[0][0].length;
-		
-		final int radiusMax = (int)Math.floor(radius);
+		final int width = originalImage.width;
+		final int height = originalImage.height;
+		final float[][] in = originalImage.planes;
 		
-		// This must have an odd width and height
-		final float[][] kernel = new float[radiusMax * 2 + 1][radiusMax * 2 + 1];
-		
-		for (int i = -radiusMax; i <= radiusMax; i++) {
-			for (int j = -radiusMax; j <= radiusMax; j++) {
-				if (i * i + j * j <= (radius + 0.375) * (radius + 0.375)) {
-					kernel[i + radiusMax][j + radiusMax] = 1;
-				}
-			}
-		}
-		kernel[radiusMax][radiusMax] = 0;
+		final DiskSum disk = DiskSum.forDisk(radius, (int)Math.floor(radius));
 		
 		// Save the kernel for display
-		UserInterface.lastKernel = kernel;
+		final float[][] kernel = disk.toKernel();
+		kernel[disk.radiusMax][disk.radiusMax] = 0;
+		monitor.setKernel(kernel);
+		
+		final PlanarImage newImage = originalImage.createCompatible();
+		final float[][] out = newImage.planes;
 		
-		final float[][][] newImage = new float[3][width][height];
 		// Run this in parallel
-		threadsCompleted = 0;
-		for (int k = 0; k < numThreads; k++) {
-			final int threadOffset = k;
-			new Thread(new Runnable() {
-				public void run() {
-					
-					// Convolve over the image
-					for (int x = threadOffset; x < width; x += numThreads) {
-						for (int y = 0; y < height; y++) {
-							
-							float sumR = 0;
-							float sumG = 0;
-							float sumB = 0;
-							int count = 0;
-							
-							// Sum over all the pixels inside the disk
-							for (int i = -radiusMax; i <= radiusMax; i++) {
-								for (int j = -radiusMax; j <= radiusMax; j++) {
-									int xIndex = x + i;
-									int yIndex = y + j;
-									if (xIndex >= 0 && xIndex < width && yIndex >= 0 && yIndex < height) {
-										if (i * i + j * j <= (radius + 0.375) * (radius + 0.375)) {
-											sumR += originalImage[0][xIndex][yIndex];
-											sumG += originalImage[1][xIndex][yIndex];
-											sumB += originalImage[2][xIndex][yIndex];
-											count++;
-										}
-									}
-								}
-							}
+		ParallelExecutor.forEachRow(height, monitor, true, new ParallelExecutor.RangeTask() {
+			public void run(final int yStart, final int yEnd) {
+				
+				// Write the average color over the disk into the new image
+				disk.average(originalImage, newImage, yStart, yEnd);
+				
+				for (int y = yStart; y < yEnd; y++) {
+					final int inRow = originalImage.index(0, y);
+					final int outRow = newImage.index(0, y);
+					for (int c = 0; c < 3; c++) {
+						for (int x = 0; x < width; x++) {
+							final float original = in[c][inRow + x];
 							
-							// Subtract the average color from the original image
-							sumR = originalImage[0][x][y] - sumR / count;
-							sumG = originalImage[1][x][y] - sumG / count;
-							sumB = originalImage[2][x][y] - sumB / count;
-
-							// Scale the difference and add it back to the original image
-							newImage[0][x][y] = originalImage[0][x][y] + sumR * weight;
-							newImage[1][x][y] = originalImage[1][x][y] + sumG * weight;
-							newImage[2][x][y] = originalImage[2][x][y] + sumB * weight;
-						}
-						
-						if (threadOffset == 0 && (x % 50 == 0)) {
-							UserInterface.updateProgress((double)x/width);
-						}
-						
-						// Exit early if the effect has been canceled
-						if (ImageEffects.isCanceled) {
-							break;
+							// Subtract the average color from the original image,
+							// then scale the difference and add it back to the original image
+							out[c][outRow + x] = original + (original - out[c][outRow + x]) * weight;
 						}
 					}
-					
-					synchronized(Algorithms.class) {
-						threadsCompleted++;
-					}
 				}
-			}).start();
-		}
-
-		// Wait for all of the threads to complete
-		while (threadsCompleted < numThreads) {
-			try {
-				Thread.sleep(1);
-			} catch (Exception e) {}
-		}
-
-		UserInterface.setProcessName("Sharpen (" + (System.currentTimeMillis() - startTime) + "ms)");
-		UserInterface.updateProgress(1);
+			}
+		});
+		
+		monitor.setProcessName("Sharpen (" + (System.currentTimeMillis() - startTime) + "ms)");
+		monitor.updateProgress(1);
 		
 		// Exit early if the effect has been canceled
-		if (ImageEffects.isCanceled) {
+		if (monitor.isCanceled()) {
 			return null;
 		}
 		
@@ -970,9 +1010,10 @@ public class Algorithms {
 	// Generate two arrays of coordinates representing the inner and outer edge of a circle.
 	// Inside ring has values of 1.0, outside ring has values of approx. -0.99
 	// Sum is 0, sum of absolute values is 1.
+	// If 'monitor' is not null, then the kernel is passed to it for a preview.
 	// Returns: Object[]{coordinates, weights}
 	// Arrays are indexed by: arr[i*2]=x, arr[i*2+1]=y.
-	static Object[] generateCircleKernel(final float radius, final boolean saveKernel) {
+	static Object[] generateCircleKernel(final float radius, final ProgressMonitor monitor) {
 		
 		// Generate the deblurring kernel
 		// This must have an odd width and height
@@ -987,9 +1028,9 @@ public class Algorithms {
 			}
 		}
 		
-		if (saveKernel) {
+		if (monitor != null) {
 			// Save this for a preview
-			UserInterface.lastKernel = boolArrayToFloat2D(kernel);
+			monitor.setKernel(boolArrayToFloat2D(kernel));
 		}
 		
 		// Over-estimate the number of pixels in the inner and outer rings
@@ -1069,9 +1110,9 @@ public class Algorithms {
 	
 	// Generate an array of coordinates representing the outer edge of a circle only.
 	// Returns: int[] coords array
-	static int[] generateOuterCircleKernel(final float radius, final boolean saveKernel) {
+	static int[] generateOuterCircleKernel(final float radius, final ProgressMonitor monitor) {
 		// Generate the outer ring correction kernel
-		final Object[] arrays = generateCircleKernel(radius, saveKernel);
+		final Object[] arrays = generateCircleKernel(radius, monitor);
 		final float[] weights = (float[])arrays[0];
 		final int[] coords = (int[])arrays[1];
 		
@@ -1098,101 +1139,34 @@ public class Algorithms {
 		return newCoords;
 	}
 	
-	// Perform a disk blur on the given image
-	static float[][][] diskBlur(final float[][][] originalImage, final double radius) {
-		final int width = originalImage[0].length;
-		final int height = originalImage[0][0].length;
-		final float[][][] newImage = new float[3][width][height];
+	// Perform a disk blur on the given image.
+	// Each pixel costs O(radius) rather than O(radius^2).  See DiskSum.java.
+	static PlanarImage diskBlur(final PlanarImage originalImage, final double radius,
+			final ProgressMonitor monitor) {
+		final int height = originalImage.height;
+		final PlanarImage newImage = originalImage.createCompatible();
 		
 		final long startTime = System.currentTimeMillis();
-		final int radiusMax = (int)Math.ceil(radius);
 		
-		UserInterface.setProcessName("Blurring");
+		monitor.setProcessName("Blurring");
 		
-		// This must have an odd width and height
-		final float[][] kernel = new float[radiusMax * 2 + 1][radiusMax * 2 + 1];
-		for (int i = -radiusMax; i <= radiusMax; i++) {
-			for (int j = -radiusMax; j <= radiusMax; j++) {
-				if (i * i + j * j <= (radius + 0.375) * (radius + 0.375)) {
-					kernel[i + radiusMax][j + radiusMax] = 1;
-					//print((i) + "," + (j));
-				}
-			}
-		}
+		final DiskSum disk = DiskSum.forDisk(radius, (int)Math.ceil(radius));
 		
 		// Save the kernel for display
-		UserInterface.lastKernel = kernel;
-		
-		// Blur in parallel threads
-		final Thread[] threads = new Thread[numThreads];
-		for (int k = 0; k < numThreads; k++) {
-			final int threadOffset = k;
-			threads[k] = new Thread(new Runnable() {
-				public void run() {
-					
-					// Convolve over the image with a disk kernel
-					for (int x = threadOffset; x < width; x += numThreads) {
-						for (int y = 0; y < height; y++) {
-							
-							float sumR = 0;
-							float sumG = 0;
-							float sumB = 0;
-							int count = 0;
-							
-							// Sum over all the pixels inside the disk
-							for (int i = -radiusMax; i <= radiusMax; i++) {
-								for (int j = -radiusMax; j <= radiusMax; j++) {
-									int xIndex = x + i;
-									int yIndex = y + j;
-									if (xIndex >= 0 && xIndex < width && yIndex >= 0 && yIndex < height) {
-										if (i * i + j * j <= (radius + 0.375) * (radius + 0.375)) {
-											sumR += originalImage[0][xIndex][yIndex];
-											sumG += originalImage[1][xIndex][yIndex];
-											sumB += originalImage[2][xIndex][yIndex];
-											count++;
-										}
-									}
-								}
-							}
-							
-							newImage[0][x][y] = sumR / count;
-							newImage[1][x][y] = sumG / count;
-							newImage[2][x][y] = sumB / count;
-						} // end-for y
-						
-						// Update the progress
-						if ((threadOffset == 0) && (x % 8 == 0)) {
-							UserInterface.updateProgress((double)x/width);
-						}
-						
-						// Exit early if the effect has been canceled
-						if (ImageEffects.isCanceled) {
-							break;
-						}
-					} // end-for x
-				}
-			}); // end-thread
-		}
-		
-		// Start all the threads
-		for (int k = 0; k < numThreads; k++) {
-			threads[k].start();
-		}
+		monitor.setKernel(disk.toKernel());
 		
-		// Wait for all of the threads to complete
-		try {
-			for (int k = 0; k < numThreads; k++) {
-				threads[k].join();
+		// Blur in parallel
+		ParallelExecutor.forEachRow(height, monitor, true, new ParallelExecutor.RangeTask() {
+			public void run(final int yStart, final int yEnd) {
+				disk.average(originalImage, newImage, yStart, yEnd);
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+		});
 		
-		UserInterface.setProcessName("Blurring (" + (System.currentTimeMillis() - startTime) + "ms)");
-		UserInterface.updateProgress(1);
+		monitor.setProcessName("Blurring (" + (System.currentTimeMillis() - startTime) + "ms)");
+		monitor.updateProgress(1);
 		
 		// Exit early if the effect has been canceled
-		if (ImageEffects.isCanceled) {
+		if (monitor.isCanceled()) {
 			return null;
 		}
 		
@@ -1201,55 +1175,87 @@ public class Algorithms {
 	
 	// Take an image and convert it to an rgb float array.
 	// This method does not work with some highly compressed PNG images
-	static float[][][] imageToArray(BufferedImage image) {
+	static PlanarImage imageToArray(BufferedImage image) {
+		final PlanarImage newImage = new PlanarImage(image.getWidth(), image.getHeight());
+		imageToArray(image, newImage);
+		return newImage;
+	}
+	
+	// Same as above, but the colors are written to an existing image of the same size
+	static void imageToArray(final BufferedImage image, final PlanarImage newImage) {
 		// Extract colors
 		final byte[] pixels = extractByteArray(image);
 		final int width = image.getWidth();
 		final int height = image.getHeight();
 		
-		final float[][][] newImage = new float[3][width][height];
+		final float[] r = newImage.planes[0];
+		final float[] g = newImage.planes[1];
+		final float[] b = newImage.planes[2];
 		
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
+		for (int y = 0; y < height; y++) {
+			final int row = newImage.index(0, y);
+			for (int x = 0; x < width; x++) {
 				int i = (y * width + x) * 3;
-				newImage[0][x][y] = pixels[i + 2] & 0xff; // red
-				newImage[1][x][y] = pixels[i + 1] & 0xff; // green
-				newImage[2][x][y] = pixels[i + 0] & 0xff; // blue
+				r[row + x] = pixels[i + 2] & 0xff; // red
+				g[row + x] = pixels[i + 1] & 0xff; // green
+				b[row + x] = pixels[i + 0] & 0xff; // blue
+			}
+		}
+	}
+	
+	// Copy the image into a byte array in 3BYTE_BGR format (as used by BufferedImage and the GPU)
+	static void copyToByteArray(final PlanarImage image, final byte[] buffer) {
+		final int width = image.width;
+		final float[] r = image.planes[0];
+		final float[] g = image.planes[1];
+		final float[] b = image.planes[2];
+		for (int y = 0; y < image.height; y++) {
+			final int row = image.index(0, y);
+			for (int x = 0; x < width; x++) {
+				int i = (y * width + x) * 3;
+				buffer[i + 0] = (byte)clamp(b[row + x]);
+				buffer[i + 1] = (byte)clamp(g[row + x]);
+				buffer[i + 2] = (byte)clamp(r[row + x]);
 			}
 		}
-		
-		return newImage;
 	}
 	
 	// Return the normalized root mean square error between the two given images. (Normalized by brightness)
 	// Images must be the same size.
-	static double normalizedRootMeanSquareError(final float[][][] image1, final float[][][] image2) {
+	static double normalizedRootMeanSquareError(final PlanarImage image1, final PlanarImage image2) {
 		
 		double totalSquareError = 0;
-		final int width = image1[0].length;
-		final int height = image2[0][0].length;
+		final int width = image1.width;
+		final int height = image2.height;
 		
 		// Iterate over each color channel
 		for (int channel = 0; channel < 3; channel++) {
+			final float[] plane1 = image1.planes[channel];
+			final float[] plane2 = image2.planes[channel];
+			
 			float avg1 = 0;
-			for (int x = 0; x < width; x++) {
-				for (int y = 0; y < height; y++) {
-					avg1 += image1[channel][x][y];
+			for (int y = 0; y < height; y++) {
+				final int row = image1.index(0, y);
+				for (int x = 0; x < width; x++) {
+					avg1 += plane1[row + x];
 				}
 			}
 			avg1 /= width * height;
 			
 			float avg2 = 0;
-			for (int x = 0; x < width; x++) {
-				for (int y = 0; y < height; y++) {
-					avg2 += image2[channel][x][y];
+			for (int y = 0; y < height; y++) {
+				final int row = image2.index(0, y);
+				for (int x = 0; x < width; x++) {
+					avg2 += plane2[row + x];
 				}
 			}
 			avg2 /= width * height;
 			
-			for (int x = 0; x < width; x++) {
-				for (int y = 0; y < height; y++) {
-					double error = (image1[channel][x][y] - avg1) - (image2[channel][x][y] - avg2);
+			for (int y = 0; y < height; y++) {
+				final int row1 = image1.index(0, y);
+				final int row2 = image2.index(0, y);
+				for (int x = 0; x < width; x++) {
+					double error = (plane1[row1 + x] - avg1) - (plane2[row2 + x] - avg2);
 					totalSquareError += error * error;
 				}
 			}
@@ -1262,62 +1268,38 @@ public class Algorithms {
 	}
 	
 	// Return a copy of the given image array
-	static float[][][] copyImage(final float[][][] image) {
-		final int width = image[0].length;
-		final int height = image[0][0].length;
-		
-		final float[][][] newImage = new float[3][width][height];
-		
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
-				newImage[0][x][y] = image[0][x][y];
-				newImage[1][x][y] = image[1][x][y];
-				newImage[2][x][y] = image[2][x][y];
-			}
-		}
-		
-		return newImage;
+	static PlanarImage copyImage(final PlanarImage image) {
+		return image.copy();
 	}
 	
 	// Take an array and convert it to a BufferedImage
-	static BufferedImage arrayToImage(final float[][][] image) {
-		final int width = image[0].length;
-		final int height = image[0][0].length;
+	static BufferedImage arrayToImage(final PlanarImage image) {
+		final int width = image.width;
+		final int height = image.height;
 		
 		final BufferedImage newImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
 		final byte[] bufferData = extractByteArray(newImage);
+		final float[] red = image.planes[0];
+		final float[] green = image.planes[1];
+		final float[] blue = image.planes[2];
 		
 		// Loop over the pixels in parallel
-		threadsCompleted = 0;
-		for (int k = 0; k < numThreads; k++) {
-			final int threadOffset = k;
-			new Thread(new Runnable() {
-				public void run() {
-					for (int x = threadOffset; x < width; x += numThreads) {
-						for (int y = 0; y < height; y++) {
-							final int r = clamp(image[0][x][y]);
-							final int g = clamp(image[1][x][y]);
-							final int b = clamp(image[2][x][y]);
-							final int i = (y * width + x) * 3;
-							bufferData[i + 0] = (byte)b;
-							bufferData[i + 1] = (byte)g;
-							bufferData[i + 2] = (byte)r;
-						}
-					}
-					
-					synchronized(Algorithms.class) {
-						threadsCompleted++;
+		ParallelExecutor.forEachRow(height, new ParallelExecutor.RangeTask() {
+			public void run(final int yStart, final int yEnd) {
+				for (int y = yStart; y < yEnd; y++) {
+					final int row = image.index(0, y);
+					for (int x = 0; x < width; x++) {
+						final int r = clamp(red[row + x]);
+						final int g = clamp(green[row + x]);
+						final int b = clamp(blue[row + x]);
+						final int i = (y * width + x) * 3;
+						bufferData[i + 0] = (byte)b;
+						bufferData[i + 1] = (byte)g;
+						bufferData[i + 2] = (byte)r;
 					}
 				}
-			}).start();
-		}
-		
-		// Wait for all of the threads to complete
-		while (threadsCompleted < numThreads) {
-			try {
-				Thread.sleep(1);
-			} catch (Exception e) {}
-		}
+			}
+		});
 		
 		return newImage;
 	}
@@ -1337,11 +1319,13 @@ public class Algorithms {
 	
 	// Scale every element of a float array in-place.
 	// Same pointer is optionally returned.
-	static float[][][] scaleImage(final float[][][] image, final float scale) {
-		for (int i = 0; i < image.length; i++) {
-			for (int x = 0; x < image[0].length; x++) {
-				for (int y = 0; y < image[0][0].length; y++) {
-					image[i][x][y] *= scale;
+	static PlanarImage scaleImage(final PlanarImage image, final float scale) {
+		for (int i = 0; i < image.planes.length; i++) {
+			final float[] plane = image.planes[i];
+			for (int y = 0; y < image.height; y++) {
+				final int row = image.index(0, y);
+				for (int x = 0; x < image.width; x++) {
+					plane[row + x] *= scale;
 				}
 			}
 		}
@@ -1354,6 +1338,107 @@ public class Algorithms {
 		return dataBufferByte.getData();
 	}
 	
+	// Return the image in 3BYTE_BGR format, which is the format expected by imageToArray().
+	// The image is returned as-is if it is already in that format.
+	static BufferedImage convertToByteBGR(final BufferedImage image) {
+		if (image.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+			return image;
+		}
+		final BufferedImage newImage = new BufferedImage(image.getWidth(), image.getHeight(),
+				BufferedImage.TYPE_3BYTE_BGR);
+		final Graphics2D g = newImage.createGraphics();
+		g.drawImage(image, 0, 0, null);
+		g.dispose();
+		return newImage;
+	}
+
+	// One border pixel of one channel for fastMethod(), with the coordinates clamped to the image bounds.
+	// The sums are taken in the same order as the RGB border path.
+	private static float fastMethodBorderPixel(final PlanarImage originalImage, final PlanarImage newApproximation,
+			final int channel, final int x, final int y, final KernelCache.Rings rings, final float innerMult) {
+		
+		final int width = originalImage.width;
+		final int height = originalImage.height;
+		final float[] orig = originalImage.planes[channel];
+		final float[] approx = newApproximation.planes[channel];
+		
+		// Inner negative ring, scaled to the weight of the inner positive ring
+		float gradient = 0;
+		for (int i = 0; i < rings.coords2Count; i++) {
+			gradient -= orig[originalImage.index(clamp(rings.coords2[i * 2 + 0] + x, 0, width - 1),
+					clamp(rings.coords2[i * 2 + 1] + y, 0, height - 1))];
+		}
+		gradient *= rings.innerToOuterRatio;
+		
+		// Inner positive ring
+		for (int i = 0; i < rings.coords1Count; i++) {
+			gradient += orig[originalImage.index(clamp(rings.coords1[i * 2 + 0] + x, 0, width - 1),
+					clamp(rings.coords1[i * 2 + 1] + y, 0, height - 1))];
+		}
+		
+		// Outer positive ring
+		float outer = 0;
+		for (int i = 0; i < rings.coordsOuterCount; i++) {
+			outer += approx[newApproximation.index(clamp(rings.coordsOuter[i * 2 + 0] + x, 0, width - 1),
+					clamp(rings.coordsOuter[i * 2 + 1] + y, 0, height - 1))];
+		}
+		
+		return innerMult * gradient + outer / rings.coordsOuterCount;
+	}
+	
+	// One interior pixel of one channel for fastMethod(), with the rings read at fixed offsets from the
+	// center pixel's array index.  The sums are taken in the same order as the RGB interior path.
+	static float fastMethodInteriorPixel(final float[] orig, final float[] approx, final int origCenter,
+			final int approxCenter, final int[] offsets1, final int[] offsets2, final int[] offsetsOuter,
+			final float innerToOuterRatio, final float innerMult, final int coordsOuterCount) {
+		
+		// Inner negative ring, scaled to the weight of the inner positive ring
+		float gradient = 0;
+		for (int i = 0; i < offsets2.length; i++) {
+			gradient -= orig[origCenter + offsets2[i]];
+		}
+		gradient *= innerToOuterRatio;
+		
+		// Inner positive ring
+		for (int i = 0; i < offsets1.length; i++) {
+			gradient += orig[origCenter + offsets1[i]];
+		}
+		
+		// Outer positive ring
+		float outer = 0;
+		for (int i = 0; i < offsetsOuter.length; i++) {
+			outer += approx[approxCenter + offsetsOuter[i]];
+		}
+		
+		return innerMult * gradient + outer / coordsOuterCount;
+	}
+	
+	// Load the SIMD engine for fastMethod(), or return null if it is turned off or not available
+	private static FastMethodSpan loadFastMethodSpan() {
+		if (!Boolean.parseBoolean(System.getProperty("deconvolution.vector", "true"))) {
+			return null;
+		}
+		try {
+			return (FastMethodSpan)Class.forName("deconvolution.FastMethodVector").getDeclaredConstructor()
+					.newInstance();
+		} catch (ReflectiveOperationException e) {
+			// Not compiled in (eg. built with JDK 15 or older)
+			return null;
+		} catch (LinkageError e) {
+			// Compiled in, but the jdk.incubator.vector module was not added when the JVM started
+			return null;
+		}
+	}
+	
+	// Convert (x, y) ring coordinates to array index offsets for an image with the given stride
+	static int[] linearOffsets(final int[] coords, final int stride) {
+		final int[] offsets = new int[coords.length / 2];
+		for (int i = 0; i < offsets.length; i++) {
+			offsets[i] = coords[i * 2 + 1] * stride + coords[i * 2 + 0];
+		}
+		return offsets;
+	}
+	
 	// Clamp the value to within two constraints
 	static int clamp(int a, int min, int max) {
 		if (a <= min) {
@@ -0,0 +1,156 @@
+package deconvolution;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+// This class measures garbage collection and memory allocation over a period of time (such as one video),
+// so they can be shown in a run summary.
+// The JVM counts allocation per thread, so a thread that exits during the period must call
+// threadFinished() just before it exits, or its allocations are not counted.  The ParallelExecutor workers
+// do this themselves.
+// Measurements that the JVM does not support are left out of the summary.
+
+public class AllocationMonitor {
+	
+	// Bytes allocated by threads that have called threadFinished()
+	private static final AtomicLong finishedThreadBytes = new AtomicLong();
+	
+	private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+	
+	// Values when the monitor was started, and the totals once it is stopped
+	private final long startNanos;
+	private final long startCollections;
+	private final long startCollectionMillis;
+	private final long startAllocatedBytes;
+	private long elapsedNanos = -1;
+	private long collections;
+	private long collectionMillis;
+	private long allocatedBytes;
+	
+	// Longest single collection while the monitor was running
+	private final AtomicLong longestCollectionMillis = new AtomicLong();
+	
+	// Receives an event after every collection
+	private final NotificationListener listener = new NotificationListener() {
+		public void handleNotification(final Notification notification, final Object handback) {
+			if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+				return;
+			}
+			final GarbageCollectionNotificationInfo info =
+					GarbageCollectionNotificationInfo.from((CompositeData)notification.getUserData());
+			final long duration = info.getGcInfo().getDuration();
+			long longest = longestCollectionMillis.get();
+			while (duration > longest && !longestCollectionMillis.compareAndSet(longest, duration)) {
+				longest = longestCollectionMillis.get();
+			}
+		}
+	};
+	
+	// Start measuring from now
+	AllocationMonitor() {
+		for (GarbageCollectorMXBean collector : collectors) {
+			if (collector instanceof NotificationEmitter) {
+				((NotificationEmitter)collector).addNotificationListener(listener, null, null);
+			}
+		}
+		startCollections = getCollectionCount();
+		startCollectionMillis = getCollectionMillis();
+		startAllocatedBytes = getAllocatedBytes();
+		startNanos = System.nanoTime();
+	}
+	
+	// Stop measuring
+	void stop() {
+		if (elapsedNanos >= 0) {
+			return;
+		}
+		elapsedNanos = System.nanoTime() - startNanos;
+		collections = getCollectionCount() - startCollections;
+		collectionMillis = getCollectionMillis() - startCollectionMillis;
+		allocatedBytes = startAllocatedBytes < 0 ? -1 : getAllocatedBytes() - startAllocatedBytes;
+		
+		for (GarbageCollectorMXBean collector : collectors) {
+			if (collector instanceof NotificationEmitter) {
+				try {
+					((NotificationEmitter)collector).removeNotificationListener(listener);
+				} catch (ListenerNotFoundException e) {
+					// Already removed
+				}
+			}
+		}
+	}
+	
+	// Return a one-line summary.  Stops the monitor if it is still running.
+	String getSummary() {
+		stop();
+		final StringBuilder summary = new StringBuilder();
+		summary.append(String.format("GC: %d collections, %d ms total, longest %d ms",
+				collections, collectionMillis, longestCollectionMillis.get()));
+		if (allocatedBytes >= 0) {
+			final double seconds = Math.max(elapsedNanos / 1e9, 1e-9);
+			summary.append(String.format(", allocated %.0f MB (%.1f MB/s)",
+					allocatedBytes / 1e6, allocatedBytes / 1e6 / seconds));
+		}
+		return summary.toString();
+	}
+	
+	// Called by threads that are about to exit, so their allocations are still counted
+	static void threadFinished() {
+		final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			final long bytes = ((com.sun.management.ThreadMXBean)threads)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+			if (bytes > 0) {
+				finishedThreadBytes.addAndGet(bytes);
+			}
+		}
+	}
+	
+	// Total number of collections so far
+	private long getCollectionCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean collector : collectors) {
+			count += Math.max(collector.getCollectionCount(), 0);
+		}
+		return count;
+	}
+	
+	// Total time spent collecting so far
+	private long getCollectionMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean collector : collectors) {
+			millis += Math.max(collector.getCollectionTime(), 0);
+		}
+		return millis;
+	}
+	
+	// Bytes allocated so far by all live threads and all finished threads, or -1 if not supported
+	private static long getAllocatedBytes() {
+		final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		final com.sun.management.ThreadMXBean allocationThreads = (com.sun.management.ThreadMXBean)threads;
+		if (!allocationThreads.isThreadAllocatedMemorySupported() ||
+				!allocationThreads.isThreadAllocatedMemoryEnabled()) {
+			return -1;
+		}
+		long bytes = finishedThreadBytes.get();
+		for (long allocated : allocationThreads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+			if (allocated > 0) {
+				bytes += allocated;
+			}
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,228 @@
+package deconvolution;
+
+import java.nio.Buffer;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avformat;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+
+// This class copies the audio of a video into the deblurred video without re-encoding it.
+// The audio packets are read by a second demuxer on the input (the frame grabber skips them), and are
+// written between the video frames as they are recorded, so the output needs no separate remux pass.
+// The recorder encodes the video from frame 0 at a constant frame rate, so the audio is shifted to start
+// at the first video frame, and each packet is written once the video has reached its time.
+// Timestamps are in microseconds, in the same units as Frame.timestamp.
+
+public class AudioPassthrough {
+	
+	// Seek this far before the first frame, so no audio packet stored just before the video keyframe is missed
+	private static final long seekMargin = 1000000;
+	
+	private final String path;
+	
+	// Copy the audio with start <= timestamp < end (the same range as the video frames)
+	private final long start;
+	private final long end;
+	
+	private FFmpegFrameGrabber demuxer = null;
+	private int stream = -1; // Index of the audio stream in the input, or -1 if there is none
+	private AVRational timeBase = null;
+	private double frameRate = 0;
+	
+	// A one-stream copy of the audio stream, for starting the recorder
+	private AVFormatContext audioFormat = null;
+	
+	// Timestamp of the first video frame, or Long.MIN_VALUE until it is decoded.  Guarded by this.
+	private long videoStart = Long.MIN_VALUE;
+	
+	// A packet that was read, but is not due yet.  It stays in the demuxer until it is written.
+	private AVPacket pendingPacket = null;
+	private boolean isAudioDone = false;
+	
+	// Last decode timestamp written, so overlapping packets are skipped
+	private long lastDts = Long.MIN_VALUE;
+	private int packetsWritten = 0;
+	
+	// Copy the audio of the video at 'path' with start <= timestamp < end.
+	// Use Long.MIN_VALUE and Long.MAX_VALUE for the whole video.
+	AudioPassthrough(final String path, final long start, final long end) {
+		this.path = path;
+		this.start = start;
+		this.end = end;
+	}
+	
+	// Open the input, and start the recorder (which must not be started yet) with an audio stream copied
+	// from the input.  If the input has no audio, the recorder is started without audio.
+	// 'frameRate' must be the frame rate the recorder encodes the video at.
+	void startRecorder(final FFmpegFrameRecorder recorder, final double frameRate) throws Exception {
+		this.frameRate = frameRate;
+		
+		demuxer = new FFmpegFrameGrabber(path);
+		demuxer.start();
+		final AVFormatContext format = demuxer.getFormatContext();
+		for (int i = 0; i < format.nb_streams(); i++) {
+			if (format.streams(i).codecpar().codec_type() == avutil.AVMEDIA_TYPE_AUDIO) {
+				stream = i;
+				break;
+			}
+		}
+		if (stream < 0 || frameRate <= 0) {
+			stream = -1;
+			recorder.setAudioChannels(0);
+			recorder.start();
+			return;
+		}
+		final AVStream input = format.streams(stream);
+		timeBase = input.time_base();
+		
+		if (start != Long.MIN_VALUE) {
+			avformat.av_seek_frame(format, -1, start - seekMargin, avformat.AVSEEK_FLAG_BACKWARD);
+		}
+		
+		// The recorder copies every audio stream of the format it starts with (and opens no encoder for it),
+		// so give it a format with just the audio.  A format with a video stream would stop it encoding video.
+		audioFormat = avformat.avformat_alloc_context();
+		final AVStream copy = avformat.avformat_new_stream(audioFormat, null);
+		if (copy == null || avcodec.avcodec_parameters_copy(copy.codecpar(), input.codecpar()) < 0 ||
+				!copyCodecContext(copy, input, timeBase)) {
+			throw new IllegalStateException("Could not copy the audio stream of " + path);
+		}
+		copy.time_base(timeBase);
+		
+		recorder.setAudioChannels(input.codecpar().channels());
+		recorder.start(audioFormat);
+	}
+	
+	// Fill in the legacy codec context of 'copy' from the parameters of 'input'.  Returns false if it fails.
+	// javacv 1.5.2 starts a recorder from the streams' AVStream.codec() contexts, not from their codecpar.
+	@SuppressWarnings("deprecation")
+	private static boolean copyCodecContext(final AVStream copy, final AVStream input, final AVRational timeBase) {
+		if (avcodec.avcodec_parameters_to_context(copy.codec(), input.codecpar()) < 0) {
+			return false;
+		}
+		copy.codec().time_base(timeBase);
+		return true;
+	}
+	
+	// Wrap a frame source to record the timestamp of the first video frame
+	VideoPipeline.FrameSource wrap(final VideoPipeline.FrameSource source) {
+		return new VideoPipeline.FrameSource() {
+			public Frame grabImage() throws Exception {
+				final Frame frame = source.grabImage();
+				if (frame != null) {
+					videoStarted(frame.timestamp);
+				}
+				return frame;
+			}
+		};
+	}
+	
+	// Record the timestamp of a decoded video frame.  Only the first one is kept.
+	synchronized void videoStarted(final long timestamp) {
+		if (videoStart == Long.MIN_VALUE) {
+			videoStart = timestamp;
+		}
+	}
+	
+	// Write the audio that plays before the end of the given video frame.
+	// Call this after recording each video frame, on the thread that records them.
+	synchronized void writeUntil(final FFmpegFrameRecorder recorder, final int frameIndex) throws Exception {
+		if (stream >= 0 && videoStart != Long.MIN_VALUE) {
+			writeAudio(recorder, videoStart + (long)Math.ceil((frameIndex + 1) * 1000000 / frameRate));
+		}
+	}
+	
+	// Write the rest of the audio, and the frames still in the video encoder.
+	// Call this after the last video frame, just before stopping the recorder.
+	synchronized void finish(final FFmpegFrameRecorder recorder) throws Exception {
+		if (stream < 0) {
+			return; // The recorder flushes the encoder itself
+		}
+		if (videoStart != Long.MIN_VALUE) {
+			writeAudio(recorder, Long.MAX_VALUE);
+		}
+		
+		// The recorder does not flush the video encoder when it was started with a format
+		while (recorder.recordImage(0, 0, 0, 0, 0, avutil.AV_PIX_FMT_NONE, (Buffer[])null)) {
+			// Write the delayed frames
+		}
+	}
+	
+	// Release the input.  The recorder must be stopped first.
+	synchronized void release() throws Exception {
+		if (demuxer != null) {
+			demuxer.release();
+			demuxer = null;
+		}
+		if (audioFormat != null) {
+			avformat.avformat_free_context(audioFormat);
+			audioFormat = null;
+		}
+		pendingPacket = null;
+	}
+	
+	// Return the number of audio packets copied
+	synchronized int getPacketsWritten() {
+		return packetsWritten;
+	}
+	
+	// Copy the audio packets with timestamps before 'until' (and before the end of the range)
+	private void writeAudio(final FFmpegFrameRecorder recorder, final long until) throws Exception {
+		final long offset = avutil.av_rescale_q(videoStart, avutil.av_make_q(1, 1000000), timeBase);
+		while (!isAudioDone) {
+			if (pendingPacket == null) {
+				final AVPacket packet = demuxer.grabPacket();
+				if (packet == null) {
+					isAudioDone = true;
+					break;
+				}
+				if (packet.stream_index() != stream ||
+						(packet.pts() == avutil.AV_NOPTS_VALUE && packet.dts() == avutil.AV_NOPTS_VALUE)) {
+					avcodec.av_packet_unref(packet);
+					continue;
+				}
+				if (packet.pts() == avutil.AV_NOPTS_VALUE) {
+					packet.pts(packet.dts());
+				} else if (packet.dts() == avutil.AV_NOPTS_VALUE) {
+					packet.dts(packet.pts());
+				}
+				pendingPacket = packet;
+			}
+			
+			final long timestamp = 1000000L * pendingPacket.pts() * timeBase.num() / timeBase.den();
+			if (timestamp >= end) {
+				avcodec.av_packet_unref(pendingPacket);
+				pendingPacket = null;
+				isAudioDone = true;
+				break;
+			}
+			if (timestamp >= until) {
+				break; // Not due yet
+			}
+			
+			// Skip the audio before the first video frame, and packets that overlap the ones written
+			final long dts = pendingPacket.dts() - offset;
+			if (timestamp < videoStart || dts <= lastDts) {
+				avcodec.av_packet_unref(pendingPacket);
+				pendingPacket = null;
+				continue;
+			}
+			pendingPacket.pts(pendingPacket.pts() - offset);
+			pendingPacket.dts(dts);
+			pendingPacket.stream_index(0); // The stream in audioFormat
+			lastDts = dts;
+			
+			// This converts the timestamps to the time base of the output, and releases the packet
+			recorder.recordPacket(pendingPacket);
+			pendingPacket = null;
+			packetsWritten++;
+		}
+	}
+}
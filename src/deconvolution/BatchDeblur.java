@@ -0,0 +1,542 @@
+package deconvolution;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
+import javax.imageio.stream.FileImageOutputStream;
+
+// Command-line program for deblurring many images without the GUI.
+// Files are processed in a pipeline: reader threads decode images, a few deblur jobs run on
+// the shared ParallelExecutor, and writer threads encode the results.  The stages are connected
+// by bounded queues, so disk and codec work overlaps with the deblurring without using unbounded memory.
+// Example:
+//   java deconvolution.BatchDeblur --algorithm fast --radius 12 --output out "photos/**/*.jpg"
+
+public class BatchDeblur {
+	
+	// One file moving through the pipeline
+	private static class Job {
+		final Path input;
+		final Path output;
+		PlanarImage image;
+		
+		Job(final Path input, final Path output) {
+			this.input = input;
+			this.output = output;
+		}
+	}
+	
+	// Marks the end of the input for the next stage of the pipeline
+	private static final Job END = new Job(null, null);
+	
+	// Settings from the command line
+	private static DeconvolutionRequest request;
+	private static Path outputFolder = null;
+	private static String outputFormat = null; // Null to keep the format of each input file
+	private static float jpgQuality = 0.9f;
+	private static int readerCount = 2;
+	private static int jobCount = 2;
+	private static int writerCount = 2;
+	private static int queueCapacity = 4;
+	
+	// Statistics for the final report
+	private static final AtomicInteger imagesCompleted = new AtomicInteger();
+	private static final AtomicInteger imagesFailed = new AtomicInteger();
+	private static final AtomicLong pixelsCompleted = new AtomicLong();
+	private static final AtomicLong deblurNanos = new AtomicLong();
+	
+	public static void main(String[] args) {
+		
+		final List<String> inputs;
+		try {
+			inputs = parseArguments(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Error: " + e.getMessage());
+			System.err.println();
+			printUsage();
+			System.exit(1);
+			return;
+		}
+		
+		// Find all of the files to process
+		final Map<Path, Path> files = new LinkedHashMap<Path, Path>();
+		for (String input : inputs) {
+			try {
+				expandInput(input, files);
+			} catch (IOException e) {
+				System.err.println("Cannot read " + input + ": " + e.getMessage());
+			}
+		}
+		if (files.isEmpty()) {
+			System.err.println("No images found");
+			System.exit(1);
+		}
+		
+		print("Processing " + files.size() + " images with " + request + " on " + Algorithms.numThreads + " threads");
+		
+		final long startTime = System.nanoTime();
+		runPipeline(files);
+		final double seconds = (System.nanoTime() - startTime) / 1e9;
+		
+		// Report the throughput
+		final int completed = imagesCompleted.get();
+		print(String.format(Locale.ROOT, "Processed %d images (%d failed) in %.2f s", completed, imagesFailed.get(), seconds));
+		print(String.format(Locale.ROOT, "Throughput: %.2f images/s, %.2f megapixels/s",
+				completed / seconds, pixelsCompleted.get() / 1e6 / seconds));
+		if (completed > 0) {
+			print(String.format(Locale.ROOT, "Average deblur time: %.1f ms per image",
+					deblurNanos.get() / 1e6 / completed));
+		}
+		
+		System.exit(imagesFailed.get() == 0 ? 0 : 2);
+	}
+	
+	// Run the decode -> deblur -> encode pipeline over all of the files, and wait for it to finish.
+	// 'files' maps each input file to its output file.
+	private static void runPipeline(final Map<Path, Path> files) {
+		
+		final ConcurrentLinkedQueue<Job> pending = new ConcurrentLinkedQueue<Job>();
+		for (Map.Entry<Path, Path> entry : files.entrySet()) {
+			pending.add(new Job(entry.getKey(), entry.getValue()));
+		}
+		
+		final BlockingQueue<Job> decoded = new ArrayBlockingQueue<Job>(queueCapacity);
+		final BlockingQueue<Job> processed = new ArrayBlockingQueue<Job>(queueCapacity);
+		
+		final AtomicInteger readersRunning = new AtomicInteger(readerCount);
+		final AtomicInteger jobsRunning = new AtomicInteger(jobCount);
+		
+		final List<Thread> threads = new ArrayList<Thread>();
+		
+		// Decode the images
+		for (int i = 0; i < readerCount; i++) {
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					try {
+						Job job;
+						while ((job = pending.poll()) != null) {
+							try {
+								final BufferedImage image = ImageIO.read(job.input.toFile());
+								if (image == null) {
+									throw new IOException("unsupported image format");
+								}
+								job.image = Deconvolver.toPlanarImage(image);
+								put(decoded, job);
+							} catch (Throwable e) {
+								// Errors too (eg. OutOfMemoryError on a huge image), so the other images go on
+								fail(job, e);
+							}
+						}
+					} finally {
+						// The last reader to finish tells the deblur jobs to stop
+						if (readersRunning.decrementAndGet() == 0) {
+							for (int j = 0; j < jobCount; j++) {
+								put(decoded, END);
+							}
+						}
+					}
+				}
+			}, "Batch reader " + i));
+		}
+		
+		// Deblur the images.  Each image is already processed by all of the ParallelExecutor threads,
+		// so a few of these are only needed to hide the single-threaded parts of the algorithms.
+		for (int i = 0; i < jobCount; i++) {
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					final Deconvolver deconvolver = new Deconvolver();
+					try {
+						Job job;
+						while ((job = take(decoded)) != END) {
+							try {
+								final long start = System.nanoTime();
+								job.image = deconvolver.deconvolve(job.image, request);
+								deblurNanos.addAndGet(System.nanoTime() - start);
+								put(processed, job);
+							} catch (Throwable e) {
+								// Errors too: LinkageError is thrown when a native library (eg. OpenCV for Wiener)
+								// is missing, and a large image may run out of memory.  If this thread died, the
+								// readers would block forever once every deblur thread was gone.
+								fail(job, e);
+							}
+						}
+					} finally {
+						// The last deblur job to finish tells the writers to stop
+						if (jobsRunning.decrementAndGet() == 0) {
+							for (int j = 0; j < writerCount; j++) {
+								put(processed, END);
+							}
+						}
+					}
+				}
+			}, "Batch deblur " + i));
+		}
+		
+		// Encode the images
+		for (int i = 0; i < writerCount; i++) {
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					Job job;
+					while ((job = take(processed)) != END) {
+						try {
+							writeImage(Deconvolver.toBufferedImage(job.image), job.output);
+							pixelsCompleted.addAndGet((long)job.image.width * job.image.height);
+							imagesCompleted.incrementAndGet();
+							job.image = null;
+						} catch (Throwable e) {
+							// Errors too, so the deblur threads never block on a full queue with no writers
+							fail(job, e);
+						}
+					}
+				}
+			}, "Batch writer " + i));
+		}
+		
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+	
+	// Encode the image to the given file, in the format given by its extension
+	private static void writeImage(final BufferedImage image, final Path file) throws IOException {
+		final Path parent = file.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+		
+		final String format = getExtension(file);
+		if (format.equals("jpg") || format.equals("jpeg")) {
+			final JPEGImageWriteParam jpegParams = new JPEGImageWriteParam(null);
+			jpegParams.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			jpegParams.setCompressionQuality(jpgQuality);
+			
+			final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+			final FileImageOutputStream output = new FileImageOutputStream(file.toFile());
+			try {
+				writer.setOutput(output);
+				writer.write(null, new IIOImage(image, null, null), jpegParams);
+			} finally {
+				output.close();
+				writer.dispose();
+			}
+		} else if (!ImageIO.write(image, format, file.toFile())) {
+			throw new IOException("no image writer for format " + format);
+		}
+	}
+	
+	// Add the files matching a file name, folder, or glob pattern (eg. "photos/**/*.jpg") to 'files'.
+	// The output file of each input keeps its path relative to the folder that was searched.
+	private static void expandInput(String input, final Map<Path, Path> files) throws IOException {
+		if (File.separatorChar == '\\') {
+			input = input.replace('\\', '/');
+		}
+		
+		// Find the folder to search, which is the part of the path before the first wildcard
+		final String[] parts = input.split("/", -1);
+		int firstGlobPart = parts.length;
+		for (int i = 0; i < parts.length; i++) {
+			if (isGlob(parts[i])) {
+				firstGlobPart = i;
+				break;
+			}
+		}
+		
+		if (firstGlobPart == parts.length) {
+			final Path path = Paths.get(input);
+			if (Files.isDirectory(path)) {
+				// Take all of the images directly inside the folder
+				final List<Path> children = new ArrayList<Path>();
+				try (Stream<Path> stream = Files.list(path)) {
+					final Iterator<Path> iterator = stream.iterator();
+					while (iterator.hasNext()) {
+						final Path child = iterator.next();
+						if (Files.isRegularFile(child) && isImageFile(child)) {
+							children.add(child);
+						}
+					}
+				}
+				Collections.sort(children);
+				for (Path child : children) {
+					addFile(child, path.relativize(child), files);
+				}
+			} else if (Files.isRegularFile(path)) {
+				addFile(path, path.getFileName(), files);
+			} else {
+				throw new IOException("file not found");
+			}
+			return;
+		}
+		
+		final StringBuilder baseName = new StringBuilder();
+		for (int i = 0; i < firstGlobPart; i++) {
+			baseName.append(parts[i]).append('/');
+		}
+		final Path base = baseName.length() == 0 ? Paths.get(".") : Paths.get(baseName.toString());
+		final String pattern = input.substring(baseName.length());
+		
+		// Let "**/" also match zero folders, so "photos/**/*.jpg" includes the files directly inside "photos"
+		String matcherPattern = pattern;
+		if (pattern.indexOf('{') == -1) {
+			matcherPattern = pattern.replace("**/", "{**/,}");
+		}
+		final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + matcherPattern);
+		
+		// Search the folder (and subfolders if the pattern can cross folders) for matching files
+		final int maxDepth = pattern.contains("**") ? Integer.MAX_VALUE : parts.length - firstGlobPart;
+		final List<Path> matches = new ArrayList<Path>();
+		try (Stream<Path> stream = Files.walk(base, maxDepth)) {
+			final Iterator<Path> iterator = stream.iterator();
+			while (iterator.hasNext()) {
+				final Path path = iterator.next();
+				if (Files.isRegularFile(path) && matcher.matches(base.relativize(path))) {
+					matches.add(path);
+				}
+			}
+		}
+		Collections.sort(matches);
+		for (Path path : matches) {
+			addFile(path, base.relativize(path), files);
+		}
+	}
+	
+	// Add a file to be processed.  'relativePath' is where it is placed inside the output folder.
+	private static void addFile(final Path input, final Path relativePath, final Map<Path, Path> files) {
+		Path output;
+		String name = relativePath.getFileName().toString();
+		final String extension = outputFormat == null ? getExtension(input) : outputFormat;
+		final int dot = name.lastIndexOf('.');
+		if (dot > 0) {
+			name = name.substring(0, dot);
+		}
+		
+		if (outputFolder != null) {
+			output = outputFolder.resolve(relativePath).resolveSibling(name + "." + extension);
+		} else {
+			output = input.resolveSibling(name + "_deblurred." + extension);
+		}
+		
+		files.put(input, output);
+	}
+	
+	// Return true if this part of a path contains glob wildcards
+	private static boolean isGlob(final String part) {
+		return part.indexOf('*') != -1 || part.indexOf('?') != -1 ||
+				part.indexOf('[') != -1 || part.indexOf('{') != -1;
+	}
+	
+	// Return true if ImageIO can decode files with this extension
+	private static boolean isImageFile(final Path file) {
+		return ImageIO.getImageReadersBySuffix(getExtension(file)).hasNext();
+	}
+	
+	// Return the lower-case extension of the file name, or "png" if there is none
+	private static String getExtension(final Path file) {
+		final String name = file.getFileName().toString();
+		final int dot = name.lastIndexOf('.');
+		if (dot <= 0 || dot == name.length() - 1) {
+			return "png";
+		}
+		return name.substring(dot + 1).toLowerCase(Locale.ROOT);
+	}
+	
+	// Report a file that could not be processed, and continue with the rest
+	private static void fail(final Job job, final Throwable e) {
+		job.image = null; // Free the memory, in case the error was an OutOfMemoryError
+		imagesFailed.incrementAndGet();
+		System.err.println("Failed to process " + job.input + ": " + e.getMessage());
+	}
+	
+	// Blocking put.  Interruption is not expected, so it is treated as an error.
+	private static void put(final BlockingQueue<Job> queue, final Job job) {
+		try {
+			queue.put(job);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted", e);
+		}
+	}
+	
+	// Blocking take.  Interruption is not expected, so it is treated as an error.
+	private static Job take(final BlockingQueue<Job> queue) {
+		try {
+			return queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted", e);
+		}
+	}
+	
+	// Read the options into the static settings, and return the list of inputs
+	private static List<String> parseArguments(final String[] args) {
+		String algorithm = "fast";
+		float radius = -1;
+		float amount = 1;
+		int iterations = -1;
+		int snr = 100;
+		boolean wienerOpenCV = false;
+		int wienerTileSize = 0;
+		float weight = 1;
+		
+		final List<String> inputs = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			final String arg = args[i];
+			if (!arg.startsWith("-")) {
+				inputs.add(arg);
+				continue;
+			}
+			if (arg.equals("-h") || arg.equals("--help")) {
+				printUsage();
+				System.exit(0);
+			}
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for " + arg);
+			}
+			final String value = args[++i];
+			try {
+				if (arg.equals("-a") || arg.equals("--algorithm")) {
+					algorithm = value.toLowerCase(Locale.ROOT);
+				} else if (arg.equals("-r") || arg.equals("--radius")) {
+					radius = Float.parseFloat(value);
+				} else if (arg.equals("--amount")) {
+					amount = Float.parseFloat(value);
+				} else if (arg.equals("--iterations")) {
+					iterations = Integer.parseInt(value);
+				} else if (arg.equals("--snr")) {
+					snr = Integer.parseInt(value);
+				} else if (arg.equals("--wiener-backend")) {
+					if (!value.equals("java") && !value.equals("opencv")) {
+						throw new IllegalArgumentException("Unknown Wiener backend " + value);
+					}
+					wienerOpenCV = value.equals("opencv");
+				} else if (arg.equals("--wiener-tile-size")) {
+					wienerTileSize = positive(arg, Integer.parseInt(value));
+				} else if (arg.equals("--weight")) {
+					weight = Float.parseFloat(value);
+				} else if (arg.equals("-o") || arg.equals("--output")) {
+					outputFolder = Paths.get(value);
+				} else if (arg.equals("--format")) {
+					outputFormat = value.toLowerCase(Locale.ROOT);
+				} else if (arg.equals("--quality")) {
+					jpgQuality = Float.parseFloat(value);
+					if (jpgQuality <= 0 || jpgQuality > 1) {
+						throw new IllegalArgumentException("JPG quality must be in the range (0, 1]");
+					}
+				} else if (arg.equals("--threads")) {
+					Algorithms.numThreads = positive(arg, Integer.parseInt(value));
+				} else if (arg.equals("--jobs")) {
+					jobCount = positive(arg, Integer.parseInt(value));
+				} else if (arg.equals("--readers")) {
+					readerCount = positive(arg, Integer.parseInt(value));
+				} else if (arg.equals("--writers")) {
+					writerCount = positive(arg, Integer.parseInt(value));
+				} else if (arg.equals("--queue")) {
+					queueCapacity = positive(arg, Integer.parseInt(value));
+				} else {
+					throw new IllegalArgumentException("Unknown option " + arg);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid number for " + arg + ": " + value);
+			}
+		}
+		
+		if (inputs.isEmpty()) {
+			throw new IllegalArgumentException("No input files given");
+		}
+		if (radius <= 0) {
+			throw new IllegalArgumentException("A positive --radius is required");
+		}
+		
+		request = createRequest(algorithm, radius, amount, iterations, snr, wienerOpenCV, wienerTileSize, weight);
+		
+		return inputs;
+	}
+	
+	// Create the request for the command-line algorithm name (fast, rl, wiener, or sharpen).
+	// An iteration count of -1 means the default for the algorithm.
+	static DeconvolutionRequest createRequest(final String algorithm, final float radius, final float amount,
+			final int iterations, final int snr, final boolean wienerOpenCV, final int wienerTileSize,
+			final float weight) {
+		if (algorithm.equals("fast")) {
+			return DeconvolutionRequest.fastMethod(radius, amount, iterations == -1 ? 1 : iterations);
+		} else if (algorithm.equals("rl")) {
+			return DeconvolutionRequest.richardsonLucy(radius, iterations == -1 ? 10 : iterations);
+		} else if (algorithm.equals("wiener")) {
+			return DeconvolutionRequest.wiener(Math.round(radius), snr, wienerOpenCV, wienerTileSize);
+		} else if (algorithm.equals("sharpen")) {
+			return DeconvolutionRequest.sharpen(radius, weight);
+		} else {
+			throw new IllegalArgumentException("Unknown algorithm " + algorithm);
+		}
+	}
+	
+	// Return the value if it is at least 1
+	private static int positive(final String option, final int value) {
+		if (value < 1) {
+			throw new IllegalArgumentException(option + " must be at least 1");
+		}
+		return value;
+	}
+	
+	private static void printUsage() {
+		print("Usage: java deconvolution.BatchDeblur [options] <files, folders, or globs>...");
+		print("");
+		print("Globs such as \"photos/*.jpg\" or \"photos/**/*.png\" should be quoted so the shell does not expand them.");
+		print("");
+		print("Options:");
+		print("  -a, --algorithm <name>   fast (Fast-Method, default), rl (Richardson-Lucy), wiener, or sharpen");
+		print("  -r, --radius <pixels>    Blur radius (required)");
+		print("  --amount <value>         Fast-Method amount (default 1)");
+		print("  --iterations <count>     Fast-Method iterations (default 1), or Richardson-Lucy iterations (default 10)");
+		print("  --snr <value>            Wiener signal-to-noise ratio (default 100)");
+		print("  --wiener-backend <name>  java (default), or opencv for the native OpenCV DFT");
+		print("  --wiener-tile-size <px>  Deconvolve larger images in overlapping tiles of about this size, to save");
+		print("                           memory (java backend only; default: whole images)");
+		print("  --weight <value>         Sharpen weight (default 1)");
+		print("  -o, --output <folder>    Output folder.  By default, results are saved next to each input");
+		print("                           with a \"_deblurred\" suffix.");
+		print("  --format <png|jpg|...>   Output format (default: the format of each input)");
+		print("  --quality <0-1>          JPG quality (default 0.9)");
+		print("  --threads <count>        Threads used to process each image (default: number of cores)");
+		print("  --jobs <count>           Images deblurred at the same time (default 2)");
+		print("  --readers <count>        Decoder threads (default 2)");
+		print("  --writers <count>        Encoder threads (default 2)");
+		print("  --queue <count>          Images buffered between stages (default 4)");
+	}
+	
+	// Easy print function
+	static void print(final Object o) {
+		System.out.println(o);
+	}
+}
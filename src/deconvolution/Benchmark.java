@@ -0,0 +1,438 @@
+package deconvolution;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+// Command-line benchmark for the CPU algorithms, run on synthetic images.
+// Every algorithm is timed over a matrix of image sizes, blur radii, and thread counts.
+// Each measurement starts with some untimed warm-up runs (so the JIT has compiled the hot loops),
+// followed by timed runs that are summarized as min / median / mean.
+// The synthetic images come from a fixed seed, so numbers can be compared between builds and machines.
+// Example:
+//   java deconvolution.Benchmark --sizes 1280x720,3840x2160 --radii 4,16 --threads 1,8 --csv results.csv
+
+public class Benchmark {
+	
+	// The input data for one image size, shared by all algorithms
+	private static class Input {
+		final int width;
+		final int height;
+		final PlanarImage image;
+		final BufferedImage bufferedImage;
+		final float[] samples; // One-dimensional signal with the same number of samples as the image has pixels
+		
+		Input(final int width, final int height, final long seed) {
+			this.width = width;
+			this.height = height;
+			this.image = generateImage(width, height, seed);
+			this.bufferedImage = Algorithms.arrayToImage(image);
+			this.samples = generateSamples(width * height, seed);
+		}
+	}
+	
+	// One algorithm under test
+	private static abstract class Case {
+		final String name;
+		final boolean usesRadius;
+		final boolean usesThreads;
+		
+		// Set to false when the algorithm cannot run on this machine
+		boolean isAvailable = true;
+		
+		Case(final String name, final boolean usesRadius, final boolean usesThreads) {
+			this.name = name;
+			this.usesRadius = usesRadius;
+			this.usesThreads = usesThreads;
+		}
+		
+		// Run the algorithm once, and return a value computed from the result
+		// (so the JIT cannot remove the work as unused).
+		abstract double run(Input input, float radius);
+	}
+	
+	// Results are added to this, so that they are never unused
+	private static volatile double sink = 0;
+	
+	// Monitor for every run.  It is never canceled.
+	private static final ProgressMonitor monitor = new ProgressMonitor();
+	
+	// Settings from the command line
+	private static int[][] sizes = {{640, 480}, {1920, 1080}};
+	private static float[] radii = {2, 8, 20};
+	private static int[] threadCounts = {1, Math.max(Runtime.getRuntime().availableProcessors(), 1)};
+	private static List<String> caseNames = null; // Null for all cases
+	private static int warmupRuns = 2;
+	private static int timedRuns = 5;
+	private static int rlIterations = 5;
+	private static int iterations1D = 1;
+	private static int wienerSNR = 100;
+	private static long seed = 1;
+	private static Path csvPath = null;
+	
+	public static void main(String[] args) {
+		
+		try {
+			parseArguments(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Error: " + e.getMessage());
+			System.err.println();
+			printUsage();
+			System.exit(1);
+			return;
+		}
+		
+		final List<Case> cases = selectCases(createCases());
+		
+		print("Java " + System.getProperty("java.version") + " (" + System.getProperty("java.vm.name") + "), " +
+				System.getProperty("os.name") + " " + System.getProperty("os.arch") + ", " +
+				Runtime.getRuntime().availableProcessors() + " cores, " + new Date());
+		print("Fast-Method interior: " + (Algorithms.fastMethodSpan != null ?
+				Algorithms.fastMethodSpan.getName() : "scalar"));
+		print("Warm-up runs: " + warmupRuns + ", timed runs: " + timedRuns + ", seed: " + seed);
+		print("");
+		print(String.format(Locale.ROOT, "%-10s %11s %7s %8s %10s %10s %10s %9s",
+				"algorithm", "size", "radius", "threads", "min ms", "median ms", "mean ms", "MP/s"));
+		
+		final List<String> csvLines = new ArrayList<String>();
+		csvLines.add("algorithm,width,height,radius,threads,runs,min_ms,median_ms,mean_ms,megapixels_per_s");
+		
+		final int originalThreads = Algorithms.numThreads;
+		
+		for (int[] size : sizes) {
+			final Input input = new Input(size[0], size[1], seed);
+			
+			for (Case c : cases) {
+				if (!c.isAvailable) {
+					continue;
+				}
+				final int[] caseThreads = c.usesThreads ? threadCounts : new int[] {1};
+				final float[] caseRadii = c.usesRadius ? radii : new float[] {0};
+				
+				for (int threads : caseThreads) {
+					Algorithms.numThreads = threads;
+					for (float radius : caseRadii) {
+						if (!c.isAvailable) {
+							break;
+						}
+						final double[] millis;
+						try {
+							millis = measure(c, input, radius);
+						} catch (LinkageError e) {
+							// Usually a missing native library (eg. OpenCV for Wiener)
+							print(String.format(Locale.ROOT, "%-10s skipped: %s", c.name, e));
+							c.isAvailable = false;
+							continue;
+						}
+						
+						final double min = millis[0];
+						final double median = median(millis);
+						final double mean = mean(millis);
+						final double megapixelsPerSecond = input.width * (double)input.height / 1e6 / (median / 1000);
+						
+						final String radiusText = c.usesRadius ? formatRadius(radius) : "-";
+						final String threadsText = c.usesThreads ? Integer.toString(threads) : "-";
+						print(String.format(Locale.ROOT, "%-10s %11s %7s %8s %10.2f %10.2f %10.2f %9.2f",
+								c.name, input.width + "x" + input.height, radiusText, threadsText,
+								min, median, mean, megapixelsPerSecond));
+						csvLines.add(String.format(Locale.ROOT, "%s,%d,%d,%s,%s,%d,%.3f,%.3f,%.3f,%.3f",
+								c.name, input.width, input.height, radiusText, threadsText, millis.length,
+								min, median, mean, megapixelsPerSecond));
+					}
+				}
+			}
+		}
+		
+		Algorithms.numThreads = originalThreads;
+		
+		if (csvPath != null) {
+			try {
+				Files.write(csvPath, csvLines, StandardCharsets.UTF_8);
+				print("");
+				print("Saved " + csvPath);
+			} catch (IOException e) {
+				System.err.println("Could not write " + csvPath + ": " + e);
+				System.exit(2);
+			}
+		}
+	}
+	
+	// Every algorithm that can be benchmarked
+	private static List<Case> createCases() {
+		final List<Case> cases = new ArrayList<Case>();
+		cases.add(new Case("fast", true, true) {
+			double run(final Input input, final float radius) {
+				return checksum(Algorithms.fastMethod(input.image, input.image, 1, radius, monitor));
+			}
+		});
+		cases.add(new Case("rl", true, true) {
+			double run(final Input input, final float radius) {
+				return checksum(Algorithms.richardsonLucy(input.image, radius, rlIterations, monitor));
+			}
+		});
+		cases.add(new Case("wiener", true, true) {
+			double run(final Input input, final float radius) {
+				return checksum(WienerFilter.wienerDeconvolvePublic(input.image,
+						Math.max(Math.round(radius), 1), wienerSNR, false, 0, monitor));
+			}
+		});
+		cases.add(new Case("sharpen", true, true) {
+			double run(final Input input, final float radius) {
+				return checksum(Algorithms.sharpen(input.image, 1, radius, monitor));
+			}
+		});
+		cases.add(new Case("blur", true, true) {
+			double run(final Input input, final float radius) {
+				return checksum(Algorithms.diskBlur(input.image, radius, monitor));
+			}
+		});
+		cases.add(new Case("adjust", false, true) {
+			double run(final Input input, final float radius) {
+				return checksum(Algorithms.adjust(input.image, 10, 5, 10, 1, monitor));
+			}
+		});
+		cases.add(new Case("convert", false, true) {
+			double run(final Input input, final float radius) {
+				final PlanarImage image = Algorithms.imageToArray(input.bufferedImage);
+				final BufferedImage bufferedImage = Algorithms.arrayToImage(image);
+				return checksum(image) + bufferedImage.getRGB(0, 0);
+			}
+		});
+		cases.add(new Case("deblur1d", true, false) {
+			double run(final Input input, final float radius) {
+				final float[] result = Algorithms.deblur1Dv2(input.samples, Math.max(Math.round(radius), 1), iterations1D);
+				return result[result.length / 2];
+			}
+		});
+		return cases;
+	}
+	
+	// Keep only the cases that were asked for, in the order they were asked for
+	private static List<Case> selectCases(final List<Case> allCases) {
+		if (caseNames == null) {
+			return allCases;
+		}
+		final List<Case> cases = new ArrayList<Case>();
+		for (String name : caseNames) {
+			for (Case c : allCases) {
+				if (c.name.equals(name)) {
+					cases.add(c);
+				}
+			}
+		}
+		return cases;
+	}
+	
+	// Time the case, and return the duration of every timed run in milliseconds, sorted
+	private static double[] measure(final Case c, final Input input, final float radius) {
+		for (int i = 0; i < warmupRuns; i++) {
+			sink += c.run(input, radius);
+		}
+		
+		final double[] millis = new double[timedRuns];
+		for (int i = 0; i < timedRuns; i++) {
+			final long startTime = System.nanoTime();
+			sink += c.run(input, radius);
+			millis[i] = (System.nanoTime() - startTime) / 1e6;
+		}
+		Arrays.sort(millis);
+		return millis;
+	}
+	
+	// Sum of a few pixels of the result
+	private static double checksum(final PlanarImage image) {
+		return image.get(0, 0, 0) + image.get(1, image.width / 2, image.height / 2) +
+				image.get(2, image.width - 1, image.height - 1);
+	}
+	
+	// Median of a sorted array
+	private static double median(final double[] sorted) {
+		final int n = sorted.length;
+		if (n % 2 == 1) {
+			return sorted[n / 2];
+		}
+		return (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+	}
+	
+	// Mean of an array
+	private static double mean(final double[] values) {
+		double sum = 0;
+		for (double value : values) {
+			sum += value;
+		}
+		return sum / values.length;
+	}
+	
+	// Create a photo-like test image: smooth shading, hard-edged shapes, and some noise.
+	// Colors are in the range [0, 255].
+	static PlanarImage generateImage(final int width, final int height, final long seed) {
+		final Random random = new Random(seed);
+		final PlanarImage image = new PlanarImage(width, height);
+		
+		// Random rectangles, so the image has edges for the algorithms to work on
+		final int rectangles = 40;
+		final int[][] rects = new int[rectangles][];
+		for (int i = 0; i < rectangles; i++) {
+			final int x = random.nextInt(width);
+			final int y = random.nextInt(height);
+			rects[i] = new int[] {x, y, x + 1 + random.nextInt(Math.max(width / 4, 1)),
+					y + 1 + random.nextInt(Math.max(height / 4, 1)), random.nextInt(3), random.nextInt(120)};
+		}
+		
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				final double shade = 100 + 60 * Math.sin(x * 0.013) * Math.cos(y * 0.021);
+				for (int c = 0; c < 3; c++) {
+					double value = shade + c * 10 + random.nextGaussian() * 4;
+					for (int[] rect : rects) {
+						if (rect[4] == c && x >= rect[0] && x < rect[2] && y >= rect[1] && y < rect[3]) {
+							value += rect[5];
+						}
+					}
+					image.set(c, x, y, (float)Math.max(0, Math.min(255, value)));
+				}
+			}
+		}
+		return image;
+	}
+	
+	// Create an audio-like test signal: a few tones plus noise, in the range [-1, 1]
+	static float[] generateSamples(final int count, final long seed) {
+		final Random random = new Random(seed);
+		final float[] samples = new float[count];
+		for (int i = 0; i < count; i++) {
+			final double value = 0.4 * Math.sin(i * 0.01) + 0.2 * Math.sin(i * 0.13) + 0.1 * Math.sin(i * 0.77) +
+					random.nextGaussian() * 0.02;
+			samples[i] = (float)Math.max(-1, Math.min(1, value));
+		}
+		return samples;
+	}
+	
+	// Print whole radii without a decimal
+	private static String formatRadius(final float radius) {
+		if (radius == Math.rint(radius)) {
+			return Integer.toString((int)radius);
+		}
+		return Float.toString(radius);
+	}
+	
+	// Read the options into the static settings
+	private static void parseArguments(final String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			final String arg = args[i];
+			if (arg.equals("-h") || arg.equals("--help")) {
+				printUsage();
+				System.exit(0);
+			}
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for " + arg);
+			}
+			final String value = args[++i];
+			try {
+				if (arg.equals("--sizes")) {
+					final String[] parts = value.split(",");
+					sizes = new int[parts.length][];
+					for (int j = 0; j < parts.length; j++) {
+						final String[] dimensions = parts[j].trim().toLowerCase(Locale.ROOT).split("x");
+						if (dimensions.length != 2) {
+							throw new IllegalArgumentException("Sizes must look like 1920x1080: " + parts[j]);
+						}
+						sizes[j] = new int[] {positive(arg, Integer.parseInt(dimensions[0])),
+								positive(arg, Integer.parseInt(dimensions[1]))};
+					}
+				} else if (arg.equals("--radii")) {
+					final String[] parts = value.split(",");
+					radii = new float[parts.length];
+					for (int j = 0; j < parts.length; j++) {
+						radii[j] = Float.parseFloat(parts[j].trim());
+						if (!(radii[j] > 0)) {
+							throw new IllegalArgumentException("Radii must be positive: " + parts[j]);
+						}
+					}
+				} else if (arg.equals("--threads")) {
+					final String[] parts = value.split(",");
+					threadCounts = new int[parts.length];
+					for (int j = 0; j < parts.length; j++) {
+						threadCounts[j] = positive(arg, Integer.parseInt(parts[j].trim()));
+					}
+				} else if (arg.equals("-a") || arg.equals("--algorithms")) {
+					caseNames = new ArrayList<String>();
+					final List<String> known = new ArrayList<String>();
+					for (Case c : createCases()) {
+						known.add(c.name);
+					}
+					for (String name : value.split(",")) {
+						name = name.trim().toLowerCase(Locale.ROOT);
+						if (!known.contains(name)) {
+							throw new IllegalArgumentException("Unknown algorithm " + name);
+						}
+						caseNames.add(name);
+					}
+				} else if (arg.equals("--warmup")) {
+					warmupRuns = Integer.parseInt(value);
+					if (warmupRuns < 0) {
+						throw new IllegalArgumentException("--warmup must not be negative");
+					}
+				} else if (arg.equals("--runs")) {
+					timedRuns = positive(arg, Integer.parseInt(value));
+				} else if (arg.equals("--rl-iterations")) {
+					rlIterations = positive(arg, Integer.parseInt(value));
+				} else if (arg.equals("--1d-iterations")) {
+					iterations1D = positive(arg, Integer.parseInt(value));
+				} else if (arg.equals("--snr")) {
+					wienerSNR = positive(arg, Integer.parseInt(value));
+				} else if (arg.equals("--seed")) {
+					seed = Long.parseLong(value);
+				} else if (arg.equals("--csv")) {
+					csvPath = Paths.get(value);
+				} else {
+					throw new IllegalArgumentException("Unknown option " + arg);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid number for " + arg + ": " + value);
+			}
+		}
+	}
+	
+	// Return the value if it is at least 1
+	private static int positive(final String option, final int value) {
+		if (value < 1) {
+			throw new IllegalArgumentException(option + " must be at least 1");
+		}
+		return value;
+	}
+	
+	private static void printUsage() {
+		print("Usage: java deconvolution.Benchmark [options]");
+		print("");
+		print("Options:");
+		print("  --sizes <WxH,...>        Image sizes (default 640x480,1920x1080)");
+		print("  --radii <r,...>          Blur radii (default 2,8,20)");
+		print("  --threads <n,...>        Thread counts (default 1 and the number of cores)");
+		print("  -a, --algorithms <a,...> Any of: fast, rl, wiener, sharpen, blur, adjust, convert, deblur1d");
+		print("                           (default: all).  convert is imageToArray + arrayToImage.");
+		print("  --warmup <count>         Untimed runs before each measurement (default 2)");
+		print("  --runs <count>           Timed runs per measurement (default 5)");
+		print("  --rl-iterations <count>  Richardson-Lucy iterations per run (default 5)");
+		print("  --1d-iterations <count>  deblur1Dv2 iterations per run (default 1)");
+		print("  --snr <value>            Wiener signal-to-noise ratio (default 100)");
+		print("  --seed <value>           Seed for the synthetic images (default 1)");
+		print("  --csv <file>             Also save the results as CSV");
+		print("");
+		print("Algorithms that are not affected by the radius or thread count are only run once per size.");
+	}
+	
+	// Easy print function
+	static void print(final Object o) {
+		System.out.println(o);
+	}
+}
@@ -2,7 +2,9 @@ package deconvolution;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
@@ -18,8 +20,25 @@ public class Deblur1D {
 	
 	static float audioSampleRate;
 	
+	// Frames deblurred at a time when streaming a sound file
+	static int streamChunkFrames = 65536;
+	
 	public static void main(String[] args) {
 		
+		// Deblur a sound file of any length: input output radius [iterations]
+		if (args.length >= 3) {
+			final int iterations = (args.length > 3) ? Integer.parseInt(args[3]) : 1;
+			final long startTime = System.currentTimeMillis();
+			try {
+				final long frames = deblurSoundFile(args[0], args[1], Integer.parseInt(args[2]), iterations);
+				print("Deblurred " + frames + " frames in " + (System.currentTimeMillis() - startTime) + " ms");
+			} catch (Exception e) {
+				e.printStackTrace();
+				System.exit(1);
+			}
+			return;
+		}
+		
 		/*
 		double[] errorValues = new double[1000];
 		for (int j = 1; j < errorValues.length; j++) {
@@ -160,7 +179,7 @@ public class Deblur1D {
 	}
 	
 	// Read in the sound file and write the waveform to a global array.
-	// Assumes 16 bit-depth.
+	// Reads 8, 16, 24, or 32-bit PCM.  Use deblurSoundFile() for long or multi-channel files.
 	static float[] readSoundFile(final String soundFilePath) {
 		
 		try {
@@ -169,30 +188,29 @@ public class Deblur1D {
 			if (format.getChannels() != 1) {
 				print("Audio must have a single channel!");
 				System.exit(0);
-			} else if (format.getSampleSizeInBits() != 16) {
-				print("Audio must be 16 bit format!");
-				System.exit(0);
-			} else if (format.getEncoding() != Encoding.PCM_SIGNED) {
-				print("Audio must be 16-bit Signed format! " + format.getEncoding());
+			} else if (!isSupportedFormat(format)) {
+				print("Audio must be 8, 16, 24, or 32-bit PCM format! " + format);
 				System.exit(0);
 			}
 			audioSampleRate = format.getSampleRate();
 			
-			int bytesToRead = stream.available();
-			byte[] bytes = new byte[bytesToRead];
-			stream.read(bytes);
+			// available() is only an estimate, so read until the end of the stream.
+			// The stream only reads whole frames (and returns 0 if there is less room than one frame), so the
+			// buffer always holds a whole number of frames.
+			byte[] bytes = new byte[format.getFrameSize() * 16384];
+			int bytesRead = 0;
+			int count;
+			while ((count = stream.read(bytes, bytesRead, bytes.length - bytesRead)) != -1) {
+				bytesRead += count;
+				if (bytesRead == bytes.length) {
+					bytes = Arrays.copyOf(bytes, bytes.length * 2);
+				}
+			}
+			stream.close();
 			
-			int samplesToRead = bytesToRead/2;
+			int samplesToRead = bytesRead / format.getFrameSize();
 			float[] soundSamples = new float[samplesToRead];
-			
-			// Every pair of bytes makes a sample
-			for (int i = 0; i < bytesToRead; i += 2) {
-				//short val = (short)(((bytes[i] & 0xFF) << 8) | (bytes[i + 1] & 0xFF));
-				short val = (short)(((bytes[i] & 0xFF)) | ((bytes[i + 1] & 0xFF) << 8));
-				soundSamples[i/2] = (float)val / Short.MAX_VALUE;
-				
-				//printSample(soundSamples[i/2]);
-			}
+			decodeSamples(bytes, samplesToRead, format, soundSamples);
 			
 			return soundSamples;
 		} catch (Exception e) {
@@ -228,6 +246,184 @@ public class Deblur1D {
 		}
 	}
 	
+	// Deblur a sound file with deblur1Dv2(), and save it in the same format.
+	// The file is read, deblurred, and written a chunk at a time, so it can be any length, and each channel
+	// is deblurred separately.  Returns the number of frames written.
+	static long deblurSoundFile(final String inputPath, final String outputPath, final int radius,
+			final int iterations) throws Exception {
+		
+		final AudioInputStream input = AudioSystem.getAudioInputStream(new File(inputPath));
+		try {
+			final AudioFormat format = input.getFormat();
+			if (!isSupportedFormat(format)) {
+				throw new IllegalArgumentException("Audio must be 8, 16, 24, or 32-bit PCM format! " + format);
+			}
+			
+			// The writer reads the deblurred samples as they are needed.
+			// If the length is not known, it fills in the header once the stream ends.
+			final DeblurredSoundStream deblurred = new DeblurredSoundStream(input, radius, iterations);
+			final AudioInputStream output = new AudioInputStream(deblurred, format, input.getFrameLength());
+			AudioSystem.write(output, Type.WAVE, new File(outputPath));
+			return deblurred.getFramesWritten();
+		} finally {
+			input.close();
+		}
+	}
+	
+	// Return true if the samples can be converted by decodeSamples() and encodeSamples()
+	static boolean isSupportedFormat(final AudioFormat format) {
+		final int bits = format.getSampleSizeInBits();
+		return (format.getEncoding() == Encoding.PCM_SIGNED || format.getEncoding() == Encoding.PCM_UNSIGNED) &&
+				(bits == 8 || bits == 16 || bits == 24 || bits == 32) &&
+				format.getFrameSize() == bits / 8 * format.getChannels();
+	}
+	
+	// Convert 'frames' frames of PCM bytes to interleaved samples between -1 and 1
+	static void decodeSamples(final byte[] bytes, final int frames, final AudioFormat format, final float[] samples) {
+		final int bits = format.getSampleSizeInBits();
+		final int bytesPerSample = bits / 8;
+		final boolean isSigned = format.getEncoding() == Encoding.PCM_SIGNED;
+		final boolean isBigEndian = format.isBigEndian();
+		final double scale = (1L << (bits - 1)) - 1;
+		
+		final int sampleCount = frames * format.getChannels();
+		for (int i = 0; i < sampleCount; i++) {
+			final int offset = i * bytesPerSample;
+			int val = 0;
+			for (int b = 0; b < bytesPerSample; b++) {
+				val = (val << 8) | (bytes[isBigEndian ? offset + b : offset + bytesPerSample - 1 - b] & 0xFF);
+			}
+			
+			// Extend the sign, or move unsigned samples down so silence is 0
+			if (isSigned) {
+				val = (val << (32 - bits)) >> (32 - bits);
+			} else {
+				val -= 1 << (bits - 1);
+			}
+			samples[i] = (float)(val / scale);
+		}
+	}
+	
+	// Convert 'frames' frames of interleaved samples to PCM bytes, clipping them to the range of the format
+	static void encodeSamples(final float[] samples, final int frames, final AudioFormat format, final byte[] bytes) {
+		final int bits = format.getSampleSizeInBits();
+		final int bytesPerSample = bits / 8;
+		final boolean isSigned = format.getEncoding() == Encoding.PCM_SIGNED;
+		final boolean isBigEndian = format.isBigEndian();
+		final long max = (1L << (bits - 1)) - 1;
+		final long min = -(1L << (bits - 1));
+		
+		final int sampleCount = frames * format.getChannels();
+		for (int i = 0; i < sampleCount; i++) {
+			long val = Math.max(Math.min(Math.round(samples[i] * (double)max), max), min);
+			if (!isSigned) {
+				val -= min;
+			}
+			
+			final int offset = i * bytesPerSample;
+			for (int b = 0; b < bytesPerSample; b++) {
+				bytes[isBigEndian ? offset + bytesPerSample - 1 - b : offset + b] = (byte)(val >>> (8 * b));
+			}
+		}
+	}
+	
+	// An input stream of the deblurred bytes of a sound, in the same format as the original.
+	// Each read deblurs the next chunk of the original, as it is needed.
+	private static class DeblurredSoundStream extends InputStream {
+		
+		private final AudioInputStream input;
+		private final AudioFormat format;
+		private final StreamingDeblur1D deblur;
+		
+		private final byte[] inputBytes;
+		private final float[] inputSamples;
+		private final byte[] encodedBytes;
+		private boolean isInputDone = false;
+		
+		// Deblurred bytes not read yet
+		private byte[] outputBytes;
+		private int outputStart = 0;
+		private int outputEnd = 0;
+		private long framesWritten = 0;
+		
+		DeblurredSoundStream(final AudioInputStream input, final int radius, final int iterations) {
+			this.input = input;
+			this.format = input.getFormat();
+			final int frameSize = format.getFrameSize();
+			inputBytes = new byte[streamChunkFrames * frameSize];
+			inputSamples = new float[streamChunkFrames * format.getChannels()];
+			encodedBytes = new byte[streamChunkFrames * frameSize];
+			outputBytes = new byte[streamChunkFrames * frameSize];
+			
+			deblur = new StreamingDeblur1D(radius, iterations, format.getChannels(), streamChunkFrames,
+					new StreamingDeblur1D.Output() {
+				public void write(final float[] samples, final int frames) {
+					
+					// Move the unread bytes to the start, and make room for the new ones
+					final int length = frames * frameSize;
+					System.arraycopy(outputBytes, outputStart, outputBytes, 0, outputEnd - outputStart);
+					outputEnd -= outputStart;
+					outputStart = 0;
+					if (outputEnd + length > outputBytes.length) {
+						outputBytes = Arrays.copyOf(outputBytes, outputEnd + length);
+					}
+					
+					encodeSamples(samples, frames, format, encodedBytes);
+					System.arraycopy(encodedBytes, 0, outputBytes, outputEnd, length);
+					outputEnd += length;
+					framesWritten += frames;
+				}
+			});
+		}
+		
+		long getFramesWritten() {
+			return framesWritten;
+		}
+		
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+		}
+		
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (outputStart == outputEnd) {
+				if (isInputDone) {
+					return -1;
+				}
+				readChunk();
+			}
+			final int count = Math.min(len, outputEnd - outputStart);
+			System.arraycopy(outputBytes, outputStart, b, off, count);
+			outputStart += count;
+			return count;
+		}
+		
+		public int available() {
+			return outputEnd - outputStart;
+		}
+		
+		// Read and deblur the next chunk of the original
+		private void readChunk() throws IOException {
+			int bytesRead = 0;
+			int count = 0;
+			while (bytesRead < inputBytes.length &&
+					(count = input.read(inputBytes, bytesRead, inputBytes.length - bytesRead)) > 0) {
+				bytesRead += count;
+			}
+			
+			final int frames = bytesRead / format.getFrameSize();
+			decodeSamples(inputBytes, frames, format, inputSamples);
+			deblur.write(inputSamples, frames);
+			if (count < 0 || bytesRead < inputBytes.length) {
+				deblur.finish();
+				isInputDone = true;
+			}
+		}
+	}
+	
 	// Generate a square impulse one unit high of diameter 2*r+1
 	static float[] generateSquareImpulse(final int numSamples, final int radius) {
 		final float[] arr = new float[numSamples];
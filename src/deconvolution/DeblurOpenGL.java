@@ -144,12 +144,13 @@ public class DeblurOpenGL {
 		
 		// Generate the blur kernel with the given radius
 		
-		final int[] coords1 = Algorithms.generateCircle(blurRadius);
-		final int[] coords2 = Algorithms.generateCircle(blurRadius + 1);
-		final int[] coordsOuter = Algorithms.generateCircleQuarterDensity(blurRadius * 2); // Skip 75% of pixels for speed.
-		final int coords1Count = coords1.length/2;
-		final int coords2Count = coords2.length/2;
-		final int coordsOuterCount = coordsOuter.length/2;
+		final KernelCache.Rings rings = KernelCache.getRings(blurRadius, KernelCache.OPENGL); // Generated once per radius
+		final int[] coords1 = rings.coords1;
+		final int[] coords2 = rings.coords2;
+		final int[] coordsOuter = rings.coordsOuter; // Skip 75% of pixels for speed.
+		final int coords1Count = rings.coords1Count;
+		final int coords2Count = rings.coords2Count;
+		final int coordsOuterCount = rings.coordsOuterCount;
 		
 		// Convert to int16 arrays so they can be stored in texture data
 		
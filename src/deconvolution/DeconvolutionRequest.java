@@ -0,0 +1,141 @@
+package deconvolution;
+
+// This class describes one job for the Deconvolver: which algorithm to run, and its parameters.
+// Requests are immutable, so a single request may be shared by any number of concurrent jobs.
+// Create requests with the static methods below, one per algorithm.
+
+public final class DeconvolutionRequest {
+	
+	// The algorithms that can be run without the GUI
+	public enum Algorithm {
+		FAST_METHOD,
+		RICHARDSON_LUCY,
+		WIENER,
+		SHARPEN,
+		DISK_BLUR
+	}
+	
+	final Algorithm algorithm;
+	
+	// Radius of the blur (or of the sharpening disk), in pixels
+	final float radius;
+	
+	// Strength of the Fast-Method, or weight of the sharpen effect
+	final float amount;
+	
+	// Number of iterations for the Fast-Method and Richardson-Lucy
+	final int iterations;
+	
+	// Signal-to-noise ratio for the Wiener filter
+	final int snr;
+	
+	// Whether the Wiener filter uses the native OpenCV DFT instead of the pure Java one
+	final boolean useOpenCV;
+	
+	// Size of the tiles the Java Wiener filter deconvolves larger images in, or 0 for whole images
+	final int tileSize;
+	
+	private DeconvolutionRequest(final Algorithm algorithm, final float radius,
+			final float amount, final int iterations, final int snr) {
+		this(algorithm, radius, amount, iterations, snr, false, 0);
+	}
+	
+	private DeconvolutionRequest(final Algorithm algorithm, final float radius, final float amount,
+			final int iterations, final int snr, final boolean useOpenCV, final int tileSize) {
+		if (!(radius > 0)) {
+			throw new IllegalArgumentException("Radius must be positive: " + radius);
+		}
+		if (iterations < 1) {
+			throw new IllegalArgumentException("Iterations must be at least 1: " + iterations);
+		}
+		if (snr < 1) {
+			throw new IllegalArgumentException("Signal-to-noise ratio must be at least 1: " + snr);
+		}
+		if (tileSize < 0) {
+			throw new IllegalArgumentException("Tile size cannot be negative: " + tileSize);
+		}
+		this.algorithm = algorithm;
+		this.radius = radius;
+		this.amount = amount;
+		this.iterations = iterations;
+		this.snr = snr;
+		this.useOpenCV = useOpenCV;
+		this.tileSize = tileSize;
+	}
+	
+	// Deblur with the Fast-Method.  An amount of 1 is usually best.
+	public static DeconvolutionRequest fastMethod(final float radius, final float amount, final int iterations) {
+		return new DeconvolutionRequest(Algorithm.FAST_METHOD, radius, amount, iterations, 1);
+	}
+	
+	// Deblur with Richardson-Lucy deconvolution using a disk kernel
+	public static DeconvolutionRequest richardsonLucy(final float radius, final int iterations) {
+		return new DeconvolutionRequest(Algorithm.RICHARDSON_LUCY, radius, 1, iterations, 1);
+	}
+	
+	// Deblur with a Wiener filter using a disk kernel, with the pure Java DFT, on whole images
+	public static DeconvolutionRequest wiener(final int radius, final int snr) {
+		return wiener(radius, snr, false, 0);
+	}
+	
+	// Deblur with a Wiener filter using a disk kernel.
+	// 'useOpenCV' selects the native OpenCV DFT.  The Java DFT deconvolves images larger than 'tileSize' in
+	// overlapping tiles of about that size (0 for whole images).  OpenCV always deconvolves whole images.
+	public static DeconvolutionRequest wiener(final int radius, final int snr, final boolean useOpenCV,
+			final int tileSize) {
+		return new DeconvolutionRequest(Algorithm.WIENER, radius, 1, 1, snr, useOpenCV, tileSize);
+	}
+	
+	// Perform unsharp masking with a disk of the given radius
+	public static DeconvolutionRequest sharpen(final float radius, final float weight) {
+		return new DeconvolutionRequest(Algorithm.SHARPEN, radius, weight, 1, 1);
+	}
+	
+	// Blur with a disk of the given radius
+	public static DeconvolutionRequest diskBlur(final float radius) {
+		return new DeconvolutionRequest(Algorithm.DISK_BLUR, radius, 1, 1, 1);
+	}
+	
+	public Algorithm getAlgorithm() {
+		return algorithm;
+	}
+	
+	public float getRadius() {
+		return radius;
+	}
+	
+	public float getAmount() {
+		return amount;
+	}
+	
+	public int getIterations() {
+		return iterations;
+	}
+	
+	public int getSignalToNoiseRatio() {
+		return snr;
+	}
+	
+	public boolean usesOpenCV() {
+		return useOpenCV;
+	}
+	
+	public int getTileSize() {
+		return tileSize;
+	}
+	
+	public String toString() {
+		if (algorithm == Algorithm.FAST_METHOD) {
+			return "Fast-Method (radius " + radius + ", amount " + amount + ", " + iterations + " iterations)";
+		} else if (algorithm == Algorithm.RICHARDSON_LUCY) {
+			return "Richardson-Lucy (radius " + radius + ", " + iterations + " iterations)";
+		} else if (algorithm == Algorithm.WIENER) {
+			return "Wiener (radius " + (int)radius + ", SNR " + snr + (useOpenCV ? ", OpenCV" :
+					tileSize > 0 ? ", tiles of " + tileSize : "") + ")";
+		} else if (algorithm == Algorithm.SHARPEN) {
+			return "Sharpen (radius " + radius + ", weight " + amount + ")";
+		} else {
+			return "Disk blur (radius " + radius + ")";
+		}
+	}
+}
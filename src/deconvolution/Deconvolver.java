@@ -0,0 +1,63 @@
+package deconvolution;
+
+import java.awt.image.BufferedImage;
+
+// This class runs the deconvolution algorithms without the GUI.
+// Every job works only on its own image, request, and ProgressMonitor, so one Deconvolver
+// may be called from many threads at once to process independent images in parallel.
+// All jobs share the worker threads of the ParallelExecutor.
+// The algorithms always run on the CPU here.  (The GPU and OpenGL drivers render into the GUI.)
+
+public class Deconvolver {
+	
+	// Process the image and return the result, without reporting progress
+	public PlanarImage deconvolve(final PlanarImage image, final DeconvolutionRequest request) {
+		return deconvolve(image, request, new ProgressMonitor());
+	}
+	
+	// Process the image and return the result.
+	// Returns null if the monitor was canceled before the job finished.
+	// The input image is not modified.
+	public PlanarImage deconvolve(final PlanarImage image, final DeconvolutionRequest request,
+			final ProgressMonitor monitor) {
+		
+		if (image.getChannels() != 3) {
+			throw new IllegalArgumentException("Expected an RGB image, but found " + image.getChannels() + " channels");
+		}
+		
+		final DeconvolutionRequest.Algorithm algorithm = request.algorithm;
+		if (algorithm == DeconvolutionRequest.Algorithm.FAST_METHOD) {
+			return Algorithms.fastMethodIterations(image, request.amount, request.radius, request.iterations, monitor);
+		} else if (algorithm == DeconvolutionRequest.Algorithm.RICHARDSON_LUCY) {
+			return Algorithms.richardsonLucy(image, request.radius, request.iterations, monitor);
+		} else if (algorithm == DeconvolutionRequest.Algorithm.WIENER) {
+			return WienerFilter.wienerDeconvolvePublic(image, (int)request.radius, request.snr, request.useOpenCV,
+					request.tileSize, monitor);
+		} else if (algorithm == DeconvolutionRequest.Algorithm.SHARPEN) {
+			return Algorithms.sharpen(image, request.amount, request.radius, monitor);
+		} else {
+			return Algorithms.diskBlur(image, request.radius, monitor);
+		}
+	}
+	
+	// Process a BufferedImage of any type, and return the result as a 3BYTE_BGR BufferedImage.
+	// Returns null if the monitor was canceled before the job finished.
+	public BufferedImage deconvolve(final BufferedImage image, final DeconvolutionRequest request,
+			final ProgressMonitor monitor) {
+		final PlanarImage result = deconvolve(toPlanarImage(image), request, monitor);
+		if (result == null) {
+			return null;
+		}
+		return toBufferedImage(result);
+	}
+	
+	// Convert a BufferedImage of any type into an RGB planar image
+	public static PlanarImage toPlanarImage(final BufferedImage image) {
+		return Algorithms.imageToArray(Algorithms.convertToByteBGR(image));
+	}
+	
+	// Convert an RGB planar image into a 3BYTE_BGR BufferedImage, clamping the colors to [0, 255]
+	public static BufferedImage toBufferedImage(final PlanarImage image) {
+		return Algorithms.arrayToImage(image);
+	}
+}
@@ -0,0 +1,234 @@
+package deconvolution;
+
+import java.util.Arrays;
+
+// This class averages an image over a disk centered on every pixel, in O(radius) time per pixel.
+// The disk is stored as the half-width of each of its rows (a "chord table").
+// For every row of the disk, a running sum slides along the image row: one pixel enters the window
+// and one pixel leaves it for each step, so no pixel inside the disk is visited individually.
+// Pixels outside the image are skipped, and the average is taken over the pixels that remain.
+// This gives exactly the same set of samples as testing every pixel of the (2r+1)^2 square.
+
+public class DiskSum {
+	
+	// Largest distance from the center in either direction
+	final int radiusMax;
+	
+	// halfChords[j + radiusMax] is the largest i such that (i, j) is inside the disk, or -1 if row j is empty
+	final int[] halfChords;
+	
+	// The first and last non-empty rows, relative to the center
+	private final int firstRow;
+	private final int lastRow;
+	
+	// Create an engine for the given chord table, which must have an odd length
+	DiskSum(final int[] halfChords) {
+		if (halfChords.length % 2 != 1) {
+			throw new IllegalArgumentException("Chord table must have an odd length: " + halfChords.length);
+		}
+		this.halfChords = halfChords;
+		this.radiusMax = halfChords.length / 2;
+		
+		int first = 0;
+		int last = -1;
+		for (int j = -radiusMax; j <= radiusMax; j++) {
+			if (halfChords[j + radiusMax] >= 0) {
+				if (last < first) {
+					first = j;
+				}
+				last = j;
+			}
+		}
+		this.firstRow = first;
+		this.lastRow = last;
+	}
+	
+	// Create the disk of pixels (i, j) with i*i + j*j <= (radius + 0.375)^2 and |i|, |j| <= radiusMax.
+	// This is the disk used by diskBlur and sharpen.
+	static DiskSum forDisk(final double radius, final int radiusMax) {
+		final double limit = (radius + 0.375) * (radius + 0.375);
+		final int[] halfChords = new int[radiusMax * 2 + 1];
+		for (int j = -radiusMax; j <= radiusMax; j++) {
+			int halfChord = -1;
+			for (int i = 0; i <= radiusMax; i++) {
+				if (i * i + j * j <= limit) {
+					halfChord = i;
+				}
+			}
+			halfChords[j + radiusMax] = halfChord;
+		}
+		return new DiskSum(halfChords);
+	}
+	
+	// Create the disk of pixels (i, j) with hypot(i, j) < limit and |i|, |j| <= radiusMax.
+	// This is the disk used by Richardson-Lucy, with limit = radius + 0.375.
+	static DiskSum forOpenDisk(final double limit, final int radiusMax) {
+		final int[] halfChords = new int[radiusMax * 2 + 1];
+		for (int j = -radiusMax; j <= radiusMax; j++) {
+			int halfChord = -1;
+			for (int i = 0; i <= radiusMax; i++) {
+				if (Math.hypot(i, j) < limit) {
+					halfChord = i;
+				}
+			}
+			halfChords[j + radiusMax] = halfChord;
+		}
+		return new DiskSum(halfChords);
+	}
+	
+	// Return the disk as a kernel of ones and zeros, indexed by [x][y].  Used for previews.
+	float[][] toKernel() {
+		final float[][] kernel = new float[radiusMax * 2 + 1][radiusMax * 2 + 1];
+		for (int j = -radiusMax; j <= radiusMax; j++) {
+			final int halfChord = halfChords[j + radiusMax];
+			for (int i = -halfChord; i <= halfChord; i++) {
+				kernel[i + radiusMax][j + radiusMax] = 1;
+			}
+		}
+		return kernel;
+	}
+	
+	// Return the number of pixels in the disk
+	int getArea() {
+		int area = 0;
+		for (int j = 0; j < halfChords.length; j++) {
+			if (halfChords[j] >= 0) {
+				area += halfChords[j] * 2 + 1;
+			}
+		}
+		return area;
+	}
+	
+	// For every pixel in rows [yStart, yEnd), write the average of all channels of 'image' over the disk
+	// centered on that pixel into 'out'.  'out' must be the same size as 'image' and may not be 'image'.
+	void average(final PlanarImage image, final PlanarImage out, final int yStart, final int yEnd) {
+		final int width = image.width;
+		final int height = image.height;
+		final int channels = image.getChannels();
+		
+		final double[][] sums = new double[channels][width];
+		final int[] counts = new int[width];
+		
+		// Rows far from the top and bottom edges all have the same sample counts, so compute them once
+		final int[] interiorCounts = new int[width];
+		countRow(width, height, Math.max(-firstRow, 0), interiorCounts);
+		
+		for (int y = yStart; y < yEnd; y++) {
+			sumRow(image, y, sums);
+			
+			final int[] rowCounts;
+			if (isInteriorRow(y, height)) {
+				rowCounts = interiorCounts;
+			} else {
+				countRow(width, height, y, counts);
+				rowCounts = counts;
+			}
+			
+			// Divide by the number of samples
+			final int outRow = out.index(0, y);
+			for (int c = 0; c < channels; c++) {
+				final double[] sum = sums[c];
+				final float[] outPlane = out.planes[c];
+				for (int x = 0; x < width; x++) {
+					outPlane[outRow + x] = (float)(sum[x] / rowCounts[x]);
+				}
+			}
+		}
+	}
+	
+	// Set sums[c][x] to the sum of channel c of 'image' over the disk centered on (x, y).
+	// Pixels outside the image are skipped.
+	void sumRow(final PlanarImage image, final int y, final double[][] sums) {
+		final int width = image.width;
+		final int height = image.height;
+		final int channels = image.getChannels();
+		
+		for (int c = 0; c < channels; c++) {
+			Arrays.fill(sums[c], 0, width, 0);
+		}
+		
+		// Add up the chords of every row of the disk
+		for (int j = firstRow; j <= lastRow; j++) {
+			final int halfChord = halfChords[j + radiusMax];
+			final int yIndex = y + j;
+			if (halfChord < 0 || yIndex < 0 || yIndex >= height) {
+				continue;
+			}
+			final int row = image.index(0, yIndex);
+			for (int c = 0; c < channels; c++) {
+				addChords(image.planes[c], row, width, halfChord, sums[c]);
+			}
+		}
+	}
+	
+	// Return the number of pixels of the disk that are inside a width x height image, indexed by [y][x].
+	// These are the normalization counts for sumRow().
+	// Rows that are not near the top or bottom edge share a single array.
+	int[][] countSamples(final int width, final int height) {
+		final int[][] counts = new int[height][];
+		int[] interiorCounts = null;
+		for (int y = 0; y < height; y++) {
+			if (isInteriorRow(y, height)) {
+				if (interiorCounts == null) {
+					interiorCounts = new int[width];
+					countRow(width, height, y, interiorCounts);
+				}
+				counts[y] = interiorCounts;
+			} else {
+				counts[y] = new int[width];
+				countRow(width, height, y, counts[y]);
+			}
+		}
+		return counts;
+	}
+	
+	// Return true if every row of the disk centered on row y is inside the image
+	private boolean isInteriorRow(final int y, final int height) {
+		return y + firstRow >= 0 && y + lastRow < height;
+	}
+	
+	// Set counts[x] to the number of pixels of the disk centered on (x, y) that are inside the image
+	private void countRow(final int width, final int height, final int y, final int[] counts) {
+		Arrays.fill(counts, 0, width, 0);
+		for (int j = firstRow; j <= lastRow; j++) {
+			final int halfChord = halfChords[j + radiusMax];
+			final int yIndex = y + j;
+			if (halfChord >= 0 && yIndex >= 0 && yIndex < height) {
+				addCounts(counts, width, halfChord);
+			}
+		}
+	}
+	
+	// For every x, add the sum of in[row + x - halfChord ... row + x + halfChord] to sums[x].
+	// Samples outside [0, width) are skipped.
+	private static void addChords(final float[] in, final int row, final int width,
+			final int halfChord, final double[] sums) {
+		
+		// Sum of the window for x = 0
+		double sum = 0;
+		final int firstEnd = Math.min(halfChord, width - 1);
+		for (int x = 0; x <= firstEnd; x++) {
+			sum += in[row + x];
+		}
+		
+		// Slide the window to the right, one pixel at a time
+		for (int x = 0; x < width; x++) {
+			sums[x] += sum;
+			final int entering = x + halfChord + 1;
+			final int leaving = x - halfChord;
+			if (entering < width) {
+				sum += in[row + entering];
+			}
+			if (leaving >= 0) {
+				sum -= in[row + leaving];
+			}
+		}
+	}
+	
+	// For every x, add the number of pixels in [x - halfChord, x + halfChord] that are inside [0, width)
+	private static void addCounts(final int[] counts, final int width, final int halfChord) {
+		for (int x = 0; x < width; x++) {
+			counts[x] += Math.min(x + halfChord, width - 1) - Math.max(x - halfChord, 0) + 1;
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package deconvolution;
+
+// This interface computes a span of interior Fast-Method pixels of one image plane at once, for engines
+// that process several pixels in parallel (SIMD).  The rings are read at fixed array index offsets from
+// each center pixel, so no coordinate is clamped.
+// The only implementation is FastMethodVector (in the src-vector folder), which uses the Vector API of
+// JDK 16 or newer.  Algorithms loads it by reflection when it is available, and otherwise fastMethod()
+// does one pixel at a time.
+
+interface FastMethodSpan {
+	
+	// Write 'count' pixels to 'out', starting at 'outStart'.  The first pixel is centered on
+	// orig[origStart] and approx[approxStart], and the rest are the pixels to its right.
+	// The results must be the same as fastMethod() computes one pixel at a time.
+	void interior(float[] orig, float[] approx, float[] out, int origStart, int approxStart, int outStart,
+			int count, int[] offsets1, int[] offsets2, int[] offsetsOuter, float innerToOuterRatio,
+			float innerMult, int coordsOuterCount);
+	
+	// A short description for reports (eg. "Vector API, 16 lanes")
+	String getName();
+}
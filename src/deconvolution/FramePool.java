@@ -0,0 +1,129 @@
+package deconvolution;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+
+// This class recycles the frame buffers used by the video path, so that processing a video
+// allocates nothing once the pool has filled up.
+// Every buffer in a pool has the same size.  Buffers are created when the pool is empty, and kept
+// (up to 'capacity' of each kind) when they are released.  All methods are thread-safe.
+// A pool of YUV frames holds I420 images instead of BGR images: TYPE_BYTE_GRAY images 1.5 times the
+// frame height, with the full-size Y plane followed by the quarter-size U and V planes (the layout OpenCV
+// uses for I420).  The frame width and height must then be even.
+
+public class FramePool {
+	
+	final int width;
+	final int height;
+	
+	// Whether the images are I420 frames
+	final boolean isYUV;
+	
+	// Most buffers of each kind to keep
+	private final int capacity;
+	
+	// Idle buffers.  Guarded by this.
+	private final ArrayDeque<BufferedImage> images = new ArrayDeque<BufferedImage>();
+	private final ArrayDeque<PlanarImage> planarImages = new ArrayDeque<PlanarImage>();
+	private final ArrayDeque<PlanarImage> lumaImages = new ArrayDeque<PlanarImage>();
+	
+	// Statistics.  Guarded by this.
+	private int imagesCreated = 0;
+	private int planarImagesCreated = 0;
+	private int lumaImagesCreated = 0;
+	private long buffersReused = 0;
+	
+	FramePool(final int width, final int height, final int capacity) {
+		this(width, height, capacity, false);
+	}
+	
+	FramePool(final int width, final int height, final int capacity, final boolean isYUV) {
+		if (width <= 0 || height <= 0 || capacity < 1) {
+			throw new IllegalArgumentException("Invalid frame pool: " + width + "x" + height +
+					", capacity " + capacity);
+		}
+		if (isYUV && (width % 2 != 0 || height % 2 != 0)) {
+			throw new IllegalArgumentException("YUV frames must have an even width and height: " +
+					width + "x" + height);
+		}
+		this.width = width;
+		this.height = height;
+		this.capacity = capacity;
+		this.isYUV = isYUV;
+	}
+	
+	// Return a TYPE_3BYTE_BGR image, or an I420 image for a pool of YUV frames.  Its contents are undefined.
+	synchronized BufferedImage acquireImage() {
+		final BufferedImage image = images.poll();
+		if (image != null) {
+			buffersReused++;
+			return image;
+		}
+		imagesCreated++;
+		if (isYUV) {
+			return new BufferedImage(width, height * 3 / 2, BufferedImage.TYPE_BYTE_GRAY);
+		}
+		return new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+	}
+	
+	// Return an image to the pool.  The caller must not use it afterwards.
+	synchronized void releaseImage(final BufferedImage image) {
+		if (image.getWidth() != width || image.getHeight() != (isYUV ? height * 3 / 2 : height) ||
+				image.getType() != (isYUV ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR)) {
+			return; // Not from this pool
+		}
+		if (images.size() < capacity) {
+			images.push(image);
+		}
+	}
+	
+	// Return a contiguous three-channel planar image.  Its contents are undefined.
+	synchronized PlanarImage acquirePlanarImage() {
+		final PlanarImage image = planarImages.poll();
+		if (image != null) {
+			buffersReused++;
+			return image;
+		}
+		planarImagesCreated++;
+		return new PlanarImage(width, height);
+	}
+	
+	// Return a contiguous one-channel planar image (for the Y plane of a video frame).
+	// Its contents are undefined.
+	synchronized PlanarImage acquireLumaImage() {
+		final PlanarImage image = lumaImages.poll();
+		if (image != null) {
+			buffersReused++;
+			return image;
+		}
+		lumaImagesCreated++;
+		return new PlanarImage(width, height, 1);
+	}
+	
+	// Return a planar image of either kind to the pool.  The caller must not use it afterwards.
+	synchronized void releasePlanarImage(final PlanarImage image) {
+		if (image.width != width || image.height != height || !image.isContiguous() || image.offset != 0) {
+			return; // Not from this pool
+		}
+		final ArrayDeque<PlanarImage> idleImages;
+		if (image.getChannels() == 3) {
+			idleImages = planarImages;
+		} else if (image.getChannels() == 1) {
+			idleImages = lumaImages;
+		} else {
+			return; // Not from this pool
+		}
+		if (idleImages.size() < capacity) {
+			idleImages.push(image);
+		}
+	}
+	
+	// Return a one-line summary of how many buffers were created and reused
+	synchronized String getSummary() {
+		final double pixelMegabytes = width * (double)height / 1e6;
+		final double createdMegabytes = imagesCreated * pixelMegabytes * (isYUV ? 1.5 : 3) +
+				planarImagesCreated * pixelMegabytes * 3 * 4 + lumaImagesCreated * pixelMegabytes * 4;
+		return String.format("Frame pool: %d images and %d float images created (%.0f MB), %d buffers reused",
+				imagesCreated, planarImagesCreated + lumaImagesCreated, createdMegabytes, buffersReused);
+	}
+}
@@ -11,32 +11,42 @@ public class GPUAlgorithms {
 	static GPUProgram fastMethodProgram;
 	static GPUProgram rlProgram;
 	static GPUProgram sharpenProgram;
+	static GPUProgram sharpenPrefixProgram;
+	
+	// Running sums of the rows of the image for sharpenProgram, computed by sharpenPrefixProgram
+	static GPUMem sharpenPrefixSums;
+	
+	// The input image as 3BYTE_BGR, kept while an effect dialog is showing so it is only uploaded once
+	static byte[] cachedByteBuffer;
 	
 	// Basic deblurring function with GPU acceleration.  This requires an outside OpenCL file "fastMethod.cl"
 	// Programmed by Daniel Williams on April 29, 2019 - June 4, 2022
-	static float[][][] fastMethodGPU(final byte[] originalImage, int iterations, int width, int height,
-			final float amountOffset, float radius, boolean commit) {
+	static PlanarImage fastMethodGPU(final byte[] originalImage, int iterations, int width, int height,
+			final float amountOffset, float radius, boolean commit, final ProgressMonitor monitor) {
+		return fastMethodGPU(originalImage, Algorithms.extractByteArray(UserInterface.previewImage),
+				iterations, width, height, amountOffset, radius, commit, monitor);
+	}
+	
+	// Same as above, but the result is written to 'linearOutImage' (3BYTE_BGR) instead of the preview image
+	static PlanarImage fastMethodGPU(final byte[] originalImage, final byte[] linearOutImage, int iterations,
+			int width, int height, final float amountOffset, float radius, boolean commit,
+			final ProgressMonitor monitor) {
 		
-		UserInterface.setProcessName("Deblurring");
+		monitor.setProcessName("Deblurring");
 		
 		final long startTime = System.currentTimeMillis();
 		
-		// Generate the blur kernel
-		final int[] coords1 = Algorithms.generateCircle(radius);
-		final int[] coords2 = Algorithms.generateCircle(radius + 1);
-		final int[] coordsOuter;
-		if (radius <= 3) {
-			coordsOuter = Algorithms.generateCircle(radius * 2 + 0.5f);
-		} else {
-			// Skip 75% of pixels for speed on larger blur radiuses.
-			coordsOuter = Algorithms.generateCircleQuarterDensity(radius * 2 + 0.5f);
-		}
-		final int coords1Count = coords1.length/2;
-		final int coords2Count = coords2.length/2;
-		final int coordsOuterCount = coordsOuter.length/2;
+		// Get the blur kernel (generated once per radius)
+		final KernelCache.Rings rings = KernelCache.getRings(radius, KernelCache.STANDARD);
+		final int[] coords1 = rings.coords1;
+		final int[] coords2 = rings.coords2;
+		final int[] coordsOuter = rings.coordsOuter;
+		final int coords1Count = rings.coords1Count;
+		final int coords2Count = rings.coords2Count;
+		final int coordsOuterCount = rings.coordsOuterCount;
 		
 		// Used to ensure that the weight of the inner ring is the same as the weight of the outer ring
-		final float innerToOuterRatio =  (float)coords1Count / coords2Count;
+		final float innerToOuterRatio = rings.innerToOuterRatio;
 		
 		final float innerMult = amountOffset / 2.0f * 0.67f; // Why 0.67 here?
 		
@@ -52,9 +62,6 @@ public class GPUAlgorithms {
 		
 		byte[] newApproximation = originalImage;
 		
-		// Create the image to write to (as a single dimensional int array)
-		final byte[] linearOutImage = Algorithms.extractByteArray(UserInterface.previewImage);
-		
 		GPUMem mem1 = fastMethodProgram.setArgument(0, linearOutImage, GPUProgram.WRITE);
 		GPUMem mem2 = fastMethodProgram.setArgument(1, newApproximation, GPUProgram.READ);
 		fastMethodProgram.setArgument(2, originalImage, GPUProgram.READ); // This only needs to be set once, or if there is a new input image
@@ -68,7 +75,7 @@ public class GPUAlgorithms {
 		fastMethodProgram.setArgument(10, innerMult, GPUProgram.READ);
 		
 		for (int i = 0; i < iterations; i++) {
-			UserInterface.updateProgress((double)i/iterations);
+			monitor.updateProgress((double)i/iterations);
 			
 			fastMethodProgram.executeKernelNoCopyback();
 			
@@ -77,44 +84,36 @@ public class GPUAlgorithms {
 				GPUProgram.copyGPUMem(mem1, mem2);
 			}
 			
-			if (ImageEffects.isCanceled) {
+			if (monitor.isCanceled()) {
 				return null;
 			}
 		}
 		
 		fastMethodProgram.copyFromGPU();
 		
-		float[][][] commitImage = null;
+		PlanarImage commitImage = null;
 		if (commit) {
-			// Convert the 1d image array into a 2d array
-			commitImage = new float[3][width][height];
-			for (int x = 0; x < width; x++) {
-				for (int y = 0; y < height; y++) {
-					int i = (y * width + x) * 3;
-					commitImage[2][x][y] = linearOutImage[i + 0] & 0xFF;
-					commitImage[1][x][y] = linearOutImage[i + 1] & 0xFF;
-					commitImage[0][x][y] = linearOutImage[i + 2] & 0xFF;
-				}
-			}
+			// Convert the interleaved byte array into a planar image
+			commitImage = bytesToPlanarImage(linearOutImage, width, height);
 		}
 		
-		UserInterface.setProcessName("Deblurring (" + (System.currentTimeMillis() - startTime) + "ms)");
-		UserInterface.updateProgress(1);
+		monitor.setProcessName("Deblurring (" + (System.currentTimeMillis() - startTime) + "ms)");
+		monitor.updateProgress(1);
 		
 		return commitImage; // If this is null, then Algorithms.bImage contains the data (from the GPU)
 	}
 	
 	// Richardson-Lucy deconvolution with GPU acceleration.  This requires an outside OpenCL file.
 	// Programmed by Daniel Williams on November 8, 2019
-	static float[][][] deblurRichardsonLucyGPU(final float[][][] image,
-				float radius, int iterations, boolean commit) {
+	static PlanarImage deblurRichardsonLucyGPU(final PlanarImage image,
+				float radius, int iterations, boolean commit, final ProgressMonitor monitor) {
 		
 		final long startTime = System.currentTimeMillis();
 		
-		UserInterface.setProcessName("Deblurring");
+		monitor.setProcessName("Deblurring");
 		
-		final int width = image[0].length;
-		final int height = image[0][0].length;
+		final int width = image.width;
+		final int height = image.height;
 		
 		// Generate a disk kernel
 		// This must have an odd width and height
@@ -129,16 +128,17 @@ public class GPUAlgorithms {
 			}
 		}
 		
-		UserInterface.lastKernel = null;
+		monitor.setKernel(null);
 		
 		// Create the image that stores the previous image approximation
 		final float[] newImage = new float[width * height * 3];
-		for (int x = 0; x < width; x++) {
-			for (int y = 0; y < height; y++) {
+		for (int y = 0; y < height; y++) {
+			final int row = image.index(0, y);
+			for (int x = 0; x < width; x++) {
 				int i = (y * width + x) * 3;
-				newImage[i + 0] = image[0][x][y];
-				newImage[i + 1] = image[1][x][y];
-				newImage[i + 2] = image[2][x][y];
+				newImage[i + 0] = image.planes[0][row + x];
+				newImage[i + 1] = image.planes[1][row + x];
+				newImage[i + 2] = image.planes[2][row + x];
 			}
 		}
 		
@@ -181,10 +181,10 @@ public class GPUAlgorithms {
 			rlProgram.setArgument(6, 1, GPUProgram.READ); // Second RL algorithm mode
 			rlProgram.executeKernelNoCopyback();
 			
-			UserInterface.updateProgress((double)i / iterations);
+			monitor.updateProgress((double)i / iterations);
 			
 			// Exit early if the effect has been canceled
-			if (ImageEffects.isCanceled) {
+			if (monitor.isCanceled()) {
 				UserInterface.cancelProgress();
 				return null;
 			}
@@ -207,17 +207,15 @@ public class GPUAlgorithms {
 		
 		rlProgram.copyFromGPU();
 		
-		float[][][] commitImage = null;
+		PlanarImage commitImage = null;
 		if (commit) {
-			// Convert the 1d image array into a 2d array
-			commitImage = new float[3][width][height];
-			for (int x = 0; x < width; x++) {
-				for (int y = 0; y < height; y++) {
-					int i = (y * width + x) * 3;
-					commitImage[0][x][y] = newImage[i + 0];
-					commitImage[1][x][y] = newImage[i + 1];
-					commitImage[2][x][y] = newImage[i + 2];
-				}
+			// Convert the interleaved float array into a planar image
+			commitImage = new PlanarImage(width, height);
+			for (int j = 0; j < width * height; j++) {
+				int i = j * 3;
+				commitImage.planes[0][j] = newImage[i + 0];
+				commitImage.planes[1][j] = newImage[i + 1];
+				commitImage.planes[2][j] = newImage[i + 2];
 			}
 		} else {
 			// Copy the image from the GPU output to the preview BufferedImage
@@ -232,8 +230,8 @@ public class GPUAlgorithms {
 			}
 		}
 		
-		UserInterface.setProcessName("Deblurring (" + (System.currentTimeMillis() - startTime) + "ms)");
-		UserInterface.updateProgress(1);
+		monitor.setProcessName("Deblurring (" + (System.currentTimeMillis() - startTime) + "ms)");
+		monitor.updateProgress(1);
 		
 		// Deallocate the memory if the preview has ended
 		if (!ImageEffects.isDialogShowing) {
@@ -244,10 +242,10 @@ public class GPUAlgorithms {
 	}
 	
 	// Perform the laplacian sharpen on the GPU
-	static float[][][] sharpenGPU(final byte[] originalImage, int width, int height,
-			final float weight, float radius, boolean commit) {
+	static PlanarImage sharpenGPU(final byte[] originalImage, int width, int height,
+			final float weight, float radius, boolean commit, final ProgressMonitor monitor) {
 		
-		UserInterface.setProcessName("Sharpening");
+		monitor.setProcessName("Sharpening");
 		
 		final long startTime = System.currentTimeMillis();
 		
@@ -260,37 +258,64 @@ public class GPUAlgorithms {
 			sharpenProgram = new GPUProgram("sharpen", baseDir + "Sharpen.cl");
 			sharpenProgram.setGlobalWorkGroupSizes(width, height);
 			//sharpenProgram.setLocalWorkGroupSizes(64, 16);
+			
+			// The running sums of the rows are computed first, with one work item per row
+			sharpenPrefixProgram = new GPUProgram("rowPrefixSums", baseDir + "Sharpen.cl");
+			sharpenPrefixProgram.setGlobalWorkGroupSizes(height);
+			
+			// The sums only stay on the GPU, so they are never copied to or from the CPU
+			sharpenPrefixSums = GPUProgram.allocateFloatMemoryOnGPU((width + 1) * height * 3, GPUProgram.READ_WRITE);
+			sharpenPrefixProgram.setArgument(1, sharpenPrefixSums);
+			sharpenPrefixProgram.setArgument(2, width, GPUProgram.READ);
+			sharpenProgram.setArgument(2, sharpenPrefixSums);
 		}
 		
 		// Create the image to write to (as a single dimensional int array)
 		final byte[] linearOutImage = Algorithms.extractByteArray(UserInterface.previewImage);
 
-		sharpenProgram.setArgument(0, linearOutImage, GPUProgram.WRITE);
-		sharpenProgram.setArgument(1, originalImage, GPUProgram.READ);
-		sharpenProgram.setArgument(2, radius, GPUProgram.READ);
-		sharpenProgram.setArgument(3, weight, GPUProgram.READ);
-		sharpenProgram.executeKernel();
+		final GPUMem outputMem = sharpenProgram.setArgument(0, linearOutImage, GPUProgram.WRITE);
+		
+		// Both kernels read the same copy of the original image
+		final GPUMem originalMem = sharpenPrefixProgram.setArgument(0, originalImage, GPUProgram.READ);
+		sharpenProgram.setArgument(1, originalMem);
+		
+		// The disk is the same one used by Algorithms.sharpen
+		final DiskSum disk = DiskSum.forDisk(radius, (int)Math.floor(radius));
 		
-		float[][][] commitImage = null;
+		sharpenProgram.setArgument(3, disk.halfChords, GPUProgram.READ);
+		sharpenProgram.setArgument(4, disk.radiusMax, GPUProgram.READ);
+		sharpenProgram.setArgument(5, weight, GPUProgram.READ);
+		
+		// Each chord of the disk is the difference of two running sums, so each pixel costs O(radius)
+		sharpenPrefixProgram.executeKernelNoCopyback();
+		sharpenProgram.executeKernelNoCopyback();
+		GPUProgram.copyArrayToCPU(outputMem, linearOutImage);
+		
+		PlanarImage commitImage = null;
 		if (commit) {
-			// Convert the 1d image array into a 2d array
-			commitImage = new float[3][width][height];
-			for (int x = 0; x < width; x++) {
-				for (int y = 0; y < height; y++) {
-					int i = (y * width + x) * 3;
-					commitImage[2][x][y] = linearOutImage[i + 0] & 0xFF;
-					commitImage[1][x][y] = linearOutImage[i + 1] & 0xFF;
-					commitImage[0][x][y] = linearOutImage[i + 2] & 0xFF;
-				}
-			}
+			// Convert the interleaved byte array into a planar image
+			commitImage = bytesToPlanarImage(linearOutImage, width, height);
 		}
 		
 		final long endTime = System.currentTimeMillis();
-		UserInterface.setProcessName("Sharpening (" + (endTime - startTime) + "ms)");
-		UserInterface.updateProgress(1);
+		monitor.setProcessName("Sharpening (" + (endTime - startTime) + "ms)");
+		monitor.updateProgress(1);
 		
 		return commitImage; // If this is null, then Algorithms.bImage contains the data (from the GPU)
 	}
+	
+	// Convert an interleaved 3BYTE_BGR array into a planar RGB image
+	static PlanarImage bytesToPlanarImage(final byte[] bgr, final int width, final int height) {
+		final PlanarImage image = new PlanarImage(width, height);
+		for (int j = 0; j < width * height; j++) {
+			int i = j * 3;
+			image.planes[2][j] = bgr[i + 0] & 0xFF;
+			image.planes[1][j] = bgr[i + 1] & 0xFF;
+			image.planes[0][j] = bgr[i + 2] & 0xFF;
+		}
+		return image;
+	}
+	
 	// Reset the memory for all of the GPU programs
 	static void deallocateMemory() {
 		if (fastMethodProgram != null) {
@@ -305,6 +330,11 @@ public class GPUAlgorithms {
 			sharpenProgram.dispose();
 			sharpenProgram = null;
 		}
+		if (sharpenPrefixProgram != null) {
+			sharpenPrefixProgram.dispose();
+			sharpenPrefixProgram = null;
+		}
+		sharpenPrefixSums = null;
 	}
 	
 	// Clamp the color to within its limits
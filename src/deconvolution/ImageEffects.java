@@ -31,7 +31,7 @@ public class ImageEffects {
 	static final int WIENER = 7;
 	
 	// This stores a scaled preview image that is displayed and manipulated in edit mode
-	static float[][][] previewImage;
+	static PlanarImage previewImage;
 	
 	public static boolean autoPreviewEnabled = true;
 	public static boolean isRendering = false;
@@ -48,6 +48,25 @@ public class ImageEffects {
 	
 	public static boolean isCanceled = false;	// Whether this effect has been canceled
 	
+	// Forwards the status of the running effect to the GUI, and stops it when the effect is canceled
+	static final ProgressMonitor progressMonitor = new ProgressMonitor() {
+		public void setProcessName(final String name) {
+			UserInterface.setProcessName(name);
+		}
+		
+		public void updateProgress(final double fraction) {
+			UserInterface.updateProgress(fraction);
+		}
+		
+		public void setKernel(final float[][] kernel) {
+			UserInterface.lastKernel = kernel;
+		}
+		
+		public boolean isCanceled() {
+			return ImageEffects.isCanceled;
+		}
+	};
+	
 	private static float divisor1;
 	private static float divisor2;
 	private static float divisor3;
@@ -64,17 +83,17 @@ public class ImageEffects {
 		// If there is no image, or
 		// if a window is already showing, or
 		// if something is rendering, then return
-		if (Algorithms.imageArray == null || isDialogShowing || isRendering) {
+		if (UserInterface.imageArray == null || isDialogShowing || isRendering) {
 			return;
 		}
 		
 		isCanceled = false;
 		
 		// Create a reference to the image to manipulate
-		previewImage = Algorithms.imageArray;
+		previewImage = UserInterface.imageArray;
 		
 		// Clear out the cached image to make sure it gets updated
-		Algorithms.cachedByteBuffer = null;
+		GPUAlgorithms.cachedByteBuffer = null;
 		
 		option1 = (int)(default1 * divisor1 + 0.000001);
 		option2 = (int)(default2 * divisor2 + 0.000001);
@@ -122,22 +141,28 @@ public class ImageEffects {
 				isDialogShowing = false;
 				
 				// Draw the unmodified image back
-				UserInterface.previewImage = Algorithms.arrayToImage(Algorithms.imageArray);
+				UserInterface.previewImage = Algorithms.arrayToImage(UserInterface.imageArray);
 				UserInterface.lastKernel = null;
 				UserInterface.redrawPreviewImage();
 				frame.dispose();
 				
 				previewImage = null;
 				isCanceled = true;
-				Algorithms.cachedByteBuffer = null;
+				GPUAlgorithms.cachedByteBuffer = null;
 				
 				if (!isRendering) {
 					GPUAlgorithms.deallocateMemory();
 				}
 			}
 			
+			// Called after each dispose(), whichever way the dialog was closed
+			public void windowClosed(WindowEvent arg0) {
+				if (effectType == WIENER) {
+					WienerFilter.clearCache();
+				}
+			}
+			
 			public void windowActivated(WindowEvent arg0) {}
-			public void windowClosed(WindowEvent arg0) {}
 			public void windowDeactivated(WindowEvent arg0) {}
 			public void windowDeiconified(WindowEvent arg0) {}
 			public void windowIconified(WindowEvent arg0) {}
@@ -173,7 +198,7 @@ public class ImageEffects {
 		cancelButton.addActionListener(new ActionListener() {
 			public void actionPerformed(ActionEvent e) {
 				// Draw the unmodified image back
-				UserInterface.previewImage = Algorithms.arrayToImage(Algorithms.imageArray);
+				UserInterface.previewImage = Algorithms.arrayToImage(UserInterface.imageArray);
 				UserInterface.lastKernel = null;
 				UserInterface.redrawPreviewImage();
 				frame.dispose();
@@ -399,29 +424,30 @@ public class ImageEffects {
 				final int tempOption4 = option4;
 				final int tempOption5 = option5;
 				
-				float[][][] newImageArray = null;
+				PlanarImage newImageArray = null;
 				
 				if (effectType == ADJUST) {
 					newImageArray = Algorithms.adjust(
 							previewImage, option1 / divisor1,
 							option2 / divisor2, option3 / divisor3,
-							option4 / divisor4 * 0.12f + 1);
+							option4 / divisor4 * 0.12f + 1, progressMonitor);
 				} else if (effectType == SHARPEN) {
 					newImageArray = Algorithms.sharpenSwitch(
-							previewImage, option1 / divisor1, option2 / divisor2, commit);
+							previewImage, option1 / divisor1, option2 / divisor2, commit, progressMonitor);
 				} else if (effectType == FAST_METHOD) {
 					newImageArray = Algorithms.fastMethodSwitch(
 							previewImage, option1 / divisor1, option2 / divisor2,
-							(int)(option3 / divisor3), commit);
+							(int)(option3 / divisor3), commit, progressMonitor);
 				} else if (effectType == RICHARDSON_LUCY) {
 					newImageArray = Algorithms.richardsonLucySwitch(
-							previewImage, option1 / divisor1, (int)(option2 / divisor2), commit);
+							previewImage, option1 / divisor1, (int)(option2 / divisor2), commit, progressMonitor);
 				} else if (effectType == WIENER) {
 					newImageArray = WienerFilter.wienerDeconvolvePublic(
-							previewImage, (int)(option1 / divisor1), (int)(option2 / divisor2));
+							previewImage, (int)(option1 / divisor1), (int)(option2 / divisor2), false, 0,
+							progressMonitor);
 				} else if (effectType == DISK_BLUR) {
 					newImageArray = Algorithms.diskBlur(
-							previewImage, option1 / divisor1);
+							previewImage, option1 / divisor1, progressMonitor);
 				} else {
 					System.err.println("Effect not set");
 					isRendering = false;
@@ -437,12 +463,12 @@ public class ImageEffects {
 				
 				if (isCanceled) {
 					UserInterface.cancelProgress();
-					UserInterface.previewImage = Algorithms.arrayToImage(Algorithms.imageArray);
+					UserInterface.previewImage = Algorithms.arrayToImage(UserInterface.imageArray);
 				} else {
 					// This may be null if the GPU has rendered data directly to the BufferedImage
 					if (newImageArray != null) {
 						if (commit) {
-							Algorithms.imageArray = newImageArray;
+							UserInterface.imageArray = newImageArray;
 							UserInterface.lastKernel = null;
 						}
 						UserInterface.previewImage = Algorithms.arrayToImage(newImageArray);
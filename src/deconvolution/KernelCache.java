@@ -0,0 +1,141 @@
+package deconvolution;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// This class caches the ring coordinates used by the Fast-Method, so they are only generated once per radius.
+// The cache is shared by all threads and jobs, and holds a limited number of radii (least recently used are removed).
+// Radii are rounded to the nearest 0.01, which is the granularity that generateCircle() is accurate to,
+// and the rings are generated from the rounded radius.  The arrays in the cache must never be modified.
+
+public class KernelCache {
+	
+	// How the outer ring (radius 2r) is generated.
+	// STANDARD is used by the CPU and OpenCL implementations: radius 2r + 0.5, with every pixel
+	// for radii up to 3 and every fourth pixel above that.
+	// OPENGL is used by the OpenGL shader: radius 2r, always with every fourth pixel.
+	static final int STANDARD = 0;
+	static final int OPENGL = 1;
+	
+	// Maximum number of radii to keep
+	private static final int maxEntries = 64;
+	
+	// The three rings of the Fast-Method for one radius.
+	// Arrays are indexed by: arr[i*2]=x, arr[i*2+1]=y.
+	static final class Rings {
+		final float radius;
+		
+		// Inner positive ring (radius r), inner negative ring (radius r+1), and outer ring (radius about 2r)
+		final int[] coords1;
+		final int[] coords2;
+		final int[] coordsOuter;
+		
+		final int coords1Count;
+		final int coords2Count;
+		final int coordsOuterCount;
+		
+		// The same coordinates sorted by row (y), then by column (x), for better memory locality
+		final int[] coords1ByRow;
+		final int[] coords2ByRow;
+		final int[] coordsOuterByRow;
+		
+		// Used to ensure that the weight of the inner ring is the same as the weight of the outer ring
+		final float innerToOuterRatio;
+		
+		// The largest |x| or |y| in any of the rings
+		final int extent;
+		
+		private Rings(final float radius, final int[] coords1, final int[] coords2, final int[] coordsOuter) {
+			this.radius = radius;
+			this.coords1 = coords1;
+			this.coords2 = coords2;
+			this.coordsOuter = coordsOuter;
+			this.coords1Count = coords1.length / 2;
+			this.coords2Count = coords2.length / 2;
+			this.coordsOuterCount = coordsOuter.length / 2;
+			this.coords1ByRow = sortByRow(coords1);
+			this.coords2ByRow = sortByRow(coords2);
+			this.coordsOuterByRow = sortByRow(coordsOuter);
+			this.innerToOuterRatio = (float)coords1Count / coords2Count;
+			this.extent = Math.max(maxExtent(coords1), Math.max(maxExtent(coords2), maxExtent(coordsOuter)));
+		}
+	}
+	
+	// Key -> rings, in least-recently-used order
+	private static final LinkedHashMap<Long, Rings> cache = new LinkedHashMap<Long, Rings>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		
+		protected boolean removeEldestEntry(final Map.Entry<Long, Rings> eldest) {
+			return size() > maxEntries;
+		}
+	};
+	
+	// Return the rings of the Fast-Method for the given radius and outer ring mode
+	static Rings getRings(final float radius, final int outerMode) {
+		final int quantizedRadius = Math.round(radius * 100);
+		final Long key = ((long)quantizedRadius << 8) | outerMode;
+		
+		synchronized (cache) {
+			final Rings rings = cache.get(key);
+			if (rings != null) {
+				return rings;
+			}
+		}
+		
+		// Generate the rings outside of the lock, so other radii are not held up
+		final Rings rings = generateRings(quantizedRadius / 100f, outerMode);
+		
+		synchronized (cache) {
+			final Rings existing = cache.get(key);
+			if (existing != null) {
+				return existing;
+			}
+			cache.put(key, rings);
+		}
+		return rings;
+	}
+	
+	// Generate the rings of the Fast-Method
+	private static Rings generateRings(final float radius, final int outerMode) {
+		final int[] coords1 = Algorithms.generateCircle(radius);
+		final int[] coords2 = Algorithms.generateCircle(radius + 1);
+		final int[] coordsOuter;
+		if (outerMode == OPENGL) {
+			coordsOuter = Algorithms.generateCircleQuarterDensity(radius * 2); // Skip 75% of pixels for speed.
+		} else if (radius <= 3) {
+			coordsOuter = Algorithms.generateCircle(radius * 2 + 0.5f);
+		} else {
+			// Skip 75% of pixels for speed on larger blur radiuses.
+			coordsOuter = Algorithms.generateCircleQuarterDensity(radius * 2 + 0.5f);
+		}
+		return new Rings(radius, coords1, coords2, coordsOuter);
+	}
+	
+	// Return a copy of the coordinates, sorted by y and then by x
+	private static int[] sortByRow(final int[] coords) {
+		final int count = coords.length / 2;
+		final long[] keys = new long[count];
+		for (int i = 0; i < count; i++) {
+			// Shift the coordinates to be non-negative so that the keys sort correctly
+			keys[i] = ((long)(coords[i * 2 + 1] + Integer.MAX_VALUE / 2) << 32) | (coords[i * 2] + Integer.MAX_VALUE / 2);
+		}
+		Arrays.sort(keys);
+		
+		final int[] sorted = new int[coords.length];
+		for (int i = 0; i < count; i++) {
+			sorted[i * 2 + 0] = (int)(keys[i] & 0xFFFFFFFFL) - Integer.MAX_VALUE / 2;
+			sorted[i * 2 + 1] = (int)(keys[i] >>> 32) - Integer.MAX_VALUE / 2;
+		}
+		return sorted;
+	}
+	
+	// Return the largest |x| or |y| of the coordinates
+	private static int maxExtent(final int[] coords) {
+		int extent = 0;
+		for (int i = 0; i < coords.length; i++) {
+			extent = Math.max(extent, Math.abs(coords[i]));
+		}
+		return extent;
+	}
+}
@@ -0,0 +1,87 @@
+package deconvolution;
+
+// This class counts durations (in nanoseconds) in buckets that grow with the value, like HdrHistogram,
+// so percentiles can be read at any time without keeping every measurement.
+// Each bucket is within about 1.6% of the values in it, from 1 ns up to hundreds of years,
+// and the memory used is fixed (about 30 KB).  The count, mean, and maximum are exact.
+// It is thread-safe, and can be read while other threads are recording.
+
+public class LatencyHistogram {
+	
+	// Values below this are counted exactly.  Above it, every power of 2 is split into halfBucketCount buckets.
+	private static final int subBucketCount = 128;
+	private static final int halfBucketCount = subBucketCount / 2;
+	private static final int subBucketBits = 7; // log2(subBucketCount)
+	
+	// Enough buckets for every positive long
+	private static final int bucketCount = subBucketCount + (63 - subBucketBits) * halfBucketCount;
+	
+	private final long[] counts = new long[bucketCount];
+	private long count = 0;
+	private long total = 0;
+	private long min = Long.MAX_VALUE;
+	private long max = 0;
+	
+	// Count one duration.  Negative durations (eg. from a clock change) count as 0.
+	synchronized void record(final long nanos) {
+		final long value = Math.max(nanos, 0);
+		counts[getBucket(value)]++;
+		count++;
+		total += value;
+		min = Math.min(min, value);
+		max = Math.max(max, value);
+	}
+	
+	synchronized long getCount() {
+		return count;
+	}
+	
+	synchronized double getMean() {
+		return count == 0 ? 0 : (double)total / count;
+	}
+	
+	synchronized long getMax() {
+		return max;
+	}
+	
+	// Return the value that 'percentile' percent (0 to 100) of the durations are at or below,
+	// rounded up to the end of its bucket.  Returns 0 if nothing has been recorded.
+	synchronized long getPercentile(final double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		final long rank = Math.max((long)Math.ceil(count * Math.min(Math.max(percentile, 0), 100) / 100), 1);
+		long seen = 0;
+		for (int i = 0; i < bucketCount; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(Math.max(getBucketEnd(i), min), max);
+			}
+		}
+		return max;
+	}
+	
+	// Return the bucket a value is counted in
+	private static int getBucket(final long value) {
+		if (value < subBucketCount) {
+			return (int)value;
+		}
+		
+		// The top bits of the value pick the bucket within its power of 2
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		final int shift = exponent - (subBucketBits - 1);
+		final int subBucket = (int)(value >>> shift) - halfBucketCount;
+		return subBucketCount + (exponent - subBucketBits) * halfBucketCount + subBucket;
+	}
+	
+	// Return the largest value counted in a bucket
+	private static long getBucketEnd(final int bucket) {
+		if (bucket < subBucketCount) {
+			return bucket;
+		}
+		final int exponent = (bucket - subBucketCount) / halfBucketCount + subBucketBits;
+		final int subBucket = (bucket - subBucketCount) % halfBucketCount + halfBucketCount;
+		final int shift = exponent - (subBucketBits - 1);
+		return (((long)subBucket + 1) << shift) - 1;
+	}
+}
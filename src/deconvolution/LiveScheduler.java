@@ -0,0 +1,195 @@
+package deconvolution;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bytedeco.javacv.Frame;
+
+// This class keeps live video in step with real time.
+// Each frame is due on screen a fixed latency after its presentation timestamp (measured from the first
+// frame).  When the deblur stage is falling behind, frames are deblurred at reduced quality, or dropped,
+// so the video shown stays close to real time instead of falling further and further behind.
+// Used by VideoDecoder.java when the video is shown but not saved.
+
+public class LiveScheduler {
+	
+	// How a frame is deblurred
+	enum Quality {
+		FULL, // The full deblur
+		REDUCED, // A cheaper deblur (eg. at half resolution)
+		DROPPED // Not deblurred, and not shown
+	}
+	
+	// How long after its presentation time each frame should be shown
+	private final long latencyNanos;
+	
+	// Show a frame at least this often, even if it is late, so the screen does not freeze
+	private final long maxDropNanos;
+	
+	// Give up on a deadline that was missed by more than this, and restart the clock (eg. after a pause)
+	private static final long resyncNanos = 1000000000L;
+	
+	// Weight of each new measurement in the moving averages of the deblur times
+	private static final double costWeight = 0.2;
+	
+	// Clock time and presentation timestamp (microseconds) of the first frame.  Guarded by this.
+	private long clockStart = 0;
+	private long firstTimestamp = 0;
+	private boolean isStarted = false;
+	
+	// Presentation time (nanoseconds after the first frame) of the frames in the pipeline, by frame index.
+	// Guarded by this.
+	private final Map<Integer, Long> frameTimes = new HashMap<Integer, Long>();
+	
+	// Quality chosen for the frames being deblurred, by frame index.  Guarded by this.
+	private final Map<Integer, Quality> frameQualities = new HashMap<Integer, Quality>();
+	
+	// Moving averages of how long a full and a reduced deblur take, or 0 before the first measurement.
+	// Guarded by this.
+	private double fullCost = 0;
+	private double reducedCost = 0;
+	
+	// Clock time when the last frame that was not dropped was chosen.  Guarded by this.
+	private long lastKeptTime = 0;
+	
+	// Statistics.  Guarded by this.
+	private int fullCount = 0;
+	private int reducedCount = 0;
+	private int droppedCount = 0;
+	private int resyncCount = 0;
+	private int lateCount = 0; // Frames that were ready after they were due
+	private long totalLatency = 0;
+	private long maxLatency = 0;
+	
+	// Create a scheduler that shows each frame 'latencyMillis' after its presentation time, and shows at least
+	// one frame every 'maxDropMillis'
+	LiveScheduler(final int latencyMillis, final int maxDropMillis) {
+		if (latencyMillis < 0 || maxDropMillis < 0) {
+			throw new IllegalArgumentException("Latencies cannot be negative");
+		}
+		this.latencyNanos = latencyMillis * 1000000L;
+		this.maxDropNanos = maxDropMillis * 1000000L;
+	}
+	
+	// Wrap a frame source to record the presentation time of each frame.
+	// The pipeline numbers the frames in the order the source returns them, starting at 0.
+	VideoPipeline.FrameSource wrap(final VideoPipeline.FrameSource source) {
+		return new VideoPipeline.FrameSource() {
+			private int index = 0;
+			
+			public Frame grabImage() throws Exception {
+				final Frame frame = source.grabImage();
+				if (frame != null) {
+					frameDecoded(index++, frame.timestamp);
+				}
+				return frame;
+			}
+		};
+	}
+	
+	// Record the presentation timestamp (in microseconds) of a decoded frame
+	synchronized void frameDecoded(final int frameIndex, final long timestamp) {
+		if (!isStarted) {
+			clockStart = System.nanoTime();
+			lastKeptTime = clockStart;
+			firstTimestamp = timestamp;
+			isStarted = true;
+		}
+		frameTimes.put(frameIndex, (timestamp - firstTimestamp) * 1000);
+	}
+	
+	// Choose how to deblur a frame that is about to be deblurred, from how long deblurring has been taking.
+	// 'canReduce' is false when the current implementation has no reduced-quality deblur.
+	synchronized Quality chooseQuality(final int frameIndex, final boolean canReduce) {
+		final long now = System.nanoTime();
+		final long deadline = getDeadline(frameIndex);
+		
+		Quality quality;
+		if (now + (long)fullCost <= deadline) {
+			quality = Quality.FULL;
+		} else if (canReduce && now + (long)reducedCost <= deadline) {
+			quality = Quality.REDUCED;
+		} else if (now - lastKeptTime >= maxDropNanos) {
+			// Too long since anything was shown, so show this frame anyway, as cheaply as possible
+			quality = canReduce ? Quality.REDUCED : Quality.FULL;
+		} else {
+			quality = Quality.DROPPED;
+		}
+		
+		if (quality != Quality.DROPPED) {
+			lastKeptTime = now;
+		}
+		frameQualities.put(frameIndex, quality);
+		return quality;
+	}
+	
+	// Record how long a frame took to deblur, in nanoseconds
+	synchronized void deblurFinished(final Quality quality, final long nanos) {
+		if (quality == Quality.FULL) {
+			fullCost = (fullCost == 0) ? nanos : fullCost + (nanos - fullCost) * costWeight;
+		} else if (quality == Quality.REDUCED) {
+			reducedCost = (reducedCost == 0) ? nanos : reducedCost + (nanos - reducedCost) * costWeight;
+		}
+	}
+	
+	// Wait until a deblurred frame is due on screen.
+	// Returns false if the frame was dropped, and should not be shown.
+	boolean waitToShow(final int frameIndex) throws InterruptedException {
+		final long deadline;
+		synchronized (this) {
+			final Quality quality = frameQualities.remove(frameIndex);
+			if (quality == Quality.DROPPED) {
+				frameTimes.remove(frameIndex);
+				droppedCount++;
+				return false;
+			}
+			if (quality == Quality.REDUCED) {
+				reducedCount++;
+			} else {
+				fullCount++;
+			}
+			deadline = getDeadline(frameIndex);
+		}
+		
+		final long wait = deadline - System.nanoTime();
+		if (wait > 0) {
+			Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+		}
+		
+		synchronized (this) {
+			final long now = System.nanoTime();
+			final long latency = now - (clockStart + frameTimes.remove(frameIndex));
+			totalLatency += latency;
+			maxLatency = Math.max(maxLatency, latency);
+			if (wait <= 0) {
+				lateCount++;
+			}
+			
+			// Far behind (eg. the machine was busy), so start again from this frame instead of dropping
+			// every frame until the video catches up
+			if (now - deadline > resyncNanos) {
+				clockStart += now - deadline;
+				resyncCount++;
+			}
+		}
+		return true;
+	}
+	
+	// Return the clock time a frame should be shown at.  The frame must have been decoded.
+	private long getDeadline(final int frameIndex) {
+		final Long time = frameTimes.get(frameIndex);
+		if (time == null) {
+			throw new IllegalStateException("No timestamp for frame " + frameIndex);
+		}
+		return clockStart + time + latencyNanos;
+	}
+	
+	// Return the dropped-frame and latency statistics
+	synchronized String getSummary() {
+		final int shown = fullCount + reducedCount;
+		return "Live video: " + shown + " frames shown (" + reducedCount + " at reduced quality), " +
+				droppedCount + " dropped, " + lateCount + " late, " + resyncCount + " resyncs, latency " +
+				String.format("%.1f", totalLatency / 1000000.0 / Math.max(shown, 1)) + " ms mean, " +
+				String.format("%.1f", maxLatency / 1000000.0) + " ms max";
+	}
+}
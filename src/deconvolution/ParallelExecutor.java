@@ -0,0 +1,143 @@
+package deconvolution;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// This class runs the multithreaded parts of the algorithms on one long-lived, work-stealing thread pool.
+// A parallel loop is split into tiles (bands of rows) which idle threads steal from each other,
+// and the caller blocks until every tile has completed.
+
+public class ParallelExecutor {
+	
+	// The body of a parallel loop.  Processes the indices (usually rows) in [start, end).
+	interface RangeTask {
+		void run(int start, int end);
+	}
+	
+	// Number of tiles to create per thread, so that uneven tiles can be balanced by work stealing
+	private static final int tilesPerThread = 8;
+	
+	// Largest number of rows in a single tile.  This keeps progress and cancellation responsive.
+	private static final int maxTileRows = 32;
+	
+	// The shared pool, and the parallelism it was created with
+	private static ForkJoinPool pool;
+	private static int poolParallelism = 0;
+	
+	// A worker thread, named so it is recognizable in a profiler.
+	// Workers exit when they have been idle for a while, and when getPool() replaces the pool, so they
+	// report their allocations to AllocationMonitor as they exit.
+	private static final class WorkerThread extends ForkJoinWorkerThread {
+		WorkerThread(final ForkJoinPool pool) {
+			super(pool);
+			setName("Deblur worker " + getPoolIndex());
+		}
+		
+		protected void onTermination(final Throwable exception) {
+			AllocationMonitor.threadFinished();
+			super.onTermination(exception);
+		}
+	}
+	
+	private static final ForkJoinPool.ForkJoinWorkerThreadFactory threadFactory =
+			new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+		public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+			return new WorkerThread(pool);
+		}
+	};
+	
+	// Return the shared pool.  It is (re)created when Algorithms.numThreads changes.
+	static synchronized ForkJoinPool getPool() {
+		final int parallelism = Math.max(Algorithms.numThreads, 1);
+		if (pool == null || poolParallelism != parallelism) {
+			if (pool != null) {
+				pool.shutdown();
+			}
+			pool = new ForkJoinPool(parallelism, threadFactory, null, false);
+			poolParallelism = parallelism;
+		}
+		return pool;
+	}
+	
+	// Run the task over the rows [0, height) in parallel, and wait for it to finish.
+	// If 'showProgress' is true, then the monitor's progress is updated as tiles are completed.
+	// Tiles that have not started are skipped once the monitor is canceled.
+	static void forEachRow(final int height, final ProgressMonitor monitor,
+			final boolean showProgress, final RangeTask task) {
+		final int parallelism = Math.max(Algorithms.numThreads, 1);
+		final int tileRows = Math.max(1, Math.min(maxTileRows, height / (parallelism * tilesPerThread)));
+		run(new TileAction(0, height, tileRows, task, monitor,
+				showProgress && monitor != null ? new AtomicInteger() : null, height));
+	}
+	
+	// Run the task over the rows [0, height) in parallel, and wait for it to finish.
+	// This cannot be canceled, and does not show any progress.
+	static void forEachRow(final int height, final RangeTask task) {
+		final int parallelism = Math.max(Algorithms.numThreads, 1);
+		final int tileRows = Math.max(1, Math.min(maxTileRows, height / (parallelism * tilesPerThread)));
+		run(new TileAction(0, height, tileRows, task, null, null, height));
+	}
+	
+	// Run the task once for every index in [0, count) in parallel, and wait for it to finish.
+	// Intended for a small number of large, independent jobs (such as one per color channel).
+	static void forEach(final int count, final RangeTask task) {
+		run(new TileAction(0, count, 1, task, null, null, count));
+	}
+	
+	// Invoke the action on the shared pool (or directly, if we are already running inside the pool)
+	private static void run(final TileAction action) {
+		final ForkJoinPool sharedPool = getPool();
+		if (ForkJoinTask.getPool() == sharedPool) {
+			action.invoke();
+		} else {
+			sharedPool.invoke(action);
+		}
+	}
+	
+	// Recursively split a range of rows in half until it is no larger than one tile
+	private static class TileAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final int start;
+		private final int end;
+		private final int tileRows;
+		private final RangeTask task;
+		private final ProgressMonitor monitor; // Null if this cannot be canceled
+		private final AtomicInteger rowsCompleted; // Null if progress is not being shown
+		private final int totalRows;
+		
+		TileAction(int start, int end, int tileRows, RangeTask task, ProgressMonitor monitor,
+				AtomicInteger rowsCompleted, int totalRows) {
+			this.start = start;
+			this.end = end;
+			this.tileRows = tileRows;
+			this.task = task;
+			this.monitor = monitor;
+			this.rowsCompleted = rowsCompleted;
+			this.totalRows = totalRows;
+		}
+		
+		protected void compute() {
+			if (end - start > tileRows) {
+				final int middle = (start + end) >>> 1;
+				invokeAll(new TileAction(start, middle, tileRows, task, monitor, rowsCompleted, totalRows),
+						new TileAction(middle, end, tileRows, task, monitor, rowsCompleted, totalRows));
+				return;
+			}
+			
+			// Exit early if the effect has been canceled
+			if (monitor != null && monitor.isCanceled()) {
+				return;
+			}
+			
+			task.run(start, end);
+			
+			if (rowsCompleted != null) {
+				monitor.updateProgress((double)rowsCompleted.addAndGet(end - start) / totalRows);
+			}
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package deconvolution;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+// This class collects the timing of a video run through a VideoPipeline: a latency histogram for each
+// stage, how long each stage waited on its neighbours, and how full the queues between the stages were.
+// The stage that rarely waits is the one that limits the frame rate.
+// It is thread-safe, and can be read while the video is running (eg. for a status display).
+// At the end of a run it can be written as a CSV or JSON report.
+
+public class PipelineMetrics {
+	
+	// The timed steps of each frame.  The pipeline times the stages that run on their own threads
+	// (decode, convert, deblur, and output), and the sink may time the parts of the output stage.
+	enum Stage {
+		DECODE("decode"), // Grabbing a frame from the decoder, and copying it out
+		CONVERT("convert"), // Converting the frames that are not in BGR byte order
+		DEBLUR("deblur"),
+		OUTPUT("output"), // Everything the sink does with a frame
+		ENCODE("encode"), // Encoding the frame (part of the output stage)
+		DISPLAY("display"), // Showing the frame on screen, including waiting until it is due (part of the output stage)
+		FRAME("frame"); // The whole time from decoding a frame to finishing its output
+		
+		final String name;
+		
+		Stage(final String name) {
+			this.name = name;
+		}
+	}
+	
+	// The queues between the stages
+	enum Queue {
+		DECODED("decoded"), // Between the decode and convert stages
+		CONVERTED("converted"), // Between the convert and deblur stages
+		COMPLETED("completed"); // Deblurred frames waiting to be written in order
+		
+		final String name;
+		
+		Queue(final String name) {
+			this.name = name;
+		}
+	}
+	
+	private static final double[] percentiles = { 50, 95, 99 };
+	
+	private final long startTime = System.nanoTime();
+	
+	// Time spent in each stage, by frame
+	private final LatencyHistogram[] stageTimes = new LatencyHistogram[Stage.values().length];
+	
+	// Total time each stage waited for a frame from the stage before, and for room in the stage after.
+	// Guarded by this.
+	private final long[] inputWaits = new long[Stage.values().length];
+	private final long[] outputWaits = new long[Stage.values().length];
+	
+	// Number of frames in each queue, measured every time a frame is added.  Guarded by this.
+	private final long[] queueSamples = new long[Queue.values().length];
+	private final long[] queueTotals = new long[Queue.values().length];
+	private final int[] queueMaximums = new int[Queue.values().length];
+	private final int[] queueCapacities = new int[Queue.values().length];
+	
+	PipelineMetrics() {
+		for (int i = 0; i < stageTimes.length; i++) {
+			stageTimes[i] = new LatencyHistogram();
+		}
+	}
+	
+	// Record the time one frame spent in a stage
+	void recordStage(final Stage stage, final long nanos) {
+		stageTimes[stage.ordinal()].record(nanos);
+	}
+	
+	// Record time a stage spent waiting for its next frame
+	synchronized void recordInputWait(final Stage stage, final long nanos) {
+		inputWaits[stage.ordinal()] += nanos;
+	}
+	
+	// Record time a stage spent waiting to pass a frame on (or for a frame to be allowed into the pipeline)
+	synchronized void recordOutputWait(final Stage stage, final long nanos) {
+		outputWaits[stage.ordinal()] += nanos;
+	}
+	
+	// Record the number of frames in a queue, just after a frame was added
+	synchronized void recordQueue(final Queue queue, final int size) {
+		queueSamples[queue.ordinal()]++;
+		queueTotals[queue.ordinal()] += size;
+		queueMaximums[queue.ordinal()] = Math.max(queueMaximums[queue.ordinal()], size);
+	}
+	
+	// Set the most frames a queue can hold, or 0 if it has no limit
+	synchronized void setQueueCapacity(final Queue queue, final int capacity) {
+		queueCapacities[queue.ordinal()] = capacity;
+	}
+	
+	// Return the timing of one stage.  The histogram keeps changing while the video runs.
+	LatencyHistogram getStageTimes(final Stage stage) {
+		return stageTimes[stage.ordinal()];
+	}
+	
+	synchronized long getInputWait(final Stage stage) {
+		return inputWaits[stage.ordinal()];
+	}
+	
+	synchronized long getOutputWait(final Stage stage) {
+		return outputWaits[stage.ordinal()];
+	}
+	
+	synchronized double getMeanQueueSize(final Queue queue) {
+		final long samples = queueSamples[queue.ordinal()];
+		return samples == 0 ? 0 : (double)queueTotals[queue.ordinal()] / samples;
+	}
+	
+	synchronized int getMaxQueueSize(final Queue queue) {
+		return queueMaximums[queue.ordinal()];
+	}
+	
+	// Return the time since the metrics were created, in nanoseconds
+	long getElapsed() {
+		return System.nanoTime() - startTime;
+	}
+	
+	// Return a table of the stages and queues, for printing
+	String getSummary() {
+		final StringBuilder summary = new StringBuilder();
+		summary.append(String.format(Locale.ROOT, "%-8s %7s %9s %9s %9s %9s %9s %9s %9s%n", "Stage", "Frames",
+				"Mean ms", "p50 ms", "p95 ms", "p99 ms", "Max ms", "Starved", "Blocked"));
+		final double elapsed = Math.max(getElapsed(), 1);
+		for (Stage stage : Stage.values()) {
+			final LatencyHistogram times = getStageTimes(stage);
+			if (times.getCount() == 0) {
+				continue;
+			}
+			summary.append(String.format(Locale.ROOT, "%-8s %7d %9.2f %9.2f %9.2f %9.2f %9.2f %8.1f%% %8.1f%%%n",
+					stage.name, times.getCount(), times.getMean() / 1e6, times.getPercentile(50) / 1e6,
+					times.getPercentile(95) / 1e6, times.getPercentile(99) / 1e6, times.getMax() / 1e6,
+					100 * getInputWait(stage) / elapsed, 100 * getOutputWait(stage) / elapsed));
+		}
+		for (Queue queue : Queue.values()) {
+			summary.append(String.format(Locale.ROOT, "Queue %s: %.1f frames on average, %d at most",
+					queue.name, getMeanQueueSize(queue), getMaxQueueSize(queue)));
+			final int capacity = getQueueCapacity(queue);
+			if (capacity > 0) {
+				summary.append(" (capacity " + capacity + ")");
+			}
+			summary.append(String.format("%n"));
+		}
+		return summary.toString().trim();
+	}
+	
+	// Return the report as CSV, with one line per stage and per queue.
+	// Times are in milliseconds, and the waits of the stages that run on several threads are added together.
+	String toCSV() {
+		final StringBuilder csv = new StringBuilder();
+		csv.append("type,name,count,mean_ms,p50_ms,p95_ms,p99_ms,max_ms,starved_ms,blocked_ms," +
+				"mean_frames,max_frames,capacity\n");
+		for (Stage stage : Stage.values()) {
+			final LatencyHistogram times = getStageTimes(stage);
+			csv.append(String.format(Locale.ROOT, "stage,%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,,,%n",
+					stage.name, times.getCount(), times.getMean() / 1e6, times.getPercentile(50) / 1e6,
+					times.getPercentile(95) / 1e6, times.getPercentile(99) / 1e6, times.getMax() / 1e6,
+					getInputWait(stage) / 1e6, getOutputWait(stage) / 1e6));
+		}
+		for (Queue queue : Queue.values()) {
+			csv.append(String.format(Locale.ROOT, "queue,%s,,,,,,,,,%.3f,%d,%d%n",
+					queue.name, getMeanQueueSize(queue), getMaxQueueSize(queue), getQueueCapacity(queue)));
+		}
+		return csv.toString();
+	}
+	
+	// Return the report as JSON.  Times are in milliseconds.
+	String toJSON() {
+		final StringBuilder json = new StringBuilder();
+		json.append(String.format(Locale.ROOT, "{\n  \"elapsed_ms\": %.3f,\n  \"stages\": {\n", getElapsed() / 1e6));
+		final Stage[] stages = Stage.values();
+		for (int i = 0; i < stages.length; i++) {
+			final LatencyHistogram times = getStageTimes(stages[i]);
+			json.append(String.format(Locale.ROOT, "    \"%s\": {\"count\": %d, \"mean_ms\": %.3f",
+					stages[i].name, times.getCount(), times.getMean() / 1e6));
+			for (double percentile : percentiles) {
+				json.append(String.format(Locale.ROOT, ", \"p%d_ms\": %.3f", (int)percentile,
+						times.getPercentile(percentile) / 1e6));
+			}
+			json.append(String.format(Locale.ROOT, ", \"max_ms\": %.3f, \"starved_ms\": %.3f, \"blocked_ms\": %.3f}%s\n",
+					times.getMax() / 1e6, getInputWait(stages[i]) / 1e6, getOutputWait(stages[i]) / 1e6,
+					i + 1 < stages.length ? "," : ""));
+		}
+		json.append("  },\n  \"queues\": {\n");
+		final Queue[] queues = Queue.values();
+		for (int i = 0; i < queues.length; i++) {
+			json.append(String.format(Locale.ROOT,
+					"    \"%s\": {\"mean_frames\": %.3f, \"max_frames\": %d, \"capacity\": %d}%s\n",
+					queues[i].name, getMeanQueueSize(queues[i]), getMaxQueueSize(queues[i]),
+					getQueueCapacity(queues[i]), i + 1 < queues.length ? "," : ""));
+		}
+		json.append("  }\n}\n");
+		return json.toString();
+	}
+	
+	// Write the report to a file, as JSON if the name ends in ".json", and otherwise as CSV
+	void writeReport(final String path) throws IOException {
+		final String report = path.toLowerCase(Locale.ROOT).endsWith(".json") ? toJSON() : toCSV();
+		final Writer writer = new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8);
+		try {
+			writer.write(report);
+		} finally {
+			writer.close();
+		}
+	}
+	
+	private synchronized int getQueueCapacity(final Queue queue) {
+		return queueCapacities[queue.ordinal()];
+	}
+}
@@ -0,0 +1,130 @@
+package deconvolution;
+
+// This class holds a floating-point image with one contiguous, row-major array per color channel.
+// Pixel (x, y) of channel c is stored at planes[c][offset + y * stride + x].
+// Sub-region views share the arrays of their parent, so no pixels are copied.
+
+public class PlanarImage {
+	
+	// Dimensions of the visible region of this image
+	final int width;
+	final int height;
+	
+	// Distance (in elements) between the start of one row and the next
+	final int stride;
+	
+	// Index of pixel (0, 0) within each plane
+	final int offset;
+	
+	// One array per color channel (red, green, blue for color images)
+	final float[][] planes;
+	
+	// Create a new black RGB image
+	public PlanarImage(final int width, final int height) {
+		this(width, height, 3);
+	}
+	
+	// Create a new black image with the given number of color channels
+	public PlanarImage(final int width, final int height, final int channels) {
+		if (width <= 0 || height <= 0 || channels <= 0) {
+			throw new IllegalArgumentException("Invalid image size: " + width + "x" + height + "x" + channels);
+		}
+		this.width = width;
+		this.height = height;
+		this.stride = width;
+		this.offset = 0;
+		this.planes = new float[channels][width * height];
+	}
+	
+	// Wrap existing planes.  Used for views and for images backed by externally owned arrays.
+	PlanarImage(final float[][] planes, final int width, final int height, final int stride, final int offset) {
+		if (width <= 0 || height <= 0 || stride < width || offset < 0) {
+			throw new IllegalArgumentException("Invalid image layout: " + width + "x" + height +
+					", stride " + stride + ", offset " + offset);
+		}
+		for (int c = 0; c < planes.length; c++) {
+			if (planes[c].length < offset + (height - 1) * stride + width) {
+				throw new IllegalArgumentException("Plane " + c + " is too small for the given layout");
+			}
+		}
+		this.planes = planes;
+		this.width = width;
+		this.height = height;
+		this.stride = stride;
+		this.offset = offset;
+	}
+	
+	public int getWidth() {
+		return width;
+	}
+	
+	public int getHeight() {
+		return height;
+	}
+	
+	public int getChannels() {
+		return planes.length;
+	}
+	
+	// Return the index of pixel (x, y) within each plane
+	final int index(final int x, final int y) {
+		return offset + y * stride + x;
+	}
+	
+	public float get(final int channel, final int x, final int y) {
+		return planes[channel][offset + y * stride + x];
+	}
+	
+	public void set(final int channel, final int x, final int y, final float value) {
+		planes[channel][offset + y * stride + x] = value;
+	}
+	
+	// Return true if this image has the same width, height, and channel count as the other
+	public boolean isSameSize(final PlanarImage other) {
+		return width == other.width && height == other.height && planes.length == other.planes.length;
+	}
+	
+	// Return true if there are no gaps between rows (ie. this is not a view of a wider image)
+	boolean isContiguous() {
+		return stride == width;
+	}
+	
+	// Return a view of a rectangular region of this image.
+	// Writing to the view writes to this image.
+	public PlanarImage subImage(final int x, final int y, final int w, final int h) {
+		if (x < 0 || y < 0 || w <= 0 || h <= 0 || x + w > width || y + h > height) {
+			throw new IllegalArgumentException("Region " + x + "," + y + " " + w + "x" + h +
+					" is outside of the " + width + "x" + height + " image");
+		}
+		return new PlanarImage(planes, w, h, stride, index(x, y));
+	}
+	
+	// Return a new image of the same size, with all pixels set to zero
+	public PlanarImage createCompatible() {
+		return new PlanarImage(width, height, planes.length);
+	}
+	
+	// Return a compact copy of this image (or view)
+	public PlanarImage copy() {
+		final PlanarImage newImage = createCompatible();
+		newImage.copyFrom(this);
+		return newImage;
+	}
+	
+	// Copy all pixels from the given image, which must be the same size
+	public void copyFrom(final PlanarImage source) {
+		if (!isSameSize(source)) {
+			throw new IllegalArgumentException("Cannot copy a " + source.width + "x" + source.height +
+					" image into a " + width + "x" + height + " image");
+		}
+		for (int c = 0; c < planes.length; c++) {
+			if (isContiguous() && source.isContiguous()) {
+				System.arraycopy(source.planes[c], source.offset, planes[c], offset, width * height);
+			} else {
+				for (int y = 0; y < height; y++) {
+					System.arraycopy(source.planes[c], source.index(0, y), planes[c], index(0, y), width);
+				}
+			}
+		}
+	}
+}
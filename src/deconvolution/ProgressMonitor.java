@@ -0,0 +1,35 @@
+package deconvolution;
+
+// This class receives status updates from a running algorithm, and tells the algorithm when to stop.
+// The base implementation ignores all updates, so it can be used directly when running without a GUI.
+// One monitor should be used per job, so that canceling one job does not affect any other.
+
+public class ProgressMonitor {
+	
+	// Whether cancel() has been called
+	private volatile boolean isCanceled = false;
+	
+	// Called with a short description of the current step (eg. "Deblurring (120ms)")
+	public void setProcessName(final String name) {
+	}
+	
+	// Called with the fraction of the work completed so far, from 0 to 1
+	public void updateProgress(final double fraction) {
+	}
+	
+	// Called with the kernel that the algorithm is about to use, indexed by [x][y].
+	// This is only used for display purposes.
+	public void setKernel(final float[][] kernel) {
+	}
+	
+	// Return true if the algorithm should stop as soon as possible.
+	// Algorithms return null when they stop early.
+	public boolean isCanceled() {
+		return isCanceled;
+	}
+	
+	// Ask the algorithm to stop as soon as possible
+	public void cancel() {
+		isCanceled = true;
+	}
+}
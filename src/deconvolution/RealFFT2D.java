@@ -0,0 +1,476 @@
+package deconvolution;
+
+import java.util.Arrays;
+
+// This class computes the 2D DFT of real images in pure Java, so Wiener deconvolution does not need the
+// native OpenCV library.
+// The 1D transforms are mixed-radix Cooley-Tukey FFTs for sizes with the factors 2, 3, and 5 (the sizes
+// getOptimalDFTSize() returns), and fall back to a slower direct DFT for any other prime factors.
+// A real image has a Hermitian spectrum, so only columns 0 to cols/2 of the spectrum are computed and
+// stored, and the rows are transformed two at a time as the real and imaginary parts of one complex row.
+// That is half the work and memory of transforming the image as a complex one.
+// Spectra are stored row-major with interleaved real and imaginary parts:
+// spectrum[(y * spectrumCols + x) * 2] is the real part of frequency (x, y), and the next element is the
+// imaginary part.  The rows and columns are split between the threads of ParallelExecutor.
+
+public class RealFFT2D {
+	
+	final int rows;
+	final int cols;
+	
+	// Number of columns of the spectrum that are stored
+	final int spectrumCols;
+	
+	private final FFT rowFFT;
+	private final FFT columnFFT;
+	
+	// Number of columns transformed together in the column pass, for better memory locality
+	private static final int columnBlock = 8;
+	
+	RealFFT2D(final int rows, final int cols) {
+		if (rows <= 0 || cols <= 0) {
+			throw new IllegalArgumentException("Invalid DFT size: " + cols + "x" + rows);
+		}
+		this.rows = rows;
+		this.cols = cols;
+		this.spectrumCols = cols / 2 + 1;
+		this.rowFFT = new FFT(cols);
+		this.columnFFT = (rows == cols) ? rowFFT : new FFT(rows);
+	}
+	
+	// Return the number of floats in a spectrum
+	int getSpectrumLength() {
+		return rows * spectrumCols * 2;
+	}
+	
+	// Return the smallest size of at least n whose only prime factors are 2, 3, and 5.
+	// This is the same as OpenCV's Core.getOptimalDFTSize().
+	static int getOptimalDFTSize(final int n) {
+		if (n <= 1) {
+			return 1;
+		}
+		long best = Long.MAX_VALUE;
+		for (long power5 = 1; ; power5 *= 5) {
+			for (long power3 = power5; ; power3 *= 3) {
+				long size = power3;
+				while (size < n) {
+					size *= 2;
+				}
+				best = Math.min(best, size);
+				if (power3 >= n) {
+					break;
+				}
+			}
+			if (power5 >= n) {
+				break;
+			}
+		}
+		if (best > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("No DFT size for " + n);
+		}
+		return (int)best;
+	}
+	
+	// Compute the spectrum of a real image of rows x cols floats (row-major, with rows 'stride' apart)
+	void forward(final float[] image, final int stride, final float[] spectrum) {
+		
+		// Transform the rows two at a time: as z = a + ib, A(k) = (Z(k) + conj(Z(-k))) / 2 and
+		// B(k) = (Z(k) - conj(Z(-k))) / 2i
+		ParallelExecutor.forEachRow((rows + 1) / 2, new ParallelExecutor.RangeTask() {
+			public void run(final int start, final int end) {
+				final double[] re = new double[cols];
+				final double[] im = new double[cols];
+				final double[] outRe = new double[cols];
+				final double[] outIm = new double[cols];
+				for (int pair = start; pair < end; pair++) {
+					final int rowA = pair * 2;
+					final int rowB = rowA + 1;
+					for (int x = 0; x < cols; x++) {
+						re[x] = image[rowA * stride + x];
+						im[x] = (rowB < rows) ? image[rowB * stride + x] : 0;
+					}
+					rowFFT.transform(re, im, outRe, outIm, false);
+					
+					for (int k = 0; k < spectrumCols; k++) {
+						final int negative = (k == 0) ? 0 : cols - k;
+						final int indexA = (rowA * spectrumCols + k) * 2;
+						spectrum[indexA] = (float)((outRe[k] + outRe[negative]) * 0.5);
+						spectrum[indexA + 1] = (float)((outIm[k] - outIm[negative]) * 0.5);
+						if (rowB < rows) {
+							final int indexB = (rowB * spectrumCols + k) * 2;
+							spectrum[indexB] = (float)((outIm[k] + outIm[negative]) * 0.5);
+							spectrum[indexB + 1] = (float)((outRe[negative] - outRe[k]) * 0.5);
+						}
+					}
+				}
+			}
+		});
+		
+		transformColumns(spectrum, false);
+	}
+	
+	// Compute the real image of a spectrum, multiplied by 'scale', and write it to 'image' (row-major, with
+	// rows 'stride' apart).  The spectrum is overwritten.
+	void inverse(final float[] spectrum, final float[] image, final int stride, final float scale) {
+		
+		transformColumns(spectrum, true);
+		
+		// Transform the rows two at a time, as z = a + ib, filling in the other half of each row's
+		// spectrum from A(-k) = conj(A(k))
+		ParallelExecutor.forEachRow((rows + 1) / 2, new ParallelExecutor.RangeTask() {
+			public void run(final int start, final int end) {
+				final double[] re = new double[cols];
+				final double[] im = new double[cols];
+				final double[] outRe = new double[cols];
+				final double[] outIm = new double[cols];
+				for (int pair = start; pair < end; pair++) {
+					final int rowA = pair * 2;
+					final int rowB = rowA + 1;
+					for (int k = 0; k < cols; k++) {
+						final boolean isConjugate = k >= spectrumCols;
+						final int column = isConjugate ? cols - k : k;
+						final int indexA = (rowA * spectrumCols + column) * 2;
+						final double aRe = spectrum[indexA];
+						final double aIm = isConjugate ? -spectrum[indexA + 1] : spectrum[indexA + 1];
+						double bRe = 0;
+						double bIm = 0;
+						if (rowB < rows) {
+							final int indexB = (rowB * spectrumCols + column) * 2;
+							bRe = spectrum[indexB];
+							bIm = isConjugate ? -spectrum[indexB + 1] : spectrum[indexB + 1];
+						}
+						re[k] = aRe - bIm;
+						im[k] = aIm + bRe;
+					}
+					rowFFT.transform(re, im, outRe, outIm, true);
+					
+					for (int x = 0; x < cols; x++) {
+						image[rowA * stride + x] = (float)(outRe[x] * scale);
+						if (rowB < rows) {
+							image[rowB * stride + x] = (float)(outIm[x] * scale);
+						}
+					}
+				}
+			}
+		});
+	}
+	
+	// Transform each column of the spectrum in place
+	private void transformColumns(final float[] spectrum, final boolean inverse) {
+		final int blocks = (spectrumCols + columnBlock - 1) / columnBlock;
+		ParallelExecutor.forEachRow(blocks, new ParallelExecutor.RangeTask() {
+			public void run(final int start, final int end) {
+				final double[][] re = new double[columnBlock][rows];
+				final double[][] im = new double[columnBlock][rows];
+				final double[] outRe = new double[rows];
+				final double[] outIm = new double[rows];
+				for (int block = start; block < end; block++) {
+					final int firstColumn = block * columnBlock;
+					final int count = Math.min(columnBlock, spectrumCols - firstColumn);
+					
+					// Copy a block of columns out row by row, transform them, and copy them back
+					for (int y = 0; y < rows; y++) {
+						final int index = (y * spectrumCols + firstColumn) * 2;
+						for (int i = 0; i < count; i++) {
+							re[i][y] = spectrum[index + i * 2];
+							im[i][y] = spectrum[index + i * 2 + 1];
+						}
+					}
+					for (int i = 0; i < count; i++) {
+						columnFFT.transform(re[i], im[i], outRe, outIm, inverse);
+						System.arraycopy(outRe, 0, re[i], 0, rows);
+						System.arraycopy(outIm, 0, im[i], 0, rows);
+					}
+					for (int y = 0; y < rows; y++) {
+						final int index = (y * spectrumCols + firstColumn) * 2;
+						for (int i = 0; i < count; i++) {
+							spectrum[index + i * 2] = (float)re[i][y];
+							spectrum[index + i * 2 + 1] = (float)im[i][y];
+						}
+					}
+				}
+			}
+		});
+	}
+	
+	// A 1D complex FFT of one size.  It can be used by several threads at once.
+	static final class FFT {
+		final int n;
+		
+		// Radix of each stage, in the order they are applied
+		private final int[] factors;
+		
+		// Input index of each element after the digit-reversal permutation
+		private final int[] permutation;
+		
+		// cos and sin of 2*pi*m/n
+		private final double[] cos;
+		private final double[] sin;
+		
+		FFT(final int n) {
+			this.n = n;
+			
+			// Radix 4 stages first, as they are the fastest
+			int[] found = new int[32];
+			int count = 0;
+			int remaining = n;
+			while (remaining % 4 == 0) {
+				found[count++] = 4;
+				remaining /= 4;
+			}
+			for (int factor = 2; remaining > 1; factor++) {
+				while (remaining % factor == 0) {
+					if (count == found.length) {
+						found = Arrays.copyOf(found, count * 2);
+					}
+					found[count++] = factor;
+					remaining /= factor;
+				}
+			}
+			factors = Arrays.copyOf(found, count);
+			
+			permutation = new int[n];
+			permute(0, 1, factors.length, new int[1]);
+			
+			cos = new double[n];
+			sin = new double[n];
+			for (int m = 0; m < n; m++) {
+				final double angle = 2 * Math.PI * m / n;
+				cos[m] = Math.cos(angle);
+				sin[m] = Math.sin(angle);
+			}
+		}
+		
+		// Fill in the permutation.  The last stage combines factors[stages-1] interleaved sub-sequences,
+		// each of which is transformed (recursively) into a contiguous block.
+		private void permute(final int offset, final int stride, final int stages, final int[] position) {
+			if (stages == 0) {
+				permutation[position[0]++] = offset;
+				return;
+			}
+			final int radix = factors[stages - 1];
+			for (int j = 0; j < radix; j++) {
+				permute(offset + j * stride, stride * radix, stages - 1, position);
+			}
+		}
+		
+		// Transform (re, im) into (outRe, outIm).  The inverse transform is not scaled.
+		void transform(final double[] re, final double[] im, final double[] outRe, final double[] outIm,
+				final boolean inverse) {
+			for (int i = 0; i < n; i++) {
+				outRe[i] = re[permutation[i]];
+				outIm[i] = im[permutation[i]];
+			}
+			
+			// exp(sign * 2*pi*i * m / n) is the twiddle factor for m
+			final double sign = inverse ? 1 : -1;
+			int span = 1; // Size of the transforms combined by each butterfly
+			for (int stage = 0; stage < factors.length; stage++) {
+				final int radix = factors[stage];
+				final int blockSize = span * radix;
+				final int step = n / blockSize;
+				switch (radix) {
+				case 2:
+					radix2(outRe, outIm, span, blockSize, step, sign);
+					break;
+				case 3:
+					radix3(outRe, outIm, span, blockSize, step, sign);
+					break;
+				case 4:
+					radix4(outRe, outIm, span, blockSize, step, sign);
+					break;
+				case 5:
+					radix5(outRe, outIm, span, blockSize, step, sign);
+					break;
+				default:
+					radixGeneric(outRe, outIm, radix, span, blockSize, step, sign);
+				}
+				span = blockSize;
+			}
+		}
+		
+		private void radix2(final double[] re, final double[] im, final int span, final int blockSize,
+				final int step, final double sign) {
+			for (int k = 0; k < span; k++) {
+				final double wRe = cos[k * step];
+				final double wIm = sign * sin[k * step];
+				for (int i0 = k; i0 < n; i0 += blockSize) {
+					final int i1 = i0 + span;
+					final double aRe = re[i1] * wRe - im[i1] * wIm;
+					final double aIm = re[i1] * wIm + im[i1] * wRe;
+					re[i1] = re[i0] - aRe;
+					im[i1] = im[i0] - aIm;
+					re[i0] += aRe;
+					im[i0] += aIm;
+				}
+			}
+		}
+		
+		private void radix3(final double[] re, final double[] im, final int span, final int blockSize,
+				final int step, final double sign) {
+			final double s = sign * Math.sqrt(3) / 2;
+			for (int k = 0; k < span; k++) {
+				final double w1Re = cos[k * step];
+				final double w1Im = sign * sin[k * step];
+				final double w2Re = cos[2 * k * step];
+				final double w2Im = sign * sin[2 * k * step];
+				for (int i0 = k; i0 < n; i0 += blockSize) {
+					final int i1 = i0 + span;
+					final int i2 = i1 + span;
+					final double a1Re = re[i1] * w1Re - im[i1] * w1Im;
+					final double a1Im = re[i1] * w1Im + im[i1] * w1Re;
+					final double a2Re = re[i2] * w2Re - im[i2] * w2Im;
+					final double a2Im = re[i2] * w2Im + im[i2] * w2Re;
+					
+					final double t1Re = a1Re + a2Re;
+					final double t1Im = a1Im + a2Im;
+					final double mRe = re[i0] - t1Re * 0.5;
+					final double mIm = im[i0] - t1Im * 0.5;
+					
+					// s * i * (a1 - a2)
+					final double dRe = -s * (a1Im - a2Im);
+					final double dIm = s * (a1Re - a2Re);
+					
+					re[i0] += t1Re;
+					im[i0] += t1Im;
+					re[i1] = mRe + dRe;
+					im[i1] = mIm + dIm;
+					re[i2] = mRe - dRe;
+					im[i2] = mIm - dIm;
+				}
+			}
+		}
+		
+		private void radix4(final double[] re, final double[] im, final int span, final int blockSize,
+				final int step, final double sign) {
+			for (int k = 0; k < span; k++) {
+				final double w1Re = cos[k * step];
+				final double w1Im = sign * sin[k * step];
+				final double w2Re = cos[2 * k * step];
+				final double w2Im = sign * sin[2 * k * step];
+				final double w3Re = cos[3 * k * step];
+				final double w3Im = sign * sin[3 * k * step];
+				for (int i0 = k; i0 < n; i0 += blockSize) {
+					final int i1 = i0 + span;
+					final int i2 = i1 + span;
+					final int i3 = i2 + span;
+					final double a0Re = re[i0];
+					final double a0Im = im[i0];
+					final double a1Re = re[i1] * w1Re - im[i1] * w1Im;
+					final double a1Im = re[i1] * w1Im + im[i1] * w1Re;
+					final double a2Re = re[i2] * w2Re - im[i2] * w2Im;
+					final double a2Im = re[i2] * w2Im + im[i2] * w2Re;
+					final double a3Re = re[i3] * w3Re - im[i3] * w3Im;
+					final double a3Im = re[i3] * w3Im + im[i3] * w3Re;
+					
+					final double t0Re = a0Re + a2Re;
+					final double t0Im = a0Im + a2Im;
+					final double t1Re = a0Re - a2Re;
+					final double t1Im = a0Im - a2Im;
+					final double t2Re = a1Re + a3Re;
+					final double t2Im = a1Im + a3Im;
+					
+					// sign * i * (a1 - a3)
+					final double t3Re = -sign * (a1Im - a3Im);
+					final double t3Im = sign * (a1Re - a3Re);
+					
+					re[i0] = t0Re + t2Re;
+					im[i0] = t0Im + t2Im;
+					re[i1] = t1Re + t3Re;
+					im[i1] = t1Im + t3Im;
+					re[i2] = t0Re - t2Re;
+					im[i2] = t0Im - t2Im;
+					re[i3] = t1Re - t3Re;
+					im[i3] = t1Im - t3Im;
+				}
+			}
+		}
+		
+		private void radix5(final double[] re, final double[] im, final int span, final int blockSize,
+				final int step, final double sign) {
+			final double c1 = Math.cos(2 * Math.PI / 5);
+			final double c2 = Math.cos(4 * Math.PI / 5);
+			final double s1 = sign * Math.sin(2 * Math.PI / 5);
+			final double s2 = sign * Math.sin(4 * Math.PI / 5);
+			final double[] aRe = new double[5];
+			final double[] aIm = new double[5];
+			for (int k = 0; k < span; k++) {
+				for (int i0 = k; i0 < n; i0 += blockSize) {
+					aRe[0] = re[i0];
+					aIm[0] = im[i0];
+					for (int j = 1; j < 5; j++) {
+						final int index = i0 + j * span;
+						final double wRe = cos[j * k * step];
+						final double wIm = sign * sin[j * k * step];
+						aRe[j] = re[index] * wRe - im[index] * wIm;
+						aIm[j] = re[index] * wIm + im[index] * wRe;
+					}
+					
+					final double t1Re = aRe[1] + aRe[4];
+					final double t1Im = aIm[1] + aIm[4];
+					final double t2Re = aRe[2] + aRe[3];
+					final double t2Im = aIm[2] + aIm[3];
+					final double t3Re = aRe[1] - aRe[4];
+					final double t3Im = aIm[1] - aIm[4];
+					final double t4Re = aRe[2] - aRe[3];
+					final double t4Im = aIm[2] - aIm[3];
+					
+					final double b1Re = aRe[0] + c1 * t1Re + c2 * t2Re;
+					final double b1Im = aIm[0] + c1 * t1Im + c2 * t2Im;
+					final double b2Re = aRe[0] + c2 * t1Re + c1 * t2Re;
+					final double b2Im = aIm[0] + c2 * t1Im + c1 * t2Im;
+					
+					// i * (s1 * t3 + s2 * t4) and i * (s2 * t3 - s1 * t4)
+					final double d1Re = -(s1 * t3Im + s2 * t4Im);
+					final double d1Im = s1 * t3Re + s2 * t4Re;
+					final double d2Re = -(s2 * t3Im - s1 * t4Im);
+					final double d2Im = s2 * t3Re - s1 * t4Re;
+					
+					re[i0] = aRe[0] + t1Re + t2Re;
+					im[i0] = aIm[0] + t1Im + t2Im;
+					re[i0 + span] = b1Re + d1Re;
+					im[i0 + span] = b1Im + d1Im;
+					re[i0 + 4 * span] = b1Re - d1Re;
+					im[i0 + 4 * span] = b1Im - d1Im;
+					re[i0 + 2 * span] = b2Re + d2Re;
+					im[i0 + 2 * span] = b2Im + d2Im;
+					re[i0 + 3 * span] = b2Re - d2Re;
+					im[i0 + 3 * span] = b2Im - d2Im;
+				}
+			}
+		}
+		
+		// A direct DFT of each group, for prime factors above 5
+		private void radixGeneric(final double[] re, final double[] im, final int radix, final int span,
+				final int blockSize, final int step, final double sign) {
+			final double[] aRe = new double[radix];
+			final double[] aIm = new double[radix];
+			final int rootStep = n / radix;
+			for (int k = 0; k < span; k++) {
+				for (int i0 = k; i0 < n; i0 += blockSize) {
+					for (int j = 0; j < radix; j++) {
+						final int index = i0 + j * span;
+						final int m = (int)((long)j * k * step % n);
+						final double wRe = cos[m];
+						final double wIm = sign * sin[m];
+						aRe[j] = re[index] * wRe - im[index] * wIm;
+						aIm[j] = re[index] * wIm + im[index] * wRe;
+					}
+					for (int q = 0; q < radix; q++) {
+						double sumRe = 0;
+						double sumIm = 0;
+						for (int j = 0; j < radix; j++) {
+							final int m = (j * q % radix) * rootStep;
+							final double wRe = cos[m];
+							final double wIm = sign * sin[m];
+							sumRe += aRe[j] * wRe - aIm[j] * wIm;
+							sumIm += aRe[j] * wIm + aIm[j] * wRe;
+						}
+						re[i0 + q * span] = sumRe;
+						im[i0 + q * span] = sumIm;
+					}
+				}
+			}
+		}
+	}
+}
@@ -1,10 +1,44 @@
 
+// Compute the running sum of each row of the image, for each color.
+// prefixSums[(y * (width + 1) + x) * 3 + c] is the sum of the first x pixels of row y, so a chord of the
+// disk is averaged from two values.  The sums of whole bytes are exact in floats for rows up to 65793 wide.
+// Called with one work item per row, before sharpen().
+kernel void rowPrefixSums(
+			global const uchar* originalImage,
+			global float* prefixSums,
+			int width) {
+	
+	int y = get_global_id(0);
+	
+	float sumB = 0;
+	float sumG = 0;
+	float sumR = 0;
+	
+	int imgIndex = y * width * 3;
+	int sumIndex = y * (width + 1) * 3;
+	prefixSums[sumIndex + 0] = 0;
+	prefixSums[sumIndex + 1] = 0;
+	prefixSums[sumIndex + 2] = 0;
+	for (int x = 0; x < width; x++) {
+		sumB += originalImage[imgIndex + 0];
+		sumG += originalImage[imgIndex + 1];
+		sumR += originalImage[imgIndex + 2];
+		imgIndex += 3;
+		sumIndex += 3;
+		prefixSums[sumIndex + 0] = sumB;
+		prefixSums[sumIndex + 1] = sumG;
+		prefixSums[sumIndex + 2] = sumR;
+	}
+}
+
 // Perform an unsharp mask on the given image.
 // Called (indirectly) from GPUAlgorithms.java in the deconvolution project.
 kernel void sharpen(
 			global uchar* outImage,
 			global const uchar* originalImage,
-			float radius,
+			global const float* prefixSums,
+			global const int* halfChords,
+			int radiusMax,
 			float weight) {
 	
 	int x = get_global_id(0);
@@ -12,28 +46,31 @@ kernel void sharpen(
 	int width = get_global_size(0);
 	int height = get_global_size(1);
 	
-	int radiusMax = (int)radius;
-	
 	float sumR = 0;
 	float sumG = 0;
 	float sumB = 0;
 	int count = 0;
 	
-	// Sum up all the pixels inside the disk
-	for (int i = -radiusMax; i <= radiusMax; i++) {
-		for (int j = -radiusMax; j <= radiusMax; j++) {
-			int xIndex = x + i;
-			int yIndex = y + j;
-			if (xIndex >= 0 && xIndex < width && yIndex >= 0 && yIndex < height) {
-				if (i * i + j * j <= (radius + 0.375f) * (radius + 0.375f)) {
-					int imgIndex = (yIndex * width + xIndex) * 3;
-					sumB += originalImage[imgIndex + 0];
-					sumG += originalImage[imgIndex + 1];
-					sumR += originalImage[imgIndex + 2];
-					count++;
-				}
-			}
+	// Sum up all the pixels inside the disk, one row (chord) at a time.
+	// halfChords[j + radiusMax] is the half-width of row j of the disk, or -1 if the row is empty.
+	// Each chord is the difference of two running sums of its row (see rowPrefixSums).
+	for (int j = -radiusMax; j <= radiusMax; j++) {
+		int yIndex = y + j;
+		int halfChord = halfChords[j + radiusMax];
+		if (yIndex < 0 || yIndex >= height || halfChord < 0) {
+			continue;
 		}
+		
+		// Clip the chord to the image
+		int xStart = max(x - halfChord, 0);
+		int xEnd = min(x + halfChord, width - 1);
+		
+		int startIndex = (yIndex * (width + 1) + xStart) * 3;
+		int endIndex = (yIndex * (width + 1) + xEnd + 1) * 3;
+		sumB += prefixSums[endIndex + 0] - prefixSums[startIndex + 0];
+		sumG += prefixSums[endIndex + 1] - prefixSums[startIndex + 1];
+		sumR += prefixSums[endIndex + 2] - prefixSums[startIndex + 2];
+		count += xEnd - xStart + 1;
 	}
 	
 	int i = (y * width + x) * 3;
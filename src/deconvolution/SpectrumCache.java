@@ -0,0 +1,164 @@
+package deconvolution;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+// This class caches the Wiener filter spectra, so a filter is only computed once for each padded DFT size,
+// blur radius, and SNR.  Batches of same-sized images, and GUI previews that change only the image,
+// then skip the PSF and its forward DFT.
+// The cache holds up to a given number of bytes of spectra, and removes the least recently used ones
+// to make room.  A spectrum larger than the whole cache is computed every time, and not kept.
+// One cache can hold spectra of several types (eg. float arrays and OpenCV Mats), which then share its budget.
+// It is thread-safe.  The spectra in the cache are shared between threads, and must never be modified.
+
+public class SpectrumCache {
+	
+	// Computes a spectrum that is not in the cache
+	interface Factory<T> {
+		T create();
+	}
+	
+	// Manages spectra in memory that is not garbage collected, like the native memory of OpenCV Mats
+	interface Owner<T> {
+		// Return a new reference to 'spectrum' that stays valid after the cache releases its own
+		T share(T spectrum);
+		
+		// Free a reference to a spectrum
+		void release(T spectrum);
+	}
+	
+	// The parameters a spectrum is computed from
+	private static final class Key {
+		final Class<?> type;
+		final int rows;
+		final int cols;
+		final int radius;
+		final int snr;
+		
+		Key(final Class<?> type, final int rows, final int cols, final int radius, final int snr) {
+			this.type = type;
+			this.rows = rows;
+			this.cols = cols;
+			this.radius = radius;
+			this.snr = snr;
+		}
+		
+		public boolean equals(final Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			final Key key = (Key)o;
+			return type == key.type && rows == key.rows && cols == key.cols && radius == key.radius &&
+					snr == key.snr;
+		}
+		
+		public int hashCode() {
+			return (((type.hashCode() * 31 + rows) * 31 + cols) * 31 + radius) * 31 + snr;
+		}
+	}
+	
+	private static final class Entry<T> {
+		final T spectrum;
+		final long bytes;
+		
+		// Null if the spectrum is garbage collected
+		final Owner<T> owner;
+		
+		Entry(final T spectrum, final long bytes, final Owner<T> owner) {
+			this.spectrum = spectrum;
+			this.bytes = bytes;
+			this.owner = owner;
+		}
+		
+		// Return a reference to the spectrum for a caller
+		T share() {
+			return owner == null ? spectrum : owner.share(spectrum);
+		}
+		
+		// Drop the cache's reference to the spectrum
+		void release() {
+			if (owner != null) {
+				owner.release(spectrum);
+			}
+		}
+	}
+	
+	private final long maxBytes;
+	
+	// Key -> spectrum, in least-recently-used order.  Guarded by this.
+	private final LinkedHashMap<Key, Entry<?>> cache = new LinkedHashMap<Key, Entry<?>>(16, 0.75f, true);
+	private long totalBytes = 0;
+	
+	// Statistics.  Guarded by this.
+	private long hits = 0;
+	private long misses = 0;
+	
+	// Create a cache that holds up to 'maxBytes' of spectra
+	SpectrumCache(final long maxBytes) {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException("The cache size cannot be negative");
+		}
+		this.maxBytes = maxBytes;
+	}
+	
+	// Return the spectrum of the given type for the given padded size, radius, and SNR, computing it with
+	// 'factory' if it is not in the cache.  'bytes' is the memory the spectrum uses.
+	// If 'owner' is not null, the caller gets its own reference to the spectrum, and must release it
+	// with 'owner' when done.
+	<T> T get(final Class<T> type, final int rows, final int cols, final int radius, final int snr,
+			final long bytes, final Factory<T> factory, final Owner<T> owner) {
+		final Key key = new Key(type, rows, cols, radius, snr);
+		synchronized (this) {
+			final Entry<?> entry = cache.get(key);
+			if (entry != null) {
+				hits++;
+				return type.cast(entry.share());
+			}
+			misses++;
+		}
+		
+		// Compute the spectrum outside of the lock, so other sizes are not held up
+		final T spectrum = factory.create();
+		if (bytes > maxBytes) {
+			return spectrum;
+		}
+		
+		final Entry<T> added = new Entry<T>(spectrum, bytes, owner);
+		synchronized (this) {
+			final Entry<?> existing = cache.get(key);
+			if (existing != null) {
+				added.release();
+				return type.cast(existing.share());
+			}
+			
+			// Remove the least recently used spectra until the new one fits
+			final Iterator<Entry<?>> iterator = cache.values().iterator();
+			while (totalBytes + bytes > maxBytes && iterator.hasNext()) {
+				final Entry<?> evicted = iterator.next();
+				iterator.remove();
+				totalBytes -= evicted.bytes;
+				evicted.release();
+			}
+			cache.put(key, added);
+			totalBytes += bytes;
+			return added.share();
+		}
+	}
+	
+	// Remove every spectrum
+	synchronized void clear() {
+		for (final Entry<?> entry : cache.values()) {
+			entry.release();
+		}
+		cache.clear();
+		totalBytes = 0;
+	}
+	
+	synchronized long getHits() {
+		return hits;
+	}
+	
+	synchronized long getMisses() {
+		return misses;
+	}
+}
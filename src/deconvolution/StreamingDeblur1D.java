@@ -0,0 +1,208 @@
+package deconvolution;
+
+import java.io.IOException;
+
+// This class runs the iterated 1D deblur (Algorithms.deblur1Dv2) over a stream of samples in fixed-size
+// chunks, so sound files of any length can be deblurred in a fixed amount of memory.
+// Each iteration reads 2r+1 samples on either side, so each chunk is deblurred together with
+// iterations*(2r+1) samples of history before it and as many samples after it (4r+2 in all for one
+// iteration).  The ends of the stream are handled as deblur1Dv2 handles the ends of its array,
+// so the output is the same as deblurring the whole stream at once.
+// Samples are interleaved by channel, and each channel is deblurred separately.
+
+public class StreamingDeblur1D {
+	
+	// Receives the deblurred samples, in order
+	interface Output {
+		// 'samples' holds 'frames' frames of interleaved samples.  It is reused after the call returns.
+		void write(float[] samples, int frames) throws IOException;
+	}
+	
+	private final int radius;
+	private final int iterations;
+	private final int channels;
+	private final int chunkFrames;
+	private final Output output;
+	
+	// Samples needed on either side of a chunk
+	private final int margin;
+	
+	// The samples of each channel from (position - margin) on.  Samples before the start of the stream
+	// are copies of the first sample.
+	private final float[][] windows;
+	private int filled = 0;
+	
+	// Buffers for the iterations, and for the interleaved output
+	private final float[] iteration1;
+	private final float[] iteration2;
+	private final float[] outputSamples;
+	
+	// Index of the next frame to output, the number of frames received,
+	// and the length of the stream once it has ended (-1 before)
+	private long position = 0;
+	private long received = 0;
+	private long length = -1;
+	
+	// Deblur with the given radius and number of iterations, 'chunkFrames' frames at a time
+	StreamingDeblur1D(final int radius, final int iterations, final int channels, final int chunkFrames,
+			final Output output) {
+		if (radius < 1 || iterations < 1 || channels < 1 || chunkFrames < 1) {
+			throw new IllegalArgumentException("The radius, iterations, channels, and chunk size must be positive");
+		}
+		this.radius = radius;
+		this.iterations = iterations;
+		this.channels = channels;
+		this.chunkFrames = chunkFrames;
+		this.output = output;
+		
+		margin = iterations * (2 * radius + 1);
+		final int windowLength = chunkFrames + 2 * margin;
+		windows = new float[channels][windowLength];
+		iteration1 = new float[windowLength];
+		iteration2 = new float[windowLength];
+		outputSamples = new float[chunkFrames * channels];
+	}
+	
+	// Return how many frames the output is behind the input (until the end of the stream)
+	int getLatency() {
+		return margin;
+	}
+	
+	// Add 'frames' frames of interleaved samples to the stream.
+	// The deblurred samples are written to the output as soon as they are known.
+	void write(final float[] samples, final int frames) throws IOException {
+		if (length >= 0) {
+			throw new IllegalStateException("The stream has already ended");
+		}
+		if (frames <= 0) {
+			return;
+		}
+		
+		// Before the stream, the samples are copies of the first one
+		if (received == 0) {
+			for (int c = 0; c < channels; c++) {
+				for (int i = 0; i < margin; i++) {
+					windows[c][i] = samples[c];
+				}
+			}
+			filled = margin;
+		}
+		
+		append(samples, 0, frames);
+		received += frames;
+	}
+	
+	// End the stream, and write the rest of the deblurred samples.
+	// The samples after the end of the stream are copies of the last one.
+	void finish() throws IOException {
+		if (length >= 0) {
+			return;
+		}
+		length = received;
+		if (length == 0) {
+			return;
+		}
+		
+		// Pad with the last sample of each channel
+		final float[] last = new float[channels];
+		for (int c = 0; c < channels; c++) {
+			last[c] = windows[c][filled - 1];
+		}
+		final float[] padding = new float[Math.min(margin, chunkFrames) * channels];
+		for (int i = 0; i < padding.length; i++) {
+			padding[i] = last[i % channels];
+		}
+		for (int padded = 0; padded < margin; ) {
+			final int count = Math.min(margin - padded, padding.length / channels);
+			append(padding, 0, count);
+			padded += count;
+		}
+		
+		// The last partial chunk
+		if (position < length) {
+			deblurChunk((int)(length - position));
+		}
+	}
+	
+	// Copy frames into the windows, deblurring each chunk once its window is full
+	private void append(final float[] samples, int offset, int frames) throws IOException {
+		final int windowLength = chunkFrames + 2 * margin;
+		while (frames > 0) {
+			final int count = Math.min(frames, windowLength - filled);
+			for (int c = 0; c < channels; c++) {
+				final float[] window = windows[c];
+				for (int i = 0; i < count; i++) {
+					window[filled + i] = samples[(offset + i) * channels + c];
+				}
+			}
+			filled += count;
+			offset += count;
+			frames -= count;
+			
+			if (filled == windowLength) {
+				deblurChunk(chunkFrames);
+			}
+		}
+	}
+	
+	// Deblur the next 'count' frames, write them to the output, and move the window along
+	private void deblurChunk(final int count) throws IOException {
+		final float innerRingScale = (2f * radius + 1) / 2f;
+		final float outerRingScale = 0.5f;
+		final int step = 2 * radius + 1;
+		final int windowLength = count + 2 * margin;
+		
+		// Window indices of the first frame of the stream (if it is in the window),
+		// and of the last frame (if the stream has ended inside the window)
+		final long windowStart = position - margin;
+		final int first = (int)Math.max(-windowStart, -1);
+		final int last = (length >= 0 && length - windowStart <= windowLength) ? (int)(length - 1 - windowStart) : -1;
+		
+		for (int c = 0; c < channels; c++) {
+			final float[] inputSamples = windows[c];
+			float[] previousIteration = inputSamples;
+			float[] outputSamples = null;
+			
+			// Each iteration is known for 2r+1 fewer samples on each side than the one before
+			for (int j = 1; j <= iterations; j++) {
+				outputSamples = (j % 2 == 1) ? iteration1 : iteration2;
+				final int start = j * step;
+				final int end = windowLength - j * step;
+				for (int i = start; i < end; i++) {
+					outputSamples[i] = innerRingScale * (
+							+ inputSamples[i - radius]
+							- inputSamples[i - radius - 1]
+							+ inputSamples[i + radius]
+							- inputSamples[i + radius + 1])
+							+(previousIteration[i - 2 * radius - 1]
+							+ previousIteration[i + 2 * radius + 1]) * outerRingScale;
+				}
+				
+				// Outside the stream, each iteration repeats its value at the end of the stream
+				if (first >= 0) {
+					for (int i = start; i < first; i++) {
+						outputSamples[i] = outputSamples[first];
+					}
+				}
+				if (last >= 0) {
+					for (int i = last + 1; i < end; i++) {
+						outputSamples[i] = outputSamples[last];
+					}
+				}
+				previousIteration = outputSamples;
+			}
+			
+			for (int i = 0; i < count; i++) {
+				this.outputSamples[i * channels + c] = outputSamples[margin + i];
+			}
+		}
+		output.write(this.outputSamples, count);
+		
+		// Keep the samples needed by the next chunk
+		for (int c = 0; c < channels; c++) {
+			System.arraycopy(windows[c], count, windows[c], 0, filled - count);
+		}
+		filled -= count;
+		position += count;
+	}
+}
@@ -0,0 +1,343 @@
+package deconvolution;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+// This class speeds up the Fast-Method on videos where most of the picture stays the same from frame
+// to frame (such as a fixed camera).  The frame is divided into square tiles, and a tile is only
+// deblurred again if the input changed within reach of the kernel.  Elsewhere the previous output is reused.
+// Each iteration of the Fast-Method reads the input up to 'extent' pixels away (about twice the radius),
+// so changed tiles are recomputed from a region with that much margin on every side.
+// With a threshold of 0, the result is the same as deblurring the whole frame.
+// Frames must be given in order.
+
+public class TemporalCache {
+	
+	final int width;
+	final int height;
+	final int tileSize;
+	
+	// A tile has changed if any color differs by more than this from the input its output was computed from
+	final int threshold;
+	
+	private final int tilesX;
+	private final int tilesY;
+	
+	// The input that the cached output of each tile was computed from, and the output of the last frame.
+	// Both are in 3BYTE_BGR format, and null until a frame has been fully processed.
+	private byte[] referenceInput = null;
+	private byte[] previousOutput = null;
+	
+	// Tiles whose input changed, and tiles that must be recomputed (the changed tiles and their neighbors)
+	private final boolean[] changedTiles;
+	private final boolean[] recomputedTiles;
+	
+	// Rectangles of recomputed tiles, in pixels, as {x0, y0, x1, y1}
+	private final int[] regions;
+	private int regionCount = 0;
+	
+	// Statistics
+	private long frames = 0;
+	private long fullFrames = 0;
+	private long tilesRecomputed = 0;
+	
+	TemporalCache(final int width, final int height, final int tileSize, final int threshold) {
+		if (width <= 0 || height <= 0 || tileSize < 1 || threshold < 0) {
+			throw new IllegalArgumentException("Invalid temporal cache: " + width + "x" + height +
+					", tile size " + tileSize + ", threshold " + threshold);
+		}
+		this.width = width;
+		this.height = height;
+		this.tileSize = tileSize;
+		this.threshold = threshold;
+		tilesX = (width + tileSize - 1) / tileSize;
+		tilesY = (height + tileSize - 1) / tileSize;
+		changedTiles = new boolean[tilesX * tilesY];
+		recomputedTiles = new boolean[tilesX * tilesY];
+		regions = new int[tilesX * tilesY * 4];
+	}
+	
+	// Deblur the next video frame with the Fast-Method, writing the result back into the frame.
+	// The float images come from the pool, as in VideoJob.deblurFrame().
+	// Returns null if the monitor was canceled.
+	synchronized BufferedImage deblur(final BufferedImage image, final FramePool pool,
+			final DeconvolutionRequest request, final ProgressMonitor monitor) {
+		
+		if (request.algorithm != DeconvolutionRequest.Algorithm.FAST_METHOD) {
+			throw new IllegalArgumentException("The temporal cache only supports the Fast-Method");
+		}
+		if (image.getWidth() != width || image.getHeight() != height) {
+			throw new IllegalArgumentException("Frame is " + image.getWidth() + "x" + image.getHeight() +
+					", expected " + width + "x" + height);
+		}
+		
+		final byte[] pixels = Algorithms.extractByteArray(image);
+		
+		// Distance over which the input affects the output
+		final int margin = KernelCache.getRings(request.radius, KernelCache.STANDARD).extent * request.iterations;
+		
+		frames++;
+		
+		// Nothing changed: reuse the whole previous output
+		if (!findChangedTiles(pixels)) {
+			System.arraycopy(previousOutput, 0, pixels, 0, pixels.length);
+			return image;
+		}
+		findRecomputedTiles((margin + tileSize - 1) / tileSize);
+		
+		final PlanarImage floatImage = pool.acquirePlanarImage();
+		final PlanarImage buffer1 = pool.acquirePlanarImage();
+		final PlanarImage buffer2 = request.iterations > 1 ? pool.acquirePlanarImage() : null;
+		try {
+			if (findRegions(margin)) { // Recompute only the regions
+				
+				// Convert the input of every region before any output is written over it
+				for (int i = 0; i < regionCount; i++) {
+					final int[] source = sourceRegion(i, margin);
+					copyToPlanar(pixels, floatImage, source[0], source[1], source[2], source[3]);
+				}
+				
+				// The recomputed tiles now hold the output of this input
+				for (int ty = 0; ty < tilesY; ty++) {
+					for (int tx = 0; tx < tilesX; tx++) {
+						if (recomputedTiles[ty * tilesX + tx]) {
+							copyTile(pixels, referenceInput, tx, ty);
+							tilesRecomputed++;
+						}
+					}
+				}
+				
+				for (int i = 0; i < regionCount; i++) {
+					final int[] source = sourceRegion(i, margin);
+					final int x = source[0];
+					final int y = source[1];
+					final int w = source[2] - x;
+					final int h = source[3] - y;
+					final PlanarImage result = Algorithms.fastMethodIterations(floatImage.subImage(x, y, w, h),
+							request.amount, request.radius, request.iterations, monitor,
+							buffer1.subImage(x, y, w, h), buffer2 == null ? null : buffer2.subImage(x, y, w, h));
+					if (result == null) {
+						reset();
+						return null;
+					}
+					copyToFrame(result, x, y, pixels, regions[i * 4 + 0], regions[i * 4 + 1],
+							regions[i * 4 + 2], regions[i * 4 + 3]);
+				}
+				
+				// Everything else is unchanged
+				for (int ty = 0; ty < tilesY; ty++) {
+					for (int tx = 0; tx < tilesX; tx++) {
+						if (!recomputedTiles[ty * tilesX + tx]) {
+							copyTile(previousOutput, pixels, tx, ty);
+						}
+					}
+				}
+			
+			} else { // Most of the frame changed, so deblur all of it
+				
+				if (referenceInput == null) {
+					referenceInput = new byte[pixels.length];
+					previousOutput = new byte[pixels.length];
+				}
+				System.arraycopy(pixels, 0, referenceInput, 0, pixels.length);
+				
+				Algorithms.imageToArray(image, floatImage);
+				final PlanarImage result = Algorithms.fastMethodIterations(floatImage, request.amount, request.radius,
+						request.iterations, monitor, buffer1, buffer2);
+				if (result == null) {
+					reset();
+					return null;
+				}
+				Algorithms.copyToByteArray(result, pixels);
+				fullFrames++;
+				tilesRecomputed += tilesX * tilesY;
+			}
+			
+			System.arraycopy(pixels, 0, previousOutput, 0, pixels.length);
+			return image;
+		
+		} finally {
+			pool.releasePlanarImage(floatImage);
+			pool.releasePlanarImage(buffer1);
+			if (buffer2 != null) {
+				pool.releasePlanarImage(buffer2);
+			}
+		}
+	}
+	
+	// Forget the previous frames, so the next frame is deblurred in full
+	synchronized void reset() {
+		referenceInput = null;
+		previousOutput = null;
+	}
+	
+	// Return a one-line summary of how much work was reused
+	synchronized String getSummary() {
+		final long tiles = Math.max(frames * tilesX * tilesY, 1);
+		return String.format("Temporal cache: %.1f%% of tiles recomputed, %d of %d frames in full",
+				100.0 * tilesRecomputed / tiles, fullFrames, frames);
+	}
+	
+	// Mark the tiles whose input differs from the reference by more than the threshold.
+	// Returns false if no tile changed.
+	private boolean findChangedTiles(final byte[] pixels) {
+		if (referenceInput == null) {
+			Arrays.fill(changedTiles, true);
+			return true;
+		}
+		
+		boolean anyChanged = false;
+		for (int ty = 0; ty < tilesY; ty++) {
+			for (int tx = 0; tx < tilesX; tx++) {
+				final boolean changed = isTileChanged(pixels, tx, ty);
+				changedTiles[ty * tilesX + tx] = changed;
+				anyChanged |= changed;
+			}
+		}
+		return anyChanged;
+	}
+	
+	// Compare one tile of the frame with the reference, stopping at the first difference
+	private boolean isTileChanged(final byte[] pixels, final int tx, final int ty) {
+		final int xStart = tx * tileSize * 3;
+		final int xEnd = Math.min((tx + 1) * tileSize, width) * 3;
+		final int yEnd = Math.min((ty + 1) * tileSize, height);
+		for (int y = ty * tileSize; y < yEnd; y++) {
+			final int row = y * width * 3;
+			for (int i = row + xStart; i < row + xEnd; i++) {
+				if (Math.abs((pixels[i] & 0xff) - (referenceInput[i] & 0xff)) > threshold) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
+	// Mark every tile within 'reach' tiles of a changed tile
+	private void findRecomputedTiles(final int reach) {
+		for (int ty = 0; ty < tilesY; ty++) {
+			for (int tx = 0; tx < tilesX; tx++) {
+				boolean recompute = false;
+				for (int ny = Math.max(ty - reach, 0); ny <= Math.min(ty + reach, tilesY - 1) && !recompute; ny++) {
+					for (int nx = Math.max(tx - reach, 0); nx <= Math.min(tx + reach, tilesX - 1); nx++) {
+						if (changedTiles[ny * tilesX + nx]) {
+							recompute = true;
+							break;
+						}
+					}
+				}
+				recomputedTiles[ty * tilesX + tx] = recompute;
+			}
+		}
+	}
+	
+	// Group the recomputed tiles into rectangles: runs of tiles along each row, joined with the run
+	// directly above when it spans the same columns.
+	// Returns false if recomputing the regions would cost as much as the whole frame (or there is no
+	// previous output to reuse).
+	private boolean findRegions(final int margin) {
+		regionCount = 0;
+		if (previousOutput == null) {
+			return false;
+		}
+		
+		for (int ty = 0; ty < tilesY; ty++) {
+			final int rowStart = regionCount;
+			final int y0 = ty * tileSize;
+			final int y1 = Math.min(y0 + tileSize, height);
+			
+			int tx = 0;
+			while (tx < tilesX) {
+				if (!recomputedTiles[ty * tilesX + tx]) {
+					tx++;
+					continue;
+				}
+				final int runStart = tx;
+				while (tx < tilesX && recomputedTiles[ty * tilesX + tx]) {
+					tx++;
+				}
+				final int x0 = runStart * tileSize;
+				final int x1 = Math.min(tx * tileSize, width);
+				
+				// Extend a region that ends at the row above if it has the same columns
+				boolean joined = false;
+				for (int i = 0; i < rowStart; i++) {
+					if (regions[i * 4 + 0] == x0 && regions[i * 4 + 2] == x1 && regions[i * 4 + 3] == y0) {
+						regions[i * 4 + 3] = y1;
+						joined = true;
+						break;
+					}
+				}
+				if (!joined) {
+					regions[regionCount * 4 + 0] = x0;
+					regions[regionCount * 4 + 1] = y0;
+					regions[regionCount * 4 + 2] = x1;
+					regions[regionCount * 4 + 3] = y1;
+					regionCount++;
+				}
+			}
+		}
+		
+		long area = 0;
+		for (int i = 0; i < regionCount; i++) {
+			final int[] source = sourceRegion(i, margin);
+			area += (long)(source[2] - source[0]) * (source[3] - source[1]);
+		}
+		return area < (long)width * height;
+	}
+	
+	// The region of the input needed to recompute region i: the region plus the margin, within the frame
+	private int[] sourceRegion(final int i, final int margin) {
+		return new int[] {
+				Math.max(regions[i * 4 + 0] - margin, 0),
+				Math.max(regions[i * 4 + 1] - margin, 0),
+				Math.min(regions[i * 4 + 2] + margin, width),
+				Math.min(regions[i * 4 + 3] + margin, height)};
+	}
+	
+	// Convert the rectangle [x0, x1) x [y0, y1) of a 3BYTE_BGR frame to the same rectangle of the image
+	private void copyToPlanar(final byte[] pixels, final PlanarImage image,
+			final int x0, final int y0, final int x1, final int y1) {
+		final float[] r = image.planes[0];
+		final float[] g = image.planes[1];
+		final float[] b = image.planes[2];
+		for (int y = y0; y < y1; y++) {
+			final int row = image.index(0, y);
+			for (int x = x0; x < x1; x++) {
+				final int i = (y * width + x) * 3;
+				r[row + x] = pixels[i + 2] & 0xff;
+				g[row + x] = pixels[i + 1] & 0xff;
+				b[row + x] = pixels[i + 0] & 0xff;
+			}
+		}
+	}
+	
+	// Copy the rectangle [x0, x1) x [y0, y1) of the frame from the result, whose top-left corner is at
+	// (originX, originY) in the frame
+	private void copyToFrame(final PlanarImage result, final int originX, final int originY, final byte[] pixels,
+			final int x0, final int y0, final int x1, final int y1) {
+		final float[] r = result.planes[0];
+		final float[] g = result.planes[1];
+		final float[] b = result.planes[2];
+		for (int y = y0; y < y1; y++) {
+			final int row = result.index(-originX, y - originY);
+			for (int x = x0; x < x1; x++) {
+				final int i = (y * width + x) * 3;
+				pixels[i + 0] = (byte)Algorithms.clamp(b[row + x]);
+				pixels[i + 1] = (byte)Algorithms.clamp(g[row + x]);
+				pixels[i + 2] = (byte)Algorithms.clamp(r[row + x]);
+			}
+		}
+	}
+	
+	// Copy one tile between two 3BYTE_BGR frames
+	private void copyTile(final byte[] from, final byte[] to, final int tx, final int ty) {
+		final int xStart = tx * tileSize * 3;
+		final int length = Math.min((tx + 1) * tileSize, width) * 3 - xStart;
+		final int yEnd = Math.min((ty + 1) * tileSize, height);
+		for (int y = ty * tileSize; y < yEnd; y++) {
+			final int i = y * width * 3 + xStart;
+			System.arraycopy(from, i, to, i, length);
+		}
+	}
+}
@@ -76,6 +76,9 @@ public class UserInterface {
 	private static int X = 900;
 	private static int Y = 640;
 	
+	// This is the image being edited, in array form
+	static PlanarImage imageArray;
+	
 	// This is the image used for previewing
 	static BufferedImage previewImage;
 	
@@ -137,39 +140,39 @@ public class UserInterface {
 		Algorithms.useOpenCL = true;
 		final BufferedImage rawImageBlur = loadImageFromFile(new File("src/deconvolution/Results/JWST 512 64.png"));
 		final BufferedImage rawImageOrig = loadImageFromFile(new File("src/deconvolution/Results/JWST 512.png"));
-		float[][][] originalBlur = Algorithms.imageToArray(rawImageBlur);
-		float[][][] originalOrig = Algorithms.imageToArray(rawImageOrig);
-		//float[][][] deblurred = Algorithms.deblurBasic2Switch(originalBlur, 1f, 33.5f, 1, true);
-		//float[][][] deblurred = Algorithms.richardsonLucySwitch(originalBlur, 16f, 31, true);
-		float[][][] deblurred = Algorithms.sharpenSwitch(originalBlur, 0.6f, 33.5f, true);
+		PlanarImage originalBlur = Algorithms.imageToArray(rawImageBlur);
+		PlanarImage originalOrig = Algorithms.imageToArray(rawImageOrig);
+		//PlanarImage deblurred = Algorithms.deblurBasic2Switch(originalBlur, 1f, 33.5f, 1, true);
+		//PlanarImage deblurred = Algorithms.richardsonLucySwitch(originalBlur, 16f, 31, true);
+		PlanarImage deblurred = Algorithms.sharpenSwitch(originalBlur, 0.6f, 33.5f, true, new ProgressMonitor());
 		double nrmseBlur = Algorithms.normalizedRootMeanSquareError(originalOrig, originalBlur);
 		double nrmseDeblur = Algorithms.normalizedRootMeanSquareError(originalOrig, deblurred);
 		print("Blurred: " + nrmseBlur);
 		print("Deblur:  " + nrmseDeblur);
 		previewImage = Algorithms.arrayToImage(deblurred);
-		Algorithms.imageArray = deblurred;
+		imageArray = deblurred;
 		redrawPreviewImage();
 		//*/
 		
 		/* Process and display an image
 		Algorithms.useOpenCL = true;
 		final BufferedImage rawImage = loadImageFromFile(new File("src/deconvolution/Results/JWST 512 64.png"));
-		float[][][] image1 = Algorithms.imageToArray(rawImage);
+		PlanarImage image1 = Algorithms.imageToArray(rawImage);
 		//image1 = Algorithms.fastBlur(image1, 10);
 		//image1 = Algorithms.deblurBasic2Switch(image1, 1f, 8.00f, 1, true);
-		image1 = Algorithms.richardsonLucySwitch(image1, 64.00f, 8000, true);
+		image1 = Algorithms.richardsonLucySwitch(image1, 64.00f, 8000, true, new ProgressMonitor());
 		previewImage = Algorithms.arrayToImage(image1);
-		Algorithms.imageArray = image1;
+		imageArray = image1;
 		redrawPreviewImage();
 		//*/
 		
 		/*
 		final BufferedImage rawImage = loadImageFromFile(new File("src/photoMerger/ImageBlur1.jpg"));
-		float[][][] image1 = Algorithms.imageToArray(rawImage);
+		PlanarImage image1 = Algorithms.imageToArray(rawImage);
 		// Parameters: image, feather, mult, radius (1.5, 5, 22, 30)
 		//image1 = Algorithms.deblurCustom(image1, 100, 200, 22);
 		image1 = Algorithms.deblurCustomEnhanced(image1, 100, 70, 5, 3, 1);
-		//float[][][] image2 = Algorithms.sharpen(image1, 1.0f, 20);
+		//PlanarImage image2 = Algorithms.sharpen(image1, 1.0f, 20);
 		BufferedImage newImage = Algorithms.arrayToImage(image1);
 		drawImage(newImage);
 		renderLabel.repaint();
@@ -178,8 +181,8 @@ public class UserInterface {
 		/* Measure NRMSE between two images
 		final BufferedImage rawImageBlur = loadImageFromFile(new File("src/deconvolution/Results/Geometry.png"));
 		final BufferedImage rawImageOrig = loadImageFromFile(new File("src/deconvolution/Results/FastMethod12.png"));
-		float[][][] originalBlur = Algorithms.imageToArray(rawImageBlur);
-		float[][][] originalOrig = Algorithms.imageToArray(rawImageOrig);
+		PlanarImage originalBlur = Algorithms.imageToArray(rawImageBlur);
+		PlanarImage originalOrig = Algorithms.imageToArray(rawImageOrig);
 		double nrmseBlur = Algorithms.normalizedRootMeanSquareError(originalOrig, originalBlur);
 		print("NRMSE: " + nrmseBlur);
 		System.exit(0);
@@ -187,12 +190,12 @@ public class UserInterface {
 		
 		/*
 		final BufferedImage rawImageBlur = loadImageFromFile(new File("src/deconvolution/Point Radius 50 2 - Copy.png"));
-		float[][][] originalBlur = Algorithms.imageToArray(rawImageBlur);
+		PlanarImage originalBlur = Algorithms.imageToArray(rawImageBlur);
 		float weight = 3.93f;
 		float ratio1 = 1.519f;
 		float ratio2 = 0.50445f;
 		float amountOffset = 2.6407f;
-		float[][][] deblurred = Algorithms.deblurBasic2TEST(originalBlur, originalBlur, amountOffset, 12, ratio1, ratio2, weight);
+		PlanarImage deblurred = Algorithms.deblurBasic2TEST(originalBlur, originalBlur, amountOffset, 12, ratio1, ratio2, weight);
 		BufferedImage newImage = Algorithms.arrayToImage(deblurred);
 		drawImage(newImage);
 		renderLabel.repaint();
@@ -274,14 +277,14 @@ public class UserInterface {
 		previewImage = newImage;
 		
 		// Convert the BufferedImage to a float array
-		Algorithms.imageArray = Algorithms.imageToArray(previewImage);
+		imageArray = Algorithms.imageToArray(previewImage);
 		
 		// Reset the pan and zoom
 		previewOffsetX = 0;
 		previewOffsetY = 0;
 		previewZoomFactor = Math.min(Math.min(
-				(double)(X - 10) / Algorithms.imageArray[0].length,
-				(double)(Y - 10) / Algorithms.imageArray[0][0].length), 1);
+				(double)(X - 10) / imageArray.width,
+				(double)(Y - 10) / imageArray.height), 1);
 		
 		imageInfoLabel.setText(previewImage.getWidth() + "x" + previewImage.getHeight() + " px");
 
@@ -869,7 +872,7 @@ public class UserInterface {
 							lastSaveFileDirectory = folder;
 						}
 						
-						final BufferedImage imageToSave = Algorithms.arrayToImage(Algorithms.imageArray);
+						final BufferedImage imageToSave = Algorithms.arrayToImage(imageArray);
 						
 						if (chooser.getFileFilter() == jpgFilter) {
 							if (!file.getName().endsWith(".jpg")) {
@@ -1166,8 +1169,8 @@ public class UserInterface {
 						previewOffsetX = 0;
 						previewOffsetY = 0;
 						previewZoomFactor = Math.min(Math.min(
-								(double)(X - 10) / Algorithms.imageArray[0].length,
-								(double)(Y - 10) / Algorithms.imageArray[0][0].length), 1);
+								(double)(X - 10) / imageArray.width,
+								(double)(Y - 10) / imageArray.height), 1);
 
 						// Set the transform for the OpenGL canvas just in case we're using it
 						DeblurOpenGL.setTransform(previewZoomFactor, -previewOffsetX, previewOffsetY);
@@ -26,8 +26,30 @@ public class VideoDecoder {
 	// Number of iterations to run the deblurring algorithm (not used for OpenGL version)
 	static private final int deblurIterations = 1;
 	
-	// Previous video frame used for multithreaded video pipeline processing
-	static private BufferedImage previousVideoFrame;
+	// Number of frames deblurred at the same time on the CPU, and the most frames held in the pipeline
+	static int deblurWorkers = 2;
+	static int pipelineDepth = 8;
+	
+	// On the CPU, only recompute the tiles that changed by more than this since the previous frame
+	// (see TemporalCache.java).  -1 deblurs every frame in full.
+	static int temporalThreshold = -1;
+	static int temporalTileSize = 64;
+	
+	// Video frames are not canceled individually, and do not report progress
+	static private final ProgressMonitor frameMonitor = new ProgressMonitor();
+	
+	// When the video is shown live, each frame is due on screen this long after its presentation time.
+	// Frames are deblurred at reduced quality, or dropped, to keep up (see LiveScheduler.java),
+	// but at least one frame is shown every liveMaxDropMillis.
+	static int liveLatencyMillis = 100;
+	static int liveMaxDropMillis = 500;
+	
+	// Timing of the stages of the video that is running (or that ran last), for reading while it runs.
+	// Null before the first video.
+	static volatile PipelineMetrics metrics = null;
+	
+	// File to write the timing report to at the end of each video (.csv or .json), or null for none
+	static String metricsReportPath = null;
 	
 	// Whether to save the processed video
 	static final boolean saveVideo = false;
@@ -61,14 +83,22 @@ public class VideoDecoder {
 				blurRadius = (float)deblurRadius;
 				videoFileInName = filePath;
 				while (true) {
-					VideoDecoder.decodeVideoBytedeco();
+					VideoDecoder.decodeVideoBytedeco(!saveVideo);
 				}
 			}
 		}).start();
 	}
 	
-	// Decode 
+	// Decode, deblur, and display (and optionally save) the video.
+	// Frames flow through a VideoPipeline, so decoding, conversion, deblurring, and encoding all overlap.
 	static void decodeVideoBytedeco() {
+		decodeVideoBytedeco(false);
+	}
+	
+	// Decode, deblur, and display (and optionally save) the video.
+	// If 'live' is true, frames are shown at their presentation times, and degraded or dropped when
+	// deblurring falls behind.  Otherwise every frame is deblurred in full and shown as soon as it is ready.
+	static void decodeVideoBytedeco(final boolean live) {
 		isVideoRunning = true;
 		
 		if (UserInterface.frame == null) {
@@ -80,22 +110,27 @@ public class VideoDecoder {
 		
 		try {
 			grabber.start();
-			int width = grabber.getImageWidth();
-			int height = grabber.getImageHeight();
-			int numFrames = grabber.getLengthInFrames();
+			final int width = grabber.getImageWidth();
+			final int height = grabber.getImageHeight();
+			final int numFrames = grabber.getLengthInFrames();
 			final double timeLength = grabber.getLengthInTime() / 1000.0; // Now in milliseconds
 			
-			// Utilities for saving the processed video:
-			Java2DFrameConverter videoFrameConverter;
-			FFmpegFrameRecorder recorder;
+			// Utilities for saving the processed video (the audio is copied without re-encoding it):
+			final Java2DFrameConverter videoFrameConverter;
+			final FFmpegFrameRecorder recorder;
+			final AudioPassthrough audio;
 			if (saveVideo) {
 				videoFrameConverter = new Java2DFrameConverter();
 				recorder = new FFmpegFrameRecorder(videoFileOutName, width, height);
 				recorder.setVideoCodec(avcodec.AV_CODEC_ID_HEVC);
-				recorder.setAudioChannels(0);
 				recorder.setVideoBitrate(13000000);
-		        recorder.setFrameRate(grabber.getFrameRate());
-		        recorder.start();
+				recorder.setFrameRate(grabber.getFrameRate());
+				audio = new AudioPassthrough(videoFileInName, Long.MIN_VALUE, Long.MAX_VALUE);
+				audio.startRecorder(recorder, grabber.getFrameRate());
+			} else {
+				videoFrameConverter = null;
+				recorder = null;
+				audio = null;
 			}
 			
 			// Update on-screen statistics
@@ -107,128 +142,122 @@ public class VideoDecoder {
 				DeblurOpenGL.setImageParameters(width, height, blurRadius, deblurAmount);
 			}
 			
+			// Reuse unchanged tiles from the previous frame, if enabled
+			final boolean useCPU = !Algorithms.useOpenGL && !Algorithms.useOpenCL;
+			final TemporalCache cache = (useCPU && temporalThreshold >= 0) ?
+					new TemporalCache(width, height, temporalTileSize, temporalThreshold) : null;
+			
+			// The GPU implementations share one context, and the temporal cache needs the frames in order,
+			// so they only get one worker
+			final int workers = (useCPU && cache == null) ? deblurWorkers : 1;
+			
+			final int depth = Math.max(pipelineDepth, workers);
+			
+			// Recycled frame buffers.  The pipeline holds at most 'depth' frames, plus the one on screen,
+			// and each CPU worker needs up to two float images.
+			final FramePool pool = new FramePool(width, height, depth + 1 + workers * 2);
+			
+			// Buffers for the reduced deblur of live video, which takes up to three half-size float images
+			final FramePool halfPool = live ?
+					new FramePool(Math.max(width / 2, 1), Math.max(height / 2, 1), workers * 3) : null;
+			
+			// Keeps live video in step with real time
+			final LiveScheduler scheduler = live ? new LiveScheduler(liveLatencyMillis, liveMaxDropMillis) : null;
+			
+			final AllocationMonitor allocationMonitor = new AllocationMonitor();
 			final long startTime = System.currentTimeMillis();
+			final PipelineMetrics runMetrics = new PipelineMetrics();
+			metrics = runMetrics;
 			
-			BufferedImage[] nextGrabbedImage = new BufferedImage[1]; // Java pointer hack
-			
-			// Get the first frame
-			previousVideoFrame = new Java2DFrameConverter().convert(grabber.grabImage());
-			
-			// Iterate through each frame in the video
-			int frameNum = 0;
-			while (frameNum < numFrames-1) {
-				
-				// Perform video decoding in parallel with deconvolution
-				Thread frameGrabThead = new Thread(new Runnable() {
-					public void run() {
-						
-						Java2DFrameConverter converter = new Java2DFrameConverter();
-						
-						Frame frame;
-						try {
-							frame = grabber.grabImage();
-							if (frame == null) {
-								return;
-							}
-						} catch (Exception e) {
-							e.printStackTrace();
-							System.exit(1);
-							return;
-						}
-						
-						// Returns type TYPE_3BYTE_BGR
-						nextGrabbedImage[0] = converter.convert(frame);
-					}
-				});
-				
-				// Start fetching the next frame while deblurring the previous
-				frameGrabThead.start();
-				
-				// Get the buffer from the BufferedImage
-				final byte[] buffer = Algorithms.extractByteArray(previousVideoFrame);
-				
-				final double criticalCodeTime;
-				
-				if (Algorithms.useOpenGL) { // Deblur using the OpenGL pipeline
-					
-					long openGLStart = System.nanoTime();
-					
-					// Deconvolve and display using OpenGL
-					DeblurOpenGL.setImageToRender(buffer);
-					DeblurOpenGL.render();
-					
-					criticalCodeTime = (System.nanoTime() - openGLStart) / 1000000.0;
-					
-				} else if (Algorithms.useOpenCL) { // Deblur using the GPU (OpenCL)
-					
-					GPUProgram.initializeGPU(); // Initialization only runs once
-					UserInterface.previewImage = previousVideoFrame;
+			VideoPipeline.FrameSource source = new VideoPipeline.FrameSource() {
+				public Frame grabImage() throws Exception {
+					return grabber.grabImage();
+				}
+			};
+			if (scheduler != null) {
+				source = scheduler.wrap(source);
+			}
+			if (audio != null) {
+				source = audio.wrap(source);
+			}
+			
+			final VideoPipeline pipeline = new VideoPipeline(source, new VideoPipeline.FrameProcessor() {
+				public BufferedImage process(final BufferedImage image, final int frameIndex) {
 					
-					long gpuStart = System.nanoTime();
+					// The reduced deblur is only implemented on the CPU, and the temporal cache needs every frame
+					final LiveScheduler.Quality quality = (scheduler == null) ? LiveScheduler.Quality.FULL :
+							scheduler.chooseQuality(frameIndex, useCPU && cache == null);
+					if (quality == LiveScheduler.Quality.DROPPED) {
+						return image;
+					}
 					
-					GPUAlgorithms.fastMethodGPU(buffer, deblurIterations, width, height, deblurAmount, blurRadius, false);
+					final long deblurStart = System.nanoTime();
+					final BufferedImage result = (quality == LiveScheduler.Quality.REDUCED) ?
+							deblurFrameReduced(image, pool, halfPool) : deblurFrame(image, pool, cache);
+					if (scheduler != null) {
+						scheduler.deblurFinished(quality, System.nanoTime() - deblurStart);
+					}
+					return result;
+				}
+			}, new VideoPipeline.FrameSink() {
+				public void write(final BufferedImage image, final int frameIndex) throws Exception {
+					final long displayStart = System.nanoTime();
 					
-					criticalCodeTime = (System.nanoTime() - gpuStart) / 1000000.0;
+					// Skip dropped frames, and wait until the others are due
+					if (scheduler != null && !scheduler.waitToShow(frameIndex)) {
+						return;
+					}
 					
-					// Update the GUI visual
-					UserInterface.redrawPreviewImage();
+					// Update the GUI visual (OpenGL draws the frame itself)
+					if (!Algorithms.useOpenGL) {
+						UserInterface.previewImage = image;
+						UserInterface.redrawPreviewImage();
+					}
+					final long displayEnd = System.nanoTime();
+					runMetrics.recordStage(PipelineMetrics.Stage.DISPLAY, displayEnd - displayStart);
 					
 					// Save the video if desired
 					if (saveVideo) {
-						// Ignore the last frame
-						if (frameNum < numFrames - 2) {
-							recorder.record(videoFrameConverter.convert(previousVideoFrame));
-						}
+						recorder.record(videoFrameConverter.convert(image));
+						audio.writeUntil(recorder, frameIndex);
+						runMetrics.recordStage(PipelineMetrics.Stage.ENCODE, System.nanoTime() - displayEnd);
 					}
-				
-				} else { // Deblur on the CPU (multithreaded)
-					
-					long cpuStart = System.nanoTime();
-					
-					// Convert the buffer to a 3d float array
-					float[][][] floatImage = new float[3][width][height];
-					for (int x = 0; x < width; x++) {
-						for (int y = 0; y < height; y++) {
-							int i = (y * width + x) * 3;
-							floatImage[0][x][y] = buffer[i + 2] & 0xFF;
-							floatImage[1][x][y] = buffer[i + 1] & 0xFF;
-							floatImage[2][x][y] = buffer[i + 0] & 0xFF;
-						}
-					}
-					
-					floatImage = Algorithms.fastMethodSwitch(floatImage, 1.0f, blurRadius, deblurIterations, false);
-					UserInterface.previewImage = Algorithms.arrayToImage(floatImage);
-
-					criticalCodeTime = (System.nanoTime() - cpuStart) / 1000000.0;
-					
-					// Update the GUI visual
-					UserInterface.redrawPreviewImage();
 				}
-				
-				print("Frame " + frameNum + " " + criticalCodeTime + " ms");
-				
-				// Wait for the next frame to finish being decoded
-				frameGrabThead.join();
-				
-				// Ready for the next frame
-				previousVideoFrame = nextGrabbedImage[0];
-				
-				frameNum++;
-			}
+			}, pool, workers, depth);
+			pipeline.setMetrics(runMetrics);
+			
+			final int framesWritten = pipeline.run();
 			
 			// If we are also re-recording video
 			if (saveVideo) {
+				audio.finish(recorder);
 				recorder.stop();
 				recorder.close();
+				audio.release();
 			}
 			
 			grabber.close();
-			long duration = System.currentTimeMillis() - startTime;
+			long duration = Math.max(System.currentTimeMillis() - startTime, 1);
 			print("Processing rate: " + String.format("%.2f", 
 					(timeLength / duration)) + " x realtime");
 			print(width + "x" + height + " at " + String.format("%.2f",
-					(1000.0 * numFrames / duration)) + " fps, " + 
-					String.format("%.1f ms/frame", (double)duration / numFrames));
+					(1000.0 * framesWritten / duration)) + " fps, " + 
+					String.format("%.1f ms/frame", (double)duration / Math.max(framesWritten, 1)));
+			print(allocationMonitor.getSummary());
+			print(pool.getSummary());
+			if (halfPool != null) {
+				print("Half-size " + halfPool.getSummary());
+			}
+			if (cache != null) {
+				print(cache.getSummary());
+			}
+			if (scheduler != null) {
+				print(scheduler.getSummary());
+			}
+			print(runMetrics.getSummary());
+			if (metricsReportPath != null) {
+				runMetrics.writeReport(metricsReportPath);
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		} finally {
@@ -239,10 +268,72 @@ public class VideoDecoder {
 				e.printStackTrace();
 			}
 		}
-        
+		
 		isVideoRunning = false;
 	}
 	
+	// Deblur one video frame with the current implementation (OpenGL, OpenCL, or CPU).
+	// The result is written back into the frame.  The cache is null unless the temporal cache is enabled.
+	private static BufferedImage deblurFrame(final BufferedImage image, final FramePool pool,
+			final TemporalCache cache) {
+		
+		// Get the buffer from the BufferedImage
+		final byte[] buffer = Algorithms.extractByteArray(image);
+		
+		if (Algorithms.useOpenGL) { // Deblur using the OpenGL pipeline
+			
+			// Deconvolve and display using OpenGL
+			DeblurOpenGL.setImageToRender(buffer);
+			DeblurOpenGL.render();
+			return image;
+		
+		} else if (Algorithms.useOpenCL) { // Deblur using the GPU (OpenCL)
+			
+			GPUProgram.initializeGPU(); // Initialization only runs once
+			
+			GPUAlgorithms.fastMethodGPU(buffer, buffer, deblurIterations, image.getWidth(), image.getHeight(),
+					deblurAmount, blurRadius, false, frameMonitor);
+			return image;
+		
+		} else { // Deblur on the CPU (multithreaded), in recycled buffers
+			final DeconvolutionRequest request =
+					DeconvolutionRequest.fastMethod(blurRadius, deblurAmount, deblurIterations);
+			if (cache != null) {
+				return cache.deblur(image, pool, request, frameMonitor);
+			}
+			return VideoJob.deblurFrame(image, pool, request, frameMonitor);
+		}
+	}
+	
+	// Deblur one video frame on the CPU at half resolution, for live video that is falling behind.
+	// The result is written back into the frame.  Returns null if the monitor was canceled.
+	// The float images come from 'pool' and from 'halfPool' (of half the frame size), and the full-size
+	// result is written over the float copy of the frame.
+	private static BufferedImage deblurFrameReduced(final BufferedImage image, final FramePool pool,
+			final FramePool halfPool) {
+		final PlanarImage planar = pool.acquirePlanarImage();
+		final PlanarImage half = halfPool.acquirePlanarImage();
+		final PlanarImage buffer1 = halfPool.acquirePlanarImage();
+		final PlanarImage buffer2 = deblurIterations > 1 ? halfPool.acquirePlanarImage() : null;
+		try {
+			Algorithms.imageToArray(image, planar);
+			final PlanarImage result = Algorithms.fastMethodHalfResolution(planar, deblurAmount, blurRadius,
+					deblurIterations, frameMonitor, half, buffer1, buffer2, planar);
+			if (result == null) {
+				return null;
+			}
+			Algorithms.copyToByteArray(result, Algorithms.extractByteArray(image));
+		} finally {
+			pool.releasePlanarImage(planar);
+			halfPool.releasePlanarImage(half);
+			halfPool.releasePlanarImage(buffer1);
+			if (buffer2 != null) {
+				halfPool.releasePlanarImage(buffer2);
+			}
+		}
+		return image;
+	}
+	
 	static void print(Object o) {
 		System.out.println(o);
 	}
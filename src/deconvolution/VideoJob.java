@@ -0,0 +1,664 @@
+package deconvolution;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.Java2DFrameConverter;
+
+// This class deblurs a video file into a new video file, without the GUI.
+// Frames stream from an FFmpegFrameGrabber through a VideoPipeline into an FFmpegFrameRecorder,
+// so it runs on servers without a display (for example under a batch scheduler).
+// The algorithms run on the CPU, as with the Deconvolver.
+// Example:
+//   java deconvolution.VideoJob --radius 12 --codec libx264 --bitrate 8000000 in.mp4 out.mp4
+
+public class VideoJob {
+	
+	// The result of a finished job
+	public static final class Summary {
+		final int frames;
+		final double seconds;
+		final double videoSeconds;
+		
+		Summary(final int frames, final double seconds, final double videoSeconds) {
+			this.frames = frames;
+			this.seconds = seconds;
+			this.videoSeconds = videoSeconds;
+		}
+		
+		public int getFrames() {
+			return frames;
+		}
+		
+		public double getFramesPerSecond() {
+			return frames / Math.max(seconds, 1e-9);
+		}
+		
+		// How many seconds of video were processed per second
+		public double getRealtimeFactor() {
+			return videoSeconds / Math.max(seconds, 1e-9);
+		}
+		
+		public String toString() {
+			return String.format(Locale.ROOT, "%d frames in %.2f s: %.2f fps, %.2f x realtime",
+					frames, seconds, getFramesPerSecond(), getRealtimeFactor());
+		}
+	}
+	
+	private final String inputPath;
+	private final String outputPath;
+	private final DeconvolutionRequest request;
+	
+	// Encoder settings.  Null or 0 means: H.264, and the bitrate of the input.
+	private String codecName = null;
+	private int bitrate = 0;
+	
+	// Frames deblurred at the same time, and the most frames held in the pipeline
+	private int workerCount = 2;
+	private int pipelineDepth = 8;
+	
+	// Reuse the output of unchanged tiles from the previous frame (see TemporalCache.java).
+	// -1 deblurs every frame in full.
+	private int temporalThreshold = -1;
+	private int tileSize = 64;
+	
+	// Deblur only the luma of the decoded YUV frames (see setLumaOnly())
+	private boolean lumaOnly = false;
+	
+	// Number of parts encoded at the same time (see setSegments())
+	private int segmentCount = 1;
+	
+	// Copy the audio of the input into the output (see setCopyAudio())
+	private boolean copyAudio = true;
+	
+	// Progress of the running job.  The frame rate is set once the input is opened, and 'failed' stops
+	// the other parts when one part fails.
+	private final AtomicInteger framesWritten = new AtomicInteger();
+	private volatile double frameRate = 0;
+	private volatile boolean failed = false;
+	
+	// Timing of the stages of every part, which can be read while the job runs
+	private final PipelineMetrics metrics = new PipelineMetrics();
+	
+	// File to write the timing report to when the job ends (see setMetricsReport()), or null for none
+	private String metricsReportPath = null;
+	
+	// Create a job that deblurs the input video into the output video.
+	// The container format of the output comes from its file extension.
+	public VideoJob(final String inputPath, final String outputPath, final DeconvolutionRequest request) {
+		this.inputPath = inputPath;
+		this.outputPath = outputPath;
+		this.request = request;
+	}
+	
+	// Set the FFmpeg encoder name (eg. "libx264", "libx265", "mpeg4"), or null for H.264
+	public void setCodec(final String codecName) {
+		this.codecName = codecName;
+	}
+	
+	// Set the video bitrate in bits per second, or 0 to use the bitrate of the input
+	public void setBitrate(final int bitrate) {
+		if (bitrate < 0) {
+			throw new IllegalArgumentException("Bitrate must not be negative: " + bitrate);
+		}
+		this.bitrate = bitrate;
+	}
+	
+	// Set the number of frames deblurred at the same time
+	public void setWorkers(final int workerCount) {
+		if (workerCount < 1) {
+			throw new IllegalArgumentException("At least one worker is required");
+		}
+		this.workerCount = workerCount;
+	}
+	
+	// Set the largest number of frames held in the pipeline at once
+	public void setPipelineDepth(final int pipelineDepth) {
+		if (pipelineDepth < 1) {
+			throw new IllegalArgumentException("Pipeline depth must be at least 1");
+		}
+		this.pipelineDepth = pipelineDepth;
+	}
+	
+	// Only recompute the tiles that changed by more than 'threshold' (0 to 255) since the previous frame,
+	// or -1 to deblur every frame in full.  Only the Fast-Method supports this.
+	// Frames are then deblurred one at a time, in order.
+	public void setTemporalThreshold(final int threshold, final int tileSize) {
+		if (threshold < -1 || threshold > 255) {
+			throw new IllegalArgumentException("Temporal threshold must be -1 to 255: " + threshold);
+		}
+		if (tileSize < 1) {
+			throw new IllegalArgumentException("Tile size must be at least 1: " + tileSize);
+		}
+		if (threshold >= 0 && request.algorithm != DeconvolutionRequest.Algorithm.FAST_METHOD) {
+			throw new IllegalArgumentException("Only the Fast-Method can reuse unchanged tiles");
+		}
+		this.temporalThreshold = threshold;
+		this.tileSize = tileSize;
+	}
+	
+	// Deblur only the Y (luma) plane of each frame, working on the decoded YUV 4:2:0 planes directly.
+	// The color planes are passed through unchanged.  This skips the conversions to and from BGR and
+	// two thirds of the deblurring, and looks almost the same, since the eye sees detail mostly in luma.
+	// Only the Fast-Method supports this, and the video must have an even width and height.
+	public void setLumaOnly(final boolean lumaOnly) {
+		if (lumaOnly && request.algorithm != DeconvolutionRequest.Algorithm.FAST_METHOD) {
+			throw new IllegalArgumentException("Only the Fast-Method can deblur the luma alone");
+		}
+		this.lumaOnly = lumaOnly;
+	}
+	
+	// Split the video into this many parts at keyframes, and deblur and encode the parts at the same time,
+	// each with its own decoder and encoder.  The parts are then joined into the output without
+	// re-encoding them.  1 processes the video in one part.
+	public void setSegments(final int segmentCount) {
+		if (segmentCount < 1) {
+			throw new IllegalArgumentException("At least one segment is required");
+		}
+		this.segmentCount = segmentCount;
+	}
+	
+	// Copy the audio of the input into the output without re-encoding it, in step with the video
+	// (see AudioPassthrough.java), or leave the output silent
+	public void setCopyAudio(final boolean copyAudio) {
+		this.copyAudio = copyAudio;
+	}
+	
+	// Write the timing of the pipeline stages (see PipelineMetrics.java) to this file at the end of the job,
+	// as JSON if its name ends in ".json" and otherwise as CSV, or null for no report
+	public void setMetricsReport(final String metricsReportPath) {
+		this.metricsReportPath = metricsReportPath;
+	}
+	
+	// Return the timing of the pipeline stages so far.  It can be read while the job is running,
+	// and covers every part when the video is split into segments.
+	PipelineMetrics getMetrics() {
+		return metrics;
+	}
+	
+	// Process the whole video and return the summary.
+	// The monitor receives the fraction of frames written, and canceling it stops the job early
+	// (the frames written so far are kept in the output).
+	public Summary run(final ProgressMonitor monitor) throws Exception {
+		
+		if (lumaOnly && temporalThreshold >= 0) {
+			throw new IllegalArgumentException("The temporal cache does not support deblurring the luma alone");
+		}
+		
+		monitor.setProcessName("Deblurring " + inputPath);
+		final long startTime = System.nanoTime();
+		framesWritten.set(0);
+		failed = false;
+		
+		if (segmentCount > 1) {
+			runSegments(monitor);
+		} else {
+			encode(outputPath, Long.MIN_VALUE, Long.MAX_VALUE, workerCount, pipelineDepth, monitor);
+		}
+		
+		if (metricsReportPath != null) {
+			metrics.writeReport(metricsReportPath);
+		}
+		
+		final int frames = framesWritten.get();
+		final double seconds = (System.nanoTime() - startTime) / 1e9;
+		final double videoSeconds = frameRate > 0 ? frames / frameRate : 0;
+		return new Summary(frames, seconds, videoSeconds);
+	}
+	
+	// Encode the parts of the video in parallel into temporary files next to the output, then join them
+	private void runSegments(final ProgressMonitor monitor) throws Exception {
+		
+		final long[] boundaries = VideoSegments.findSegments(inputPath, segmentCount);
+		final int parts = boundaries.length - 1;
+		print("Processing " + parts + " segments");
+		
+		// The parts use the container format of the output
+		final File outputFile = new File(outputPath).getAbsoluteFile();
+		final String name = outputFile.getName();
+		final String extension = name.lastIndexOf('.') > 0 ? name.substring(name.lastIndexOf('.')) : ".mkv";
+		
+		// The workers and the pipeline depth are shared between the parts
+		final int partWorkers = Math.max(workerCount / parts, 1);
+		final int partDepth = Math.max(pipelineDepth / parts, 2);
+		
+		final List<String> partPaths = new ArrayList<String>();
+		final Exception[] error = new Exception[1];
+		final Thread[] threads = new Thread[parts];
+		try {
+			for (int i = 0; i < parts; i++) {
+				partPaths.add(File.createTempFile("segment" + i + "-", extension, outputFile.getParentFile()).getPath());
+			}
+			
+			for (int i = 0; i < parts; i++) {
+				final int part = i;
+				threads[i] = new Thread(new Runnable() {
+					public void run() {
+						try {
+							encode(partPaths.get(part), boundaries[part], boundaries[part + 1],
+									partWorkers, partDepth, monitor);
+						} catch (Exception e) {
+							synchronized (error) {
+								if (error[0] == null) {
+									error[0] = e;
+								}
+							}
+							failed = true; // Stop the other parts
+						} finally {
+							AllocationMonitor.threadFinished();
+						}
+					}
+				}, "Video segment " + i);
+				threads[i].setDaemon(true);
+				threads[i].start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			synchronized (error) {
+				if (error[0] != null) {
+					throw error[0];
+				}
+			}
+			
+			VideoSegments.concatenate(partPaths, outputPath);
+		
+		} finally {
+			// Stop any parts still running (if this thread was interrupted)
+			failed = true;
+			for (Thread thread : threads) {
+				if (thread != null) {
+					thread.join();
+				}
+			}
+			for (String path : partPaths) {
+				new File(path).delete();
+			}
+		}
+	}
+	
+	// Deblur the frames with start <= timestamp < end into a new video.
+	// The decoder seeks to 'start', which must be a keyframe (or Long.MIN_VALUE for the beginning).
+	private void encode(final String path, final long start, final long end, final int workerCount,
+			final int pipelineDepth, final ProgressMonitor monitor) throws Exception {
+		
+		final FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputPath);
+		FFmpegFrameRecorder recorder = null;
+		final AudioPassthrough audio = copyAudio ? new AudioPassthrough(inputPath, start, end) : null;
+		try {
+			if (lumaOnly) {
+				grabber.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
+			}
+			grabber.start();
+			final int width = grabber.getImageWidth();
+			final int height = grabber.getImageHeight();
+			frameRate = grabber.getFrameRate();
+			final int totalFrames = grabber.getLengthInFrames();
+			
+			if (start != Long.MIN_VALUE) {
+				// Frame timestamps include the start time of the file, but seeking does not
+				final long fileStart = grabber.getFormatContext().start_time();
+				grabber.setTimestamp(start - (fileStart != avutil.AV_NOPTS_VALUE ? fileStart : 0));
+			}
+			
+			recorder = new FFmpegFrameRecorder(path, width, height, 0);
+			if (codecName != null) {
+				recorder.setVideoCodecName(codecName);
+			} else {
+				recorder.setVideoCodec(avcodec.AV_CODEC_ID_H264);
+			}
+			recorder.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
+			recorder.setVideoBitrate(bitrate > 0 ? bitrate : grabber.getVideoBitrate());
+			recorder.setFrameRate(frameRate);
+			if (audio != null) {
+				audio.startRecorder(recorder, frameRate);
+			} else {
+				recorder.setAudioChannels(0);
+				recorder.start();
+			}
+			
+			final FFmpegFrameRecorder videoRecorder = recorder;
+			final Java2DFrameConverter converter = new Java2DFrameConverter();
+			
+			// The temporal cache needs the frames in order, so it gets one worker
+			final TemporalCache cache = temporalThreshold >= 0 ?
+					new TemporalCache(width, height, tileSize, temporalThreshold) : null;
+			final int workers = cache != null ? 1 : workerCount;
+			
+			final int depth = Math.max(pipelineDepth, workers);
+			final FramePool pool = new FramePool(width, height, depth + 1 + workers * 2, lumaOnly);
+			
+			// Only the frames in this part
+			VideoPipeline.FrameSource source = new VideoPipeline.FrameSource() {
+				private boolean isFirstFrame = true;
+				
+				public Frame grabImage() throws Exception {
+					while (true) {
+						final Frame frame = grabber.grabImage();
+						if (frame == null || frame.timestamp >= end) {
+							return null;
+						}
+						if (isFirstFrame && start != Long.MIN_VALUE && frame.timestamp > start) {
+							throw new IllegalStateException("Could not seek to the keyframe at " + start + " us");
+						}
+						isFirstFrame = false;
+						if (frame.timestamp >= start) {
+							return frame;
+						}
+					}
+				}
+			};
+			if (audio != null) {
+				source = audio.wrap(source);
+			}
+			
+			final VideoPipeline pipeline = new VideoPipeline(source, new VideoPipeline.FrameProcessor() {
+				public BufferedImage process(final BufferedImage image, final int frameIndex) {
+					if (monitor.isCanceled() || failed) {
+						return null;
+					}
+					if (lumaOnly) {
+						return deblurLuma(image, pool, request, monitor);
+					} else if (cache != null) {
+						return cache.deblur(image, pool, request, monitor);
+					}
+					return deblurFrame(image, pool, request, monitor);
+				}
+			}, new VideoPipeline.FrameSink() {
+				public void write(final BufferedImage image, final int frameIndex) throws Exception {
+					final long encodeStart = System.nanoTime();
+					if (lumaOnly) {
+						videoRecorder.record(VideoPipeline.wrapYUVImage(image), avutil.AV_PIX_FMT_YUV420P);
+					} else {
+						videoRecorder.record(converter.convert(image));
+					}
+					if (audio != null) {
+						audio.writeUntil(videoRecorder, frameIndex);
+					}
+					metrics.recordStage(PipelineMetrics.Stage.ENCODE, System.nanoTime() - encodeStart);
+					
+					final int frames = framesWritten.incrementAndGet();
+					if (totalFrames > 0) {
+						monitor.updateProgress(Math.min((double)frames / totalFrames, 1));
+					}
+				}
+			}, pool, workers, depth);
+			pipeline.setMetrics(metrics);
+			
+			pipeline.run();
+			if (audio != null) {
+				audio.finish(recorder);
+			}
+			recorder.stop();
+			
+			if (cache != null) {
+				print(cache.getSummary());
+			}
+			if (audio != null) {
+				print("Copied " + audio.getPacketsWritten() + " audio packets");
+			}
+		
+		} finally {
+			if (recorder != null) {
+				recorder.release();
+			}
+			if (audio != null) {
+				audio.release();
+			}
+			grabber.release();
+		}
+	}
+	
+	// Deblur one video frame on the CPU, writing the result back into the frame.
+	// The Fast-Method runs entirely in recycled buffers.
+	// Returns null if the monitor was canceled.
+	static BufferedImage deblurFrame(final BufferedImage image, final FramePool pool,
+			final DeconvolutionRequest request, final ProgressMonitor monitor) {
+		
+		final byte[] buffer = Algorithms.extractByteArray(image);
+		
+		final PlanarImage floatImage = pool.acquirePlanarImage();
+		final PlanarImage buffer1 = pool.acquirePlanarImage();
+		final PlanarImage buffer2 = request.iterations > 1 ? pool.acquirePlanarImage() : null;
+		try {
+			Algorithms.imageToArray(image, floatImage);
+			
+			final PlanarImage result;
+			if (request.algorithm == DeconvolutionRequest.Algorithm.FAST_METHOD) {
+				result = Algorithms.fastMethodIterations(floatImage, request.amount, request.radius,
+						request.iterations, monitor, buffer1, buffer2);
+			} else {
+				result = new Deconvolver().deconvolve(floatImage, request, monitor);
+			}
+			if (result == null) {
+				return null;
+			}
+			
+			Algorithms.copyToByteArray(result, buffer);
+			return image;
+		
+		} finally {
+			pool.releasePlanarImage(floatImage);
+			pool.releasePlanarImage(buffer1);
+			if (buffer2 != null) {
+				pool.releasePlanarImage(buffer2);
+			}
+		}
+	}
+	
+	// Deblur the Y plane of an I420 video frame (see FramePool.java) on the CPU, in place.
+	// The U and V planes are left as they are.
+	// Returns null if the monitor was canceled.
+	static BufferedImage deblurLuma(final BufferedImage image, final FramePool pool,
+			final DeconvolutionRequest request, final ProgressMonitor monitor) {
+		
+		final byte[] pixels = Algorithms.extractByteArray(image);
+		final int count = pool.width * pool.height;
+		
+		final PlanarImage luma = pool.acquireLumaImage();
+		final PlanarImage buffer1 = pool.acquireLumaImage();
+		final PlanarImage buffer2 = request.iterations > 1 ? pool.acquireLumaImage() : null;
+		try {
+			final float[] lumaPlane = luma.planes[0];
+			for (int i = 0; i < count; i++) {
+				lumaPlane[i] = pixels[i] & 0xff;
+			}
+			
+			final PlanarImage result = Algorithms.fastMethodIterations(luma, request.amount, request.radius,
+					request.iterations, monitor, buffer1, buffer2);
+			if (result == null) {
+				return null;
+			}
+			
+			final float[] resultPlane = result.planes[0];
+			for (int i = 0; i < count; i++) {
+				pixels[i] = (byte)Algorithms.clamp(resultPlane[i]);
+			}
+			return image;
+		
+		} finally {
+			pool.releasePlanarImage(luma);
+			pool.releasePlanarImage(buffer1);
+			if (buffer2 != null) {
+				pool.releasePlanarImage(buffer2);
+			}
+		}
+	}
+	
+	public static void main(String[] args) {
+		
+		String algorithm = "fast";
+		float radius = -1;
+		float amount = 1;
+		int iterations = -1;
+		int snr = 100;
+		float weight = 1;
+		String codec = null;
+		int bitrate = 0;
+		int workers = 2;
+		int depth = 8;
+		int temporalThreshold = -1;
+		int tileSize = 64;
+		int segments = 1;
+		boolean lumaOnly = false;
+		boolean copyAudio = true;
+		String metricsReport = null;
+		
+		final String inputPath;
+		final String outputPath;
+		final DeconvolutionRequest request;
+		try {
+			String input = null;
+			String output = null;
+			for (int i = 0; i < args.length; i++) {
+				final String arg = args[i];
+				if (!arg.startsWith("-")) {
+					if (input == null) {
+						input = arg;
+					} else if (output == null) {
+						output = arg;
+					} else {
+						throw new IllegalArgumentException("Unexpected argument " + arg);
+					}
+					continue;
+				}
+				if (arg.equals("-h") || arg.equals("--help")) {
+					printUsage();
+					System.exit(0);
+				}
+				if (arg.equals("--luma")) {
+					lumaOnly = true;
+					continue;
+				}
+				if (arg.equals("--no-audio")) {
+					copyAudio = false;
+					continue;
+				}
+				if (i + 1 >= args.length) {
+					throw new IllegalArgumentException("Missing value for " + arg);
+				}
+				final String value = args[++i];
+				try {
+					if (arg.equals("-a") || arg.equals("--algorithm")) {
+						algorithm = value.toLowerCase(Locale.ROOT);
+					} else if (arg.equals("-r") || arg.equals("--radius")) {
+						radius = Float.parseFloat(value);
+					} else if (arg.equals("--amount")) {
+						amount = Float.parseFloat(value);
+					} else if (arg.equals("--iterations")) {
+						iterations = Integer.parseInt(value);
+					} else if (arg.equals("--snr")) {
+						snr = Integer.parseInt(value);
+					} else if (arg.equals("--weight")) {
+						weight = Float.parseFloat(value);
+					} else if (arg.equals("--codec")) {
+						codec = value;
+					} else if (arg.equals("--bitrate")) {
+						bitrate = Integer.parseInt(value);
+					} else if (arg.equals("--threads")) {
+						Algorithms.numThreads = Math.max(Integer.parseInt(value), 1);
+					} else if (arg.equals("--workers")) {
+						workers = Integer.parseInt(value);
+					} else if (arg.equals("--depth")) {
+						depth = Integer.parseInt(value);
+					} else if (arg.equals("--temporal")) {
+						temporalThreshold = Integer.parseInt(value);
+					} else if (arg.equals("--tile-size")) {
+						tileSize = Integer.parseInt(value);
+					} else if (arg.equals("--segments")) {
+						segments = Integer.parseInt(value);
+					} else if (arg.equals("--metrics")) {
+						metricsReport = value;
+					} else {
+						throw new IllegalArgumentException("Unknown option " + arg);
+					}
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Invalid number for " + arg + ": " + value);
+				}
+			}
+			if (input == null || output == null) {
+				throw new IllegalArgumentException("An input and an output file are required");
+			}
+			if (radius <= 0) {
+				throw new IllegalArgumentException("A positive --radius is required");
+			}
+			inputPath = input;
+			outputPath = output;
+			request = BatchDeblur.createRequest(algorithm, radius, amount, iterations, snr, false, 0, weight);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Error: " + e.getMessage());
+			System.err.println();
+			printUsage();
+			System.exit(1);
+			return;
+		}
+		
+		print("Deblurring " + inputPath + " into " + outputPath + " with " + request);
+		
+		final AllocationMonitor allocationMonitor = new AllocationMonitor();
+		try {
+			final VideoJob job = new VideoJob(inputPath, outputPath, request);
+			job.setCodec(codec);
+			job.setBitrate(bitrate);
+			job.setWorkers(workers);
+			job.setPipelineDepth(depth);
+			job.setTemporalThreshold(temporalThreshold, tileSize);
+			job.setSegments(segments);
+			job.setLumaOnly(lumaOnly);
+			job.setCopyAudio(copyAudio);
+			job.setMetricsReport(metricsReport);
+			final Summary summary = job.run(new ProgressMonitor());
+			print(summary);
+			print(job.getMetrics().getSummary());
+			print(allocationMonitor.getSummary());
+		} catch (IllegalArgumentException e) {
+			System.err.println("Error: " + e.getMessage());
+			System.exit(1);
+		} catch (Exception e) {
+			System.err.println("Failed to process " + inputPath + ": " + e);
+			e.printStackTrace();
+			System.exit(2);
+		}
+		System.exit(0);
+	}
+	
+	private static void printUsage() {
+		print("Usage: java deconvolution.VideoJob [options] <input video> <output video>");
+		print("");
+		print("Options:");
+		print("  -a, --algorithm <name>   fast (Fast-Method, default), rl (Richardson-Lucy), wiener, or sharpen");
+		print("  -r, --radius <pixels>    Blur radius (required)");
+		print("  --amount <value>         Fast-Method amount (default 1)");
+		print("  --iterations <count>     Fast-Method iterations (default 1), or Richardson-Lucy iterations (default 10)");
+		print("  --snr <value>            Wiener signal-to-noise ratio (default 100)");
+		print("  --weight <value>         Sharpen weight (default 1)");
+		print("  --codec <name>           FFmpeg video encoder, eg. libx264 or libx265 (default H.264)");
+		print("  --bitrate <bits/s>       Video bitrate (default: the bitrate of the input)");
+		print("  --threads <count>        Threads used to process each frame (default: number of cores)");
+		print("  --workers <count>        Frames deblurred at the same time (default 2)");
+		print("  --depth <count>          Most frames held in the pipeline (default 8)");
+		print("  --temporal <threshold>   Fast-Method only: reuse the previous output where no color changed by more");
+		print("                           than the threshold (0 for identical pixels only).  Frames run one at a time.");
+		print("  --tile-size <pixels>     Tile size for --temporal (default 64)");
+		print("  --luma                   Fast-Method only: deblur just the luma of the decoded YUV frames, which");
+		print("                           is about 3 times faster and looks almost the same");
+		print("  --segments <count>       Split the video at keyframes and process this many parts at the same time,");
+		print("                           each with its own decoder and encoder (default 1)");
+		print("  --no-audio               Leave out the audio (by default it is copied without re-encoding)");
+		print("  --metrics <file>         Write the timing of each pipeline stage to this file (.csv or .json)");
+	}
+	
+	// Easy print function
+	static void print(final Object o) {
+		System.out.println(o);
+	}
+}
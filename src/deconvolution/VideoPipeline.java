@@ -0,0 +1,520 @@
+package deconvolution;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.Java2DFrameConverter;
+
+// This class runs a video through a pipeline of threads:
+//   decode -> convert -> deblur (one or more workers) -> output (encode and/or display)
+// The stages are connected by bounded queues, so decoding and encoding overlap with the deblurring.
+// Deblur workers may finish frames out of order, so the output stage puts them back in order.
+// The number of frames anywhere in the pipeline is limited to 'depth', so memory use is bounded
+// no matter which stage is the slowest.
+// Frame images come from a FramePool and are returned to it once written, so that the pipeline
+// allocates nothing per frame once the pool has filled up.
+// With a pool of YUV frames, the frames are copied into I420 images without any color conversion
+// (the source must then decode to AV_PIX_FMT_YUV420P).
+// Each pipeline is used for one run of one video.
+
+public class VideoPipeline {
+	
+	// Supplies the decoded frames in order, and null at the end of the video.
+	// The returned frame may be reused by the source after the next call.
+	interface FrameSource {
+		Frame grabImage() throws Exception;
+	}
+	
+	// Deblurs one frame.  This is called from every deblur worker at the same time,
+	// so it must be thread-safe if there is more than one worker.
+	// It should modify and return the given image.  If it returns a different image (which must be
+	// the same size and type), then the given image is returned to the pool.
+	// Returning null stops the pipeline (eg. when the job is canceled).
+	interface FrameProcessor {
+		BufferedImage process(BufferedImage image, int frameIndex) throws Exception;
+	}
+	
+	// Receives the deblurred frames in order, on the thread that called run().
+	// The image stays valid until the next call to write() (so it can still be on screen), and is
+	// then returned to the pool.
+	interface FrameSink {
+		void write(BufferedImage image, int frameIndex) throws Exception;
+	}
+	
+	// One frame moving through the pipeline
+	private static class VideoFrame {
+		final int index;
+		long decodeStart; // When decoding of the frame started (System.nanoTime())
+		Frame frame; // Copy of a decoded frame that needs converting (the grabber reuses its own frame)
+		BufferedImage image; // The converted, and later deblurred, image
+		
+		VideoFrame(final int index) {
+			this.index = index;
+		}
+	}
+	
+	// Marks the end of the video for the next stage
+	private static final VideoFrame END = new VideoFrame(-1);
+	
+	private final FrameSource source;
+	private final FrameProcessor processor;
+	private final FrameSink sink;
+	private final FramePool pool;
+	private final int workerCount;
+	
+	// Queues between the stages
+	private final BlockingQueue<VideoFrame> decodedFrames;
+	private final BlockingQueue<VideoFrame> convertedFrames;
+	
+	// Deblurred frames waiting to be written, by frame index.  Guarded by itself.
+	private final Map<Integer, VideoFrame> completedFrames = new HashMap<Integer, VideoFrame>();
+	
+	// Number of frames decoded so far, or the total number once decoding is done (guarded by completedFrames)
+	private int decodedCount = 0;
+	private boolean isDecodingDone = false;
+	
+	// One permit for every frame that may be in the pipeline at once
+	private final Semaphore framesInFlight;
+	
+	// Deblur workers that have not finished yet
+	private final AtomicInteger runningWorkers;
+	
+	// The stage threads, so they can be interrupted if the pipeline is stopped.  Guarded by itself.
+	private final List<Thread> threads = new ArrayList<Thread>();
+	
+	// Timing of the stages and queues.  This may be replaced before run() with setMetrics().
+	private PipelineMetrics metrics = new PipelineMetrics();
+	
+	// The first error from any stage, and whether the pipeline is stopping early
+	private volatile Throwable failure = null;
+	private volatile boolean isStopped = false;
+	
+	// Create a pipeline that reads frames from the grabber (which must already be started).
+	// 'depth' is the largest number of frames in the pipeline at once, and must be at least 'workerCount'.
+	VideoPipeline(final FFmpegFrameGrabber grabber, final FrameProcessor processor, final FrameSink sink,
+			final FramePool pool, final int workerCount, final int depth) {
+		this(new FrameSource() {
+			public Frame grabImage() throws Exception {
+				return grabber.grabImage();
+			}
+		}, processor, sink, pool, workerCount, depth);
+	}
+	
+	// Create a pipeline that reads frames from any source.  The frames must be the size of the pool.
+	VideoPipeline(final FrameSource source, final FrameProcessor processor, final FrameSink sink,
+			final FramePool pool, final int workerCount, final int depth) {
+		if (workerCount < 1) {
+			throw new IllegalArgumentException("At least one deblur worker is required");
+		}
+		if (depth < workerCount) {
+			throw new IllegalArgumentException("Pipeline depth " + depth + " is less than the " +
+					workerCount + " deblur workers");
+		}
+		this.source = source;
+		this.processor = processor;
+		this.sink = sink;
+		this.pool = pool;
+		this.workerCount = workerCount;
+		this.decodedFrames = new ArrayBlockingQueue<VideoFrame>(depth + 1);
+		this.convertedFrames = new ArrayBlockingQueue<VideoFrame>(depth + workerCount);
+		this.framesInFlight = new Semaphore(depth);
+		this.runningWorkers = new AtomicInteger(workerCount);
+	}
+	
+	// Collect the timing into the given metrics, which may be shared by several pipelines
+	// (eg. to read them while the video runs).  Must be called before run().
+	void setMetrics(final PipelineMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	PipelineMetrics getMetrics() {
+		return metrics;
+	}
+	
+	// Process the whole video, and return the number of frames written.
+	// Blocks until every frame has been written, or until the pipeline is stopped.
+	// Throws the first error from any stage.
+	int run() throws Exception {
+		metrics.setQueueCapacity(PipelineMetrics.Queue.DECODED, decodedFrames.remainingCapacity());
+		metrics.setQueueCapacity(PipelineMetrics.Queue.CONVERTED, convertedFrames.remainingCapacity());
+		
+		startThread("Video decoder", new Runnable() {
+			public void run() {
+				decodeFrames();
+			}
+		});
+		startThread("Video converter", new Runnable() {
+			public void run() {
+				convertFrames();
+			}
+		});
+		for (int i = 0; i < workerCount; i++) {
+			startThread("Video deblur " + i, new Runnable() {
+				public void run() {
+					deblurFrames();
+				}
+			});
+		}
+		
+		int framesWritten = 0;
+		try {
+			framesWritten = writeFrames();
+		} catch (Exception e) {
+			fail(e);
+		} finally {
+			stop();
+			for (Thread thread : getThreads()) {
+				thread.join();
+			}
+		}
+		
+		if (failure instanceof Exception) {
+			throw (Exception)failure;
+		} else if (failure instanceof Error) {
+			throw (Error)failure;
+		}
+		return framesWritten;
+	}
+	
+	// Stop the pipeline early.  run() returns once the stages have stopped.
+	void stop() {
+		isStopped = true;
+		synchronized (threads) {
+			for (Thread thread : threads) {
+				thread.interrupt();
+			}
+		}
+		synchronized (completedFrames) {
+			completedFrames.notifyAll();
+		}
+	}
+	
+	// Decode stage: read frames from the source until the end of the video
+	private void decodeFrames() {
+		try {
+			int index = 0;
+			while (!isStopped) {
+				final long waitStart = System.nanoTime();
+				framesInFlight.acquire();
+				final long decodeStart = System.nanoTime();
+				metrics.recordOutputWait(PipelineMetrics.Stage.DECODE, decodeStart - waitStart);
+				
+				final Frame frame = source.grabImage();
+				if (frame == null) {
+					framesInFlight.release();
+					break;
+				}
+				final VideoFrame videoFrame = new VideoFrame(index++);
+				videoFrame.decodeStart = decodeStart;
+				if (pool.isYUV) {
+					videoFrame.image = pool.acquireImage();
+					copyYUVFrame(frame, videoFrame.image);
+				} else if (isByteBGR(frame)) {
+					// Copy the pixels straight into a pooled image, so no conversion is needed
+					videoFrame.image = pool.acquireImage();
+					copyFrame(frame, videoFrame.image);
+				} else {
+					videoFrame.frame = frame.clone();
+				}
+				final long decodeEnd = System.nanoTime();
+				metrics.recordStage(PipelineMetrics.Stage.DECODE, decodeEnd - decodeStart);
+				
+				decodedFrames.put(videoFrame);
+				metrics.recordOutputWait(PipelineMetrics.Stage.DECODE, System.nanoTime() - decodeEnd);
+				metrics.recordQueue(PipelineMetrics.Queue.DECODED, decodedFrames.size());
+			}
+			synchronized (completedFrames) {
+				decodedCount = index;
+				isDecodingDone = true;
+				completedFrames.notifyAll();
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		} catch (Throwable e) {
+			fail(e);
+		} finally {
+			putEnd(decodedFrames);
+			AllocationMonitor.threadFinished();
+		}
+	}
+	
+	// Convert stage: convert the decoded frames that are not already 3BYTE_BGR images
+	private void convertFrames() {
+		final Java2DFrameConverter converter = new Java2DFrameConverter();
+		try {
+			while (true) {
+				final long waitStart = System.nanoTime();
+				final VideoFrame videoFrame = decodedFrames.take();
+				final long convertStart = System.nanoTime();
+				metrics.recordInputWait(PipelineMetrics.Stage.CONVERT, convertStart - waitStart);
+				if (videoFrame == END) {
+					break;
+				}
+				if (videoFrame.frame != null) {
+					// The converter reuses its image, so copy it into a pooled image for this frame.
+					// The copy of the decoded frame is freed right away, instead of by the garbage collector.
+					videoFrame.image = pool.acquireImage();
+					try {
+						copyImage(converter.convert(videoFrame.frame), videoFrame.image);
+					} finally {
+						releaseFrame(videoFrame.frame);
+						videoFrame.frame = null;
+					}
+					metrics.recordStage(PipelineMetrics.Stage.CONVERT, System.nanoTime() - convertStart);
+				}
+				
+				final long putStart = System.nanoTime();
+				convertedFrames.put(videoFrame);
+				metrics.recordOutputWait(PipelineMetrics.Stage.CONVERT, System.nanoTime() - putStart);
+				metrics.recordQueue(PipelineMetrics.Queue.CONVERTED, convertedFrames.size());
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		} catch (Throwable e) {
+			fail(e);
+		} finally {
+			putEnd(convertedFrames);
+			AllocationMonitor.threadFinished();
+		}
+	}
+	
+	// Deblur stage: deblur frames in whatever order the workers pick them up
+	private void deblurFrames() {
+		try {
+			while (true) {
+				final long waitStart = System.nanoTime();
+				final VideoFrame videoFrame = convertedFrames.take();
+				final long deblurStart = System.nanoTime();
+				metrics.recordInputWait(PipelineMetrics.Stage.DEBLUR, deblurStart - waitStart);
+				if (videoFrame == END) {
+					putEnd(convertedFrames); // Let the other workers see the end too
+					break;
+				}
+				final BufferedImage image = processor.process(videoFrame.image, videoFrame.index);
+				metrics.recordStage(PipelineMetrics.Stage.DEBLUR, System.nanoTime() - deblurStart);
+				if (image == null) {
+					pool.releaseImage(videoFrame.image);
+					stop();
+					break;
+				}
+				if (image != videoFrame.image) {
+					pool.releaseImage(videoFrame.image);
+					videoFrame.image = image;
+				}
+				synchronized (completedFrames) {
+					completedFrames.put(videoFrame.index, videoFrame);
+					metrics.recordQueue(PipelineMetrics.Queue.COMPLETED, completedFrames.size());
+					completedFrames.notifyAll();
+				}
+			}
+		} catch (InterruptedException e) {
+			// Stopped
+		} catch (Throwable e) {
+			fail(e);
+		} finally {
+			runningWorkers.decrementAndGet();
+			synchronized (completedFrames) {
+				completedFrames.notifyAll();
+			}
+			AllocationMonitor.threadFinished();
+		}
+	}
+	
+	// Output stage: write the deblurred frames in order, and return the number written
+	private int writeFrames() throws Exception {
+		int nextIndex = 0;
+		BufferedImage previousImage = null;
+		while (true) {
+			VideoFrame videoFrame;
+			final long waitStart = System.nanoTime();
+			synchronized (completedFrames) {
+				while (true) {
+					if (isStopped) {
+						return nextIndex;
+					}
+					videoFrame = completedFrames.remove(nextIndex);
+					if (videoFrame != null) {
+						break;
+					}
+					if (isDecodingDone && nextIndex >= decodedCount) {
+						return nextIndex; // Every frame has been written
+					}
+					if (runningWorkers.get() == 0) {
+						return nextIndex; // The workers stopped early
+					}
+					completedFrames.wait();
+				}
+			}
+			
+			final long outputStart = System.nanoTime();
+			metrics.recordInputWait(PipelineMetrics.Stage.OUTPUT, outputStart - waitStart);
+			
+			sink.write(videoFrame.image, videoFrame.index);
+			
+			final long outputEnd = System.nanoTime();
+			metrics.recordStage(PipelineMetrics.Stage.OUTPUT, outputEnd - outputStart);
+			metrics.recordStage(PipelineMetrics.Stage.FRAME, outputEnd - videoFrame.decodeStart);
+			
+			// The sink is done with the previous image now
+			if (previousImage != null && previousImage != videoFrame.image) {
+				pool.releaseImage(previousImage);
+			}
+			previousImage = videoFrame.image;
+			
+			framesInFlight.release();
+			nextIndex++;
+		}
+	}
+	
+	// Start one stage
+	private void startThread(final String name, final Runnable stage) {
+		final Thread thread = new Thread(stage, name);
+		thread.setDaemon(true);
+		synchronized (threads) {
+			threads.add(thread);
+		}
+		thread.start();
+	}
+	
+	// Return a copy of the list of stage threads
+	private List<Thread> getThreads() {
+		synchronized (threads) {
+			return new ArrayList<Thread>(threads);
+		}
+	}
+	
+	// Record the first error, and stop every stage
+	private void fail(final Throwable e) {
+		synchronized (this) {
+			if (failure == null) {
+				failure = e;
+			}
+		}
+		stop();
+	}
+	
+	// Send the end marker.  This is done even when stopping, so the next stage never waits forever.
+	private static void putEnd(final BlockingQueue<VideoFrame> queue) {
+		while (!queue.offer(END)) {
+			// The pipeline is stopping and the queue is full, so drop a frame
+			final VideoFrame dropped = queue.poll();
+			if (dropped != null && dropped.frame != null) {
+				releaseFrame(dropped.frame);
+			}
+		}
+	}
+	
+	// Free the native memory of a frame made by Frame.clone(), which keeps its buffers in 'opaque'.
+	// This javacv version has no Frame.close(), so otherwise the memory waits for the garbage collector.
+	static void releaseFrame(final Frame frame) {
+		if (frame.opaque instanceof Pointer[]) {
+			for (Pointer pointer : (Pointer[])frame.opaque) {
+				if (pointer != null) {
+					pointer.deallocate();
+				}
+			}
+		}
+		frame.image = null;
+		frame.samples = null;
+		frame.opaque = null;
+	}
+	
+	// Return true if the frame holds 8-bit BGR pixels (the format that grabImage() decodes to by default)
+	static boolean isByteBGR(final Frame frame) {
+		return frame.imageDepth == Frame.DEPTH_UBYTE && frame.imageChannels == 3 &&
+				frame.image != null && frame.image[0] instanceof ByteBuffer;
+	}
+	
+	// Copy the pixels of an 8-bit BGR frame into a 3BYTE_BGR image of the same size
+	static void copyFrame(final Frame frame, final BufferedImage image) {
+		final int width = frame.imageWidth;
+		final int height = frame.imageHeight;
+		if (image.getWidth() != width || image.getHeight() != height) {
+			throw new IllegalArgumentException("Frame is " + width + "x" + height + ", but the image is " +
+					image.getWidth() + "x" + image.getHeight());
+		}
+		
+		final ByteBuffer source = ((ByteBuffer)frame.image[0]).duplicate();
+		final byte[] pixels = Algorithms.extractByteArray(image);
+		final int rowBytes = width * 3;
+		for (int y = 0; y < height; y++) {
+			source.position(y * frame.imageStride);
+			source.get(pixels, y * rowBytes, rowBytes);
+		}
+	}
+	
+	// Copy the planes of a YUV420P frame into an I420 image (see FramePool.java) of the same size.
+	// Grabbers set to AV_PIX_FMT_YUV420P decode to one buffer holding the three planes, with the
+	// chroma rows half as long as the luma rows.
+	static void copyYUVFrame(final Frame frame, final BufferedImage image) {
+		final int width = frame.imageWidth;
+		final int height = frame.imageHeight;
+		if (image.getWidth() != width || image.getHeight() != height * 3 / 2) {
+			throw new IllegalArgumentException("Frame is " + width + "x" + height + ", but the image is for " +
+					image.getWidth() + "x" + image.getHeight() * 2 / 3);
+		}
+		
+		final int lumaStride = frame.imageStride;
+		final int chromaStride = (lumaStride + 1) / 2;
+		final int chromaWidth = width / 2;
+		final int chromaHeight = height / 2;
+		if (frame.imageDepth != Frame.DEPTH_UBYTE || frame.image == null || !(frame.image[0] instanceof ByteBuffer) ||
+				frame.image[0].capacity() < lumaStride * height + chromaStride * chromaHeight * 2) {
+			throw new IllegalArgumentException("Frame is not in YUV420P format");
+		}
+		
+		final ByteBuffer source = ((ByteBuffer)frame.image[0]).duplicate();
+		final byte[] pixels = Algorithms.extractByteArray(image);
+		for (int y = 0; y < height; y++) {
+			source.position(y * lumaStride);
+			source.get(pixels, y * width, width);
+		}
+		
+		// The U plane, then the V plane
+		for (int plane = 0; plane < 2; plane++) {
+			final int sourceStart = lumaStride * height + plane * chromaStride * chromaHeight;
+			final int start = width * height + plane * chromaWidth * chromaHeight;
+			for (int y = 0; y < chromaHeight; y++) {
+				source.position(sourceStart + y * chromaStride);
+				source.get(pixels, start + y * chromaWidth, chromaWidth);
+			}
+		}
+	}
+	
+	// Wrap an I420 image in a frame, to be recorded with AV_PIX_FMT_YUV420P
+	static Frame wrapYUVImage(final BufferedImage image) {
+		final Frame frame = new Frame();
+		frame.imageWidth = image.getWidth();
+		frame.imageHeight = image.getHeight() * 2 / 3;
+		frame.imageDepth = Frame.DEPTH_UBYTE;
+		frame.imageChannels = 1;
+		frame.imageStride = frame.imageWidth;
+		frame.image = new Buffer[] {ByteBuffer.wrap(Algorithms.extractByteArray(image))};
+		return frame;
+	}
+	
+	// Copy the image into a 3BYTE_BGR image of the same size
+	static void copyImage(final BufferedImage image, final BufferedImage copy) {
+		if (image.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+			final byte[] source = Algorithms.extractByteArray(image);
+			System.arraycopy(source, 0, Algorithms.extractByteArray(copy), 0, source.length);
+		} else {
+			final Graphics2D g = copy.createGraphics();
+			g.drawImage(image, 0, 0, null);
+			g.dispose();
+		}
+	}
+}
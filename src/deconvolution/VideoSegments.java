@@ -0,0 +1,254 @@
+package deconvolution;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+
+// This class splits a video into parts that start at keyframes, so the parts can be decoded independently,
+// and joins encoded parts back into one video without re-encoding them.
+// Timestamps are in microseconds, in the same units as Frame.timestamp.
+
+public class VideoSegments {
+	
+	// Return the boundaries of up to 'count' parts of about the same length, each starting at a keyframe.
+	// Part i holds the frames with boundaries[i] <= timestamp < boundaries[i + 1].  The first boundary is
+	// Long.MIN_VALUE and the last is Long.MAX_VALUE, so together the parts hold every frame.
+	static long[] findSegments(final String path, final int count) throws Exception {
+		
+		// Read the packets (without decoding them) to find the keyframes
+		final FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(path);
+		long[] keyframes = new long[64];
+		int keyframeCount = 0;
+		final long length;
+		try {
+			grabber.start();
+			length = grabber.getLengthInTime();
+			
+			final AVFormatContext format = grabber.getFormatContext();
+			final int stream = findVideoStream(format);
+			final AVRational timeBase = format.streams(stream).time_base();
+			
+			AVPacket packet;
+			while ((packet = grabber.grabPacket()) != null) {
+				if (packet.stream_index() != stream || (packet.flags() & avcodec.AV_PKT_FLAG_KEY) == 0 ||
+						packet.pts() == avutil.AV_NOPTS_VALUE) {
+					avcodec.av_packet_unref(packet);
+					continue;
+				}
+				if (keyframeCount == keyframes.length) {
+					keyframes = Arrays.copyOf(keyframes, keyframeCount * 2);
+				}
+				keyframes[keyframeCount++] = 1000000L * packet.pts() * timeBase.num() / timeBase.den();
+				avcodec.av_packet_unref(packet);
+			}
+		} finally {
+			grabber.release();
+		}
+		Arrays.sort(keyframes, 0, keyframeCount);
+		
+		return chooseBoundaries(keyframes, keyframeCount, length, count);
+	}
+	
+	// Pick the keyframe closest to each evenly spaced point in time.
+	// Keyframes must be sorted.  There may be fewer parts than requested if keyframes are far apart.
+	static long[] chooseBoundaries(final long[] keyframes, final int keyframeCount, final long length,
+			final int count) {
+		final List<Long> boundaries = new ArrayList<Long>();
+		boundaries.add(Long.MIN_VALUE);
+		
+		if (keyframeCount > 0 && length > 0) {
+			int k = 1; // The first keyframe starts the first part
+			for (int i = 1; i < count; i++) {
+				final long target = keyframes[0] + length * i / count;
+				while (k < keyframeCount && keyframes[k] < target) {
+					k++;
+				}
+				
+				// The keyframes before and after the target
+				long boundary = keyframes[k - 1];
+				if (k < keyframeCount && (k == 1 || keyframes[k] - target < target - boundary)) {
+					boundary = keyframes[k];
+				}
+				if (boundary > keyframes[0] && boundary > boundaries.get(boundaries.size() - 1)) {
+					boundaries.add(boundary);
+				}
+			}
+		}
+		
+		boundaries.add(Long.MAX_VALUE);
+		final long[] result = new long[boundaries.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = boundaries.get(i);
+		}
+		return result;
+	}
+	
+	// Join the video parts (in order) into one video by copying their packets.
+	// The parts must be encoded with the same settings, as VideoJob does.
+	// Audio is copied too, if the parts have it.  The audio of each part starts with its video
+	// (see AudioPassthrough.java), so it is moved by the same offset as the video.
+	static void concatenate(final List<String> parts, final String outputPath) throws Exception {
+		
+		// The recorder copies the stream settings of the first part, so it stays open until the end
+		FFmpegFrameGrabber firstGrabber = null;
+		FFmpegFrameRecorder recorder = null;
+		try {
+			AVRational timeBase = null;
+			AVRational audioTimeBase = null;
+			int firstStream = -1;
+			int firstAudioStream = -1;
+			
+			// End of the presentation timestamps so far, and the last decode timestamps (in the time bases)
+			long endPts = 0;
+			long lastDts = Long.MIN_VALUE;
+			long lastAudioDts = Long.MIN_VALUE;
+			
+			for (String part : parts) {
+				final FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(part);
+				try {
+					grabber.start();
+					final AVFormatContext format = grabber.getFormatContext();
+					final int stream = findVideoStream(format);
+					final int audioStream = findAudioStream(format);
+					final AVRational partTimeBase = format.streams(stream).time_base();
+					
+					if (recorder == null) {
+						firstGrabber = grabber;
+						timeBase = partTimeBase;
+						firstStream = stream;
+						firstAudioStream = audioStream;
+						if (audioStream >= 0) {
+							audioTimeBase = format.streams(audioStream).time_base();
+						}
+						recorder = new FFmpegFrameRecorder(outputPath, grabber.getImageWidth(), grabber.getImageHeight(),
+								grabber.getAudioChannels());
+						recorder.start(format);
+					} else if (avutil.av_cmp_q(partTimeBase, timeBase) != 0) {
+						throw new IllegalStateException("Video part " + part + " has a different time base");
+					} else if (stream != firstStream || audioStream != firstAudioStream || (audioStream >= 0 &&
+							avutil.av_cmp_q(format.streams(audioStream).time_base(), audioTimeBase) != 0)) {
+						// The recorder looks up the stream of every packet in the first part
+						throw new IllegalStateException("Video part " + part + " has different streams");
+					}
+					
+					// Length of a frame, for packets that do not give their duration
+					final double frameRate = grabber.getFrameRate() > 0 ? grabber.getFrameRate() : 25;
+					final long frameTicks = Math.max(Math.round(timeBase.den() / (timeBase.num() * frameRate)), 1);
+					
+					// Each part starts after the one before, with its decode timestamps still increasing.
+					// The offset comes from the first video packet, so audio before it waits in a list.
+					boolean isFirstPacket = true;
+					long offset = 0;
+					long audioOffset = 0;
+					final List<AVPacket> waitingAudio = new ArrayList<AVPacket>();
+					
+					try {
+						AVPacket packet;
+						while ((packet = grabber.grabPacket()) != null) {
+							if (packet.stream_index() == audioStream && audioStream >= 0) {
+								if (isFirstPacket) {
+									waitingAudio.add(avcodec.av_packet_clone(packet));
+									avcodec.av_packet_unref(packet);
+								} else {
+									lastAudioDts = writeAudioPacket(recorder, packet, audioOffset, lastAudioDts);
+								}
+								continue;
+							}
+							if (packet.stream_index() != stream) {
+								avcodec.av_packet_unref(packet);
+								continue;
+							}
+							if (packet.pts() == avutil.AV_NOPTS_VALUE || packet.dts() == avutil.AV_NOPTS_VALUE) {
+								throw new IllegalStateException("Video part " + part + " has a packet without a timestamp");
+							}
+							if (isFirstPacket) {
+								offset = endPts;
+								if (lastDts != Long.MIN_VALUE) {
+									offset = Math.max(offset, lastDts + 1 - packet.dts());
+								}
+								if (audioStream >= 0) {
+									audioOffset = avutil.av_rescale_q(offset, timeBase, audioTimeBase);
+								}
+								isFirstPacket = false;
+								
+								for (AVPacket audioPacket : waitingAudio) {
+									lastAudioDts = writeAudioPacket(recorder, audioPacket, audioOffset, lastAudioDts);
+								}
+							}
+							packet.pts(packet.pts() + offset);
+							packet.dts(packet.dts() + offset);
+							endPts = Math.max(endPts, packet.pts() + (packet.duration() > 0 ? packet.duration() : frameTicks));
+							lastDts = packet.dts();
+							
+							// This converts the timestamps to the time base of the output
+							recorder.recordPacket(packet);
+						}
+					} finally {
+						for (AVPacket audioPacket : waitingAudio) {
+							avcodec.av_packet_free(audioPacket);
+						}
+					}
+				} finally {
+					if (grabber != firstGrabber) {
+						grabber.release();
+					}
+				}
+			}
+			
+			if (recorder != null) {
+				recorder.stop();
+			}
+		} finally {
+			if (recorder != null) {
+				recorder.release();
+			}
+			if (firstGrabber != null) {
+				firstGrabber.release();
+			}
+		}
+	}
+	
+	// Write one audio packet moved by 'offset', unless it has no timestamps or overlaps the packets
+	// already written.  Returns the last decode timestamp written.
+	private static long writeAudioPacket(final FFmpegFrameRecorder recorder, final AVPacket packet,
+			final long offset, final long lastDts) throws Exception {
+		if (packet.pts() == avutil.AV_NOPTS_VALUE || packet.dts() == avutil.AV_NOPTS_VALUE ||
+				packet.dts() + offset <= lastDts) {
+			avcodec.av_packet_unref(packet);
+			return lastDts;
+		}
+		final long dts = packet.dts() + offset;
+		packet.pts(packet.pts() + offset);
+		packet.dts(dts);
+		recorder.recordPacket(packet); // This converts the timestamps and releases the packet
+		return dts;
+	}
+	
+	// Return the index of the first audio stream, or -1 if there is none
+	static int findAudioStream(final AVFormatContext format) {
+		for (int i = 0; i < format.nb_streams(); i++) {
+			if (format.streams(i).codecpar().codec_type() == avutil.AVMEDIA_TYPE_AUDIO) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	// Return the index of the first video stream
+	static int findVideoStream(final AVFormatContext format) {
+		for (int i = 0; i < format.nb_streams(); i++) {
+			if (format.streams(i).codecpar().codec_type() == avutil.AVMEDIA_TYPE_VIDEO) {
+				return i;
+			}
+		}
+		throw new IllegalStateException("No video stream found");
+	}
+}
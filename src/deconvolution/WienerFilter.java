@@ -1,11 +1,13 @@
 package deconvolution;
 
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
+import org.opencv.core.Range;
 import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
@@ -25,20 +27,39 @@ public class WienerFilter {
 	
 	private static boolean loadedOpenCVLibrary = false;
 	
+	// Wiener filters by padded size, radius, and SNR, for both implementations.  The OpenCV filters are CV_32F
+	// Mats in the packed CCS format, in native memory.  The Java filters hold one real value for each
+	// frequency of the half spectrum.  They share an eighth of the maximum heap size (at most 1GB).
+	private static final SpectrumCache filterCache =
+			new SpectrumCache(Math.min(Runtime.getRuntime().maxMemory() / 8, 1L << 30));
+	
+	// Gives each user of a cached OpenCV filter its own Mat header, so an evicted filter is only freed
+	// once nobody uses it
+	private static final SpectrumCache.Owner<Mat> matOwner = new SpectrumCache.Owner<Mat>() {
+		public Mat share(final Mat spectrum) {
+			return new Mat(spectrum, Range.all());
+		}
+		
+		public void release(final Mat spectrum) {
+			spectrum.release();
+		}
+	};
+	
 	// Compute and return the ideal padding size for this image.
 	// Take into account the DFT size and the padding needed to reduce edge effects in the Wiener deconvolution.
 	// Return the added [top, bottom, left, right] margin.
-	private static int[] computePaddingForDFT(Mat inputImg, final int minBorder) {
+	private static int[] computePaddingForDFT(final int rows, final int cols, final int minBorder) {
 
 		// Ensure that some minimum amount of padding is added to eliminate edge effects
-		final int minRows = inputImg.rows() + minBorder;
-		final int minCols = inputImg.cols() + minBorder;
+		final int minRows = rows + minBorder;
+		final int minCols = cols + minBorder;
 		
-		// Compute optimal size for DFT
-		final int optimalRows = (Core.getOptimalDFTSize(minRows) + 1)/2*2;
-		final int optimalCols = (Core.getOptimalDFTSize(minCols) + 1)/2*2;
-		final int m = optimalRows - inputImg.rows();
-		final int n = optimalCols - inputImg.cols();
+		// Compute optimal size for DFT.  The size must be even, and rounding an optimal size up to an even one
+		// could add a large prime factor (3125 -> 3126 = 2 * 3 * 521), so take twice an optimal size instead.
+		final int optimalRows = RealFFT2D.getOptimalDFTSize((minRows + 1) / 2) * 2;
+		final int optimalCols = RealFFT2D.getOptimalDFTSize((minCols + 1) / 2) * 2;
+		final int m = optimalRows - rows;
+		final int n = optimalCols - cols;
 		
 		final int top = m / 2;
 		final int bottom = m - top;
@@ -60,21 +81,33 @@ public class WienerFilter {
 		return inputImg.submat(margins[0], inputImg.rows() - margins[1], margins[2], inputImg.cols() - margins[3]);
 	}
 	
-	// Convert a matrix to a float array. [rgb][row][column]
-	private static float[][][] matToFloatArr(final Mat m) {
-		
-		float[][][] arr = new float[m.channels()][m.cols()][m.rows()];
-		
-		for (int row = 0; row < m.rows(); row++) {
-			for (int col = 0; col < m.cols(); col++) {
-				final double[] values = m.get(row, col);
-				for (int channel = 0; channel < m.channels(); channel++) {
-					arr[channel][col][row] = (float)values[channel];
+	// Convert a float matrix (which may be a cropped view) to a planar image with the same number of channels.
+	// Each row is copied out of the matrix with one call, and the rows are split between the threads.
+	private static PlanarImage matToFloatArr(final Mat m) {
+		
+		final int width = m.cols();
+		final int channels = m.channels();
+		final PlanarImage image = new PlanarImage(width, m.rows(), channels);
+		
+		ParallelExecutor.forEachRow(m.rows(), new ParallelExecutor.RangeTask() {
+			public void run(final int start, final int end) {
+				final float[] row = new float[width * channels];
+				for (int y = start; y < end; y++) {
+					m.get(y, 0, row);
+					
+					// De-interleave the channels
+					for (int c = 0; c < channels; c++) {
+						final float[] plane = image.planes[c];
+						final int index = image.index(0, y);
+						for (int x = 0; x < width; x++) {
+							plane[index + x] = row[x * channels + c];
+						}
+					}
 				}
 			}
-		}
+		});
 		
-		return arr;
+		return image;
 	}
 	
 	// Make the total of the matrix equal to 'total', and return a copy.
@@ -86,34 +119,237 @@ public class WienerFilter {
 		return newMat;
 	}
 	
-	// Convert a float[rgb][x][y] array into an OpenCV Mat
-	private static Mat floatArrayToMat(float[][][] image) {
-		final int width = image[0].length;
-		final int height = image[0][0].length;
-		final int channels = 3;
-		
-		Mat mat = new Mat(height, width, CvType.CV_32FC(channels));
+	// Convert a planar image into an OpenCV Mat.
+	// Each row is copied into the matrix with one call, and the rows are split between the threads.
+	private static Mat floatArrayToMat(final PlanarImage image) {
+		final int width = image.width;
+		final int height = image.height;
+		final int channels = image.getChannels();
+		
+		final Mat mat = new Mat(height, width, CvType.CV_32FC(channels));
 
-		float[] data = new float[channels];
+		ParallelExecutor.forEachRow(height, new ParallelExecutor.RangeTask() {
+			public void run(final int start, final int end) {
+				final float[] row = new float[width * channels];
+				for (int y = start; y < end; y++) {
 
-		for (int x = 0; x < width; x++) {
-		    for (int y = 0; y < height; y++) {
-		        for (int c = 0; c < channels; c++) {
-		            data[c] = image[c][x][y];
-		        }
-		        mat.put(y, x, data);
-		    }
-		}
+					// Interleave the channels
+					for (int c = 0; c < channels; c++) {
+						final float[] plane = image.planes[c];
+						final int index = image.index(0, y);
+						for (int x = 0; x < width; x++) {
+							row[x * channels + c] = plane[index + x];
+						}
+					}
+					mat.put(y, 0, row);
+				}
+			}
+		});
 		
 		return mat;
 	}
 	
-	// Performs Wiener deconvolution on the given float[][][] array.
-	// This function is meant to be initiated by the GUI Interface.
-	// This is called in ImageEffects.java.
-	public static float[][][] wienerDeconvolvePublic(final float[][][] image, int blurRadius, int snr) {
+	// Free the cached Wiener filters.  Called when the Wiener dialog closes.
+	static void clearCache() {
+		filterCache.clear();
+	}
+	
+	// Performs Wiener deconvolution on the given image.
+	// This is called by ImageEffects.java (GUI) and by Deconvolver.java.
+	// 'useOpenCV' selects the native OpenCV DFT instead of the pure Java one (RealFFT2D).
+	// Images wider or taller than 'tileSize' are deconvolved by the Java implementation in tiles of about this
+	// size, so only a few tiles are in memory at once.  A tile size of 0 deconvolves the whole image at once.
+	public static PlanarImage wienerDeconvolvePublic(final PlanarImage image, final int blurRadius, final int snr,
+			final boolean useOpenCV, final int tileSize, final ProgressMonitor monitor) {
 
-		UserInterface.setProcessName("Deblurring");
+		monitor.setProcessName("Deblurring");
+		
+		final long startTime = System.currentTimeMillis();
+		
+		// Approximate amount by which to extend the border to eliminate unwanted edge-effects.
+		final int borderExpansion = (int)(Math.sqrt(snr) * blurRadius * 1.1 + 5);
+		
+		final PlanarImage output;
+		if (!useOpenCV && tileSize > 0 && (image.width > tileSize || image.height > tileSize)) {
+			output = wienerDeconvolveTiled(image, blurRadius, snr, tileSize, borderExpansion, monitor);
+		} else {
+			final int[] addedMargins = computePaddingForDFT(image.height, image.width, borderExpansion);
+			output = useOpenCV ?
+					wienerDeconvolveOpenCV(image, blurRadius, snr, addedMargins, monitor) :
+					wienerDeconvolveJava(image, blurRadius, snr, addedMargins, monitor);
+		}
+		
+		// Exit early if the effect has been canceled
+		if (output == null || monitor.isCanceled()) {
+			return null;
+		}
+		
+		monitor.setProcessName("Deblurring (" + (System.currentTimeMillis() - startTime) + "ms, filter cache " +
+				filterCache.getHits() + " hits, " + filterCache.getMisses() + " misses)");
+		monitor.updateProgress(1);
+		
+		return output;
+	}
+	
+	// Perform Wiener deconvolution with the pure Java DFT.  Returns null if it was canceled.
+	private static PlanarImage wienerDeconvolveJava(final PlanarImage image, final int blurRadius, final int snr,
+			final int[] addedMargins, final ProgressMonitor monitor) {
+		
+		final int newWidth = image.width + addedMargins[2] + addedMargins[3];
+		final int newHeight = image.height + addedMargins[0] + addedMargins[1];
+		final RealFFT2D fft = new RealFFT2D(newHeight, newWidth);
+		
+		// Compute the Wiener filter ahead of time, or reuse it from an image of the same padded size
+		final float[] wienerFilter = filterCache.get(float[].class, newHeight, newWidth, blurRadius, snr,
+				(long)newHeight * fft.spectrumCols * 4, new SpectrumCache.Factory<float[]>() {
+			public float[] create() {
+				return calcJavaWnrFilter(fft, blurRadius, 1.0 / snr);
+			}
+		}, null);
+		
+		// Deconvolve each color channel in turn.  The transforms themselves are multithreaded.
+		final PlanarImage output = new PlanarImage(image.width, image.height, image.getChannels());
+		final float[] padded = new float[newWidth * newHeight];
+		final float[] spectrum = new float[fft.getSpectrumLength()];
+		final float scale = 1f / ((float)newWidth * newHeight);
+		for (int channel = 0; channel < image.getChannels(); channel++) {
+			
+			// Exit early if the effect has been canceled
+			if (monitor.isCanceled()) {
+				return null;
+			}
+			
+			// Extend the borders of the image
+			final float[] plane = image.planes[channel];
+			ParallelExecutor.forEachRow(newHeight, new ParallelExecutor.RangeTask() {
+				public void run(final int start, final int end) {
+					for (int y = start; y < end; y++) {
+						final int rowIndex = image.index(0, Math.min(Math.max(y - addedMargins[0], 0), image.height - 1));
+						for (int x = 0; x < newWidth; x++) {
+							padded[y * newWidth + x] =
+									plane[rowIndex + Math.min(Math.max(x - addedMargins[2], 0), image.width - 1)];
+						}
+					}
+				}
+			});
+			
+			// Multiply DFT(input) x DFT(filter), and compute the inverse DFT
+			fft.forward(padded, newWidth, spectrum);
+			ParallelExecutor.forEachRow(newHeight, new ParallelExecutor.RangeTask() {
+				public void run(final int start, final int end) {
+					for (int i = start * fft.spectrumCols; i < end * fft.spectrumCols; i++) {
+						spectrum[i * 2] *= wienerFilter[i];
+						spectrum[i * 2 + 1] *= wienerFilter[i];
+					}
+				}
+			});
+			fft.inverse(spectrum, padded, newWidth, scale);
+			
+			// Crop back to the original size
+			final float[] outputPlane = output.planes[channel];
+			for (int y = 0; y < image.height; y++) {
+				System.arraycopy(padded, (y + addedMargins[0]) * newWidth + addedMargins[2],
+						outputPlane, output.index(0, y), image.width);
+			}
+		}
+		
+		return output;
+	}
+	
+	// Perform Wiener deconvolution with the pure Java DFT, in overlapping tiles (overlap-save).
+	// Returns null if it was canceled.
+	// Each tile is read with a band of 'guard' extra pixels on every side, and only its center is kept, so the
+	// wrap-around of the DFT only affects pixels that are thrown away.  All the tiles have the same DFT size,
+	// so they share one filter.  The tiles are deconvolved in parallel, in batches of one tile per thread.
+	private static PlanarImage wienerDeconvolveTiled(final PlanarImage image, final int blurRadius, final int snr,
+			final int tileSize, final int guard, final ProgressMonitor monitor) {
+		
+		// The guard bands take at most three quarters of each tile
+		final int dftSize = RealFFT2D.getOptimalDFTSize((Math.max(tileSize, 4 * guard) + 1) / 2) * 2;
+		final int coreSize = dftSize - 2 * guard;
+		final int tilesX = (image.width + coreSize - 1) / coreSize;
+		final int tilesY = (image.height + coreSize - 1) / coreSize;
+		final int tileCount = tilesX * tilesY;
+		final RealFFT2D fft = new RealFFT2D(dftSize, dftSize);
+		
+		// Compute the Wiener filter ahead of time, or reuse it from an image with the same tile size
+		final float[] wienerFilter = filterCache.get(float[].class, dftSize, dftSize, blurRadius, snr,
+				(long)dftSize * fft.spectrumCols * 4, new SpectrumCache.Factory<float[]>() {
+			public float[] create() {
+				return calcJavaWnrFilter(fft, blurRadius, 1.0 / snr);
+			}
+		}, null);
+		
+		// Buffers for the tiles of one batch
+		final int batchSize = Math.min(Math.max(Algorithms.numThreads, 1), tileCount);
+		final float[][] padded = new float[batchSize][dftSize * dftSize];
+		final float[][] spectra = new float[batchSize][fft.getSpectrumLength()];
+		
+		final PlanarImage output = new PlanarImage(image.width, image.height, image.getChannels());
+		final AtomicInteger tilesCompleted = new AtomicInteger();
+		for (int batchStart = 0; batchStart < tileCount; batchStart += batchSize) {
+			
+			// Exit early if the effect has been canceled
+			if (monitor.isCanceled()) {
+				return null;
+			}
+			
+			final int firstTile = batchStart;
+			ParallelExecutor.forEach(Math.min(batchSize, tileCount - batchStart), new ParallelExecutor.RangeTask() {
+				public void run(final int start, final int end) {
+					for (int i = start; i < end; i++) {
+						final int tile = firstTile + i;
+						deconvolveTile(image, output, (tile % tilesX) * coreSize, (tile / tilesX) * coreSize, guard,
+								fft, wienerFilter, padded[i], spectra[i]);
+						monitor.updateProgress((double)tilesCompleted.incrementAndGet() / tileCount);
+					}
+				}
+			});
+		}
+		
+		return output;
+	}
+	
+	// Deconvolve the tile of 'image' whose output starts at (x0, y0), and write it to 'output'.
+	// 'padded' and 'spectrum' are work buffers for the tile.
+	private static void deconvolveTile(final PlanarImage image, final PlanarImage output, final int x0, final int y0,
+			final int guard, final RealFFT2D fft, final float[] wienerFilter, final float[] padded,
+			final float[] spectrum) {
+		final int size = fft.cols;
+		final int coreWidth = Math.min(size - 2 * guard, image.width - x0);
+		final int coreHeight = Math.min(size - 2 * guard, image.height - y0);
+		final float scale = 1f / ((float)size * size);
+		
+		for (int channel = 0; channel < image.getChannels(); channel++) {
+			
+			// Copy the tile and its guard band, extending the borders of the image
+			final float[] plane = image.planes[channel];
+			for (int y = 0; y < size; y++) {
+				final int rowIndex = image.index(0, Math.min(Math.max(y0 - guard + y, 0), image.height - 1));
+				for (int x = 0; x < size; x++) {
+					padded[y * size + x] = plane[rowIndex + Math.min(Math.max(x0 - guard + x, 0), image.width - 1)];
+				}
+			}
+			
+			// Multiply DFT(input) x DFT(filter), and compute the inverse DFT
+			fft.forward(padded, size, spectrum);
+			for (int i = 0; i < size * fft.spectrumCols; i++) {
+				spectrum[i * 2] *= wienerFilter[i];
+				spectrum[i * 2 + 1] *= wienerFilter[i];
+			}
+			fft.inverse(spectrum, padded, size, scale);
+			
+			// Keep the center of the tile
+			final float[] outputPlane = output.planes[channel];
+			for (int y = 0; y < coreHeight; y++) {
+				System.arraycopy(padded, (y + guard) * size + guard, outputPlane, output.index(x0, y0 + y), coreWidth);
+			}
+		}
+	}
+	
+	// Perform Wiener deconvolution with OpenCV.  Returns null if it was canceled.
+	private static PlanarImage wienerDeconvolveOpenCV(final PlanarImage image, final int blurRadius, final int snr,
+			final int[] addedMargins, final ProgressMonitor monitor) {
 		
 		// Load the native OpenCV library
 		if (!loadedOpenCVLibrary) {
@@ -121,28 +357,29 @@ public class WienerFilter {
 			loadedOpenCVLibrary = true;
 		}
 		
-		final long startTime = System.currentTimeMillis();
-		
 		final Mat imageMat = floatArrayToMat(image);
 		
 		// Exit early if the effect has been canceled
-		if (ImageEffects.isCanceled) {
+		if (monitor.isCanceled()) {
 			return null;
 		}
 		
-		// Approximate amount by which to extend the border to eliminate unwanted edge-effects.
-		final int borderExpansion = (int)(Math.sqrt(snr) * blurRadius * 1.1 + 5);
-		
-		final int[] addedMargins = computePaddingForDFT(imageMat, borderExpansion);
 		final int newWidth =  imageMat.width() + addedMargins[2] + addedMargins[3];
 		final int newHeight = imageMat.height() + addedMargins[0] + addedMargins[1];
 		
-		// Compute the point-spread-function and Wiener filter ahead of time.
-		Mat psf = calcPSF(new Size(newWidth, newHeight), blurRadius);
-		Mat wienerFilter = calcWnrFilter(psf, 1.0 / snr);
+		// Compute the point-spread-function and Wiener filter ahead of time, or reuse them from an image of the
+		// same padded size.  This thread's reference to the filter is released once it is applied.
+		final Mat wienerFilter = filterCache.get(Mat.class, newHeight, newWidth, blurRadius, snr,
+				(long)newWidth * newHeight * 4, new SpectrumCache.Factory<Mat>() {
+			public Mat create() {
+				Mat psf = calcPSF(new Size(newWidth, newHeight), blurRadius);
+				return calcWnrFilter(psf, 1.0 / snr);
+			}
+		}, matOwner);
 		
 		// Exit early if the effect has been canceled
-		if (ImageEffects.isCanceled) {
+		if (monitor.isCanceled()) {
+			matOwner.release(wienerFilter);
 			return null;
 		}
 		
@@ -150,139 +387,56 @@ public class WienerFilter {
 		padForDFT(imageMat, addedMargins);
 		
 		// Exit early if the effect has been canceled
-		if (ImageEffects.isCanceled) {
+		if (monitor.isCanceled()) {
+			matOwner.release(wienerFilter);
 			return null;
 		}
 		
 		// Perform deconvolution
 		Mat imgOut1 = wienerDeconvolve(imageMat, wienerFilter);
+		matOwner.release(wienerFilter);
 		
 		// Exit early if the effect has been canceled
-		if (ImageEffects.isCanceled) {
+		if (monitor.isCanceled()) {
 			return null;
 		}
 		
 		// Crop the images back to the original size
 		imgOut1 = cropImage(imgOut1, addedMargins);
 		
-		UserInterface.setProcessName("Deblurring (" + (System.currentTimeMillis() - startTime) + "ms)");
-		UserInterface.updateProgress(1);
-		
-		// Exit early if the effect has been canceled
-		if (ImageEffects.isCanceled) {
-			return null;
-		}
-		
 		return matToFloatArr(imgOut1);
 	}
 	
 	// Compute the Wiener Filter and return the result.
 	// 'inputImg' is the image to be deblurred.
-	// 'wienerFilter' is the Wiener filter
+	// 'wienerFilter' is the Wiener filter, in the packed CCS format of a real DFT
 	private static Mat wienerDeconvolve(final Mat inputImg, final Mat wienerFilter) {
 		
 		// Extract red, green, blue components
 		final ArrayList<Mat> bgrPlanes = new ArrayList<Mat>(3);
 		Core.split(inputImg, bgrPlanes);
 		
-		
-		final Mat zeroMat = Mat.zeros(inputImg.size(), CvType.CV_32F);
-		final ArrayList<Mat> planesB = new ArrayList<Mat>(2);
-		final ArrayList<Mat> planesG = new ArrayList<Mat>(2);
-		final ArrayList<Mat> planesR = new ArrayList<Mat>(2);
-		
-		final Thread[] threads = new Thread[3];
-		
-		threads[0] = new Thread(new Runnable() {
-			public void run() {
-				// Add an all-zero complex component to the input image
-				final ArrayList<Mat> planes = new ArrayList<Mat>(2);
-				planes.add(bgrPlanes.get(0));
-				planes.add(zeroMat);
-				final Mat matB = new Mat();
-				Core.merge(planes, matB);
-				
-				// Compute DFT of input image
-				Core.dft(matB, matB, Core.DFT_SCALE);
-				
-				// Multiply DFT(input) x DFT(filter)
-				Core.mulSpectrums(matB, wienerFilter, matB, 0);
-				
-				// Compute inverse DFT to get final image
-				Core.idft(matB, matB);
-				
-				// Extract only the real part
-				Core.split(matB, planesB);
-				
-				// Merge back into RGB image
-				bgrPlanes.set(0, planesB.get(0));
-			}
-		});
-		
-		threads[1] = new Thread(new Runnable() {
-			public void run() {
-				final ArrayList<Mat> planes = new ArrayList<Mat>(2);
-				planes.add(bgrPlanes.get(1));
-				planes.add(zeroMat);
-				final Mat matG = new Mat();
-				Core.merge(planes, matG);
-				
-				// Compute DFT of input image
-				Core.dft(matG, matG, Core.DFT_SCALE);
-				
-				// Multiply DFT(input) x DFT(filter)
-				Core.mulSpectrums(matG, wienerFilter, matG, 0);
-				
-				// Compute inverse DFT to get final image
-				Core.idft(matG, matG);
-				
-				// Extract only the real part
-				Core.split(matG, planesG);
-				
-				// Merge back into RGB image
-				bgrPlanes.set(1, planesG.get(0));
-			}
-		});
-		
-		threads[2] = new Thread(new Runnable() {
-			public void run() {
-				final ArrayList<Mat> planes = new ArrayList<Mat>(2);
-				planes.add(bgrPlanes.get(2));
-				planes.add(zeroMat);
-				final Mat matR = new Mat();
-				Core.merge(planes, matR);
-				
-				// Compute DFT of input image
-				Core.dft(matR, matR, Core.DFT_SCALE);
-				
-				// Multiply DFT(input) x DFT(filter)
-				Core.mulSpectrums(matR, wienerFilter, matR, 0);
-				
-				// Compute inverse DFT to get final image
-				Core.idft(matR, matR);
-				
-				// Extract only the real part
-				Core.split(matR, planesR);
-				
-				// Merge back into RGB image
-				bgrPlanes.set(2, planesR.get(0));
+		// Deconvolve each color channel in parallel
+		ParallelExecutor.forEach(bgrPlanes.size(), new ParallelExecutor.RangeTask() {
+			public void run(final int start, final int end) {
+				for (int channel = start; channel < end; channel++) {
+					// Compute the DFT of the input image.  The input is real, so OpenCV only computes half the
+					// spectrum, and packs it into a real matrix of the same size (CCS).
+					final Mat spectrum = new Mat();
+					Core.dft(bgrPlanes.get(channel), spectrum, Core.DFT_SCALE);
+					
+					// Multiply DFT(input) x DFT(filter)
+					Core.mulSpectrums(spectrum, wienerFilter, spectrum, 0);
+					
+					// Compute inverse DFT to get final image, which is real
+					final Mat outPlane = new Mat();
+					Core.idft(spectrum, outPlane, Core.DFT_REAL_OUTPUT);
+					
+					bgrPlanes.set(channel, outPlane);
+				}
 			}
 		});
 		
-		// Run each of the threads in parallel
-		for (int i = 0; i < threads.length; i++) {
-			threads[i].start();
-		}
-		
-		// Wait for each of the threads to finish
-		try {
-			for (int i = 0; i < threads.length; i++) {
-				threads[i].join();
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		
 		// Merge back into BGR image
 		Core.merge(bgrPlanes, inputImg);
 		
@@ -303,6 +457,43 @@ public class WienerFilter {
 		return psr;
 	}
 	
+	// Compute the Wiener filter for the Java DFT, the same way as calcPSF() and calcWnrFilter().
+	// The disk is drawn centered on pixel (0, 0), wrapping around the edges, which is what fftshift() does.
+	// The filter is real, and has one value for each frequency of the half spectrum.
+	private static float[] calcJavaWnrFilter(final RealFFT2D fft, final int blurRadius, final double nsr) {
+		final int rows = fft.rows;
+		final int cols = fft.cols;
+		
+		// Draw a solid disk, and normalize it to a total of 1
+		final float[] psf = new float[rows * cols];
+		final int diskRadius = blurRadius + 1;
+		for (int dy = -diskRadius; dy <= diskRadius; dy++) {
+			for (int dx = -diskRadius; dx <= diskRadius; dx++) {
+				if (dx * dx + dy * dy <= diskRadius * diskRadius) {
+					psf[Math.floorMod(dy, rows) * cols + Math.floorMod(dx, cols)] = 1;
+				}
+			}
+		}
+		double total = 0;
+		for (int i = 0; i < psf.length; i++) {
+			total += psf[i];
+		}
+		for (int i = 0; i < psf.length; i++) {
+			psf[i] /= total;
+		}
+		
+		final float[] spectrum = new float[fft.getSpectrumLength()];
+		fft.forward(psf, cols, spectrum);
+		
+		// G = Re(H) / (Re(H)^2 + nsr), as in calcWnrFilter()
+		final float[] filter = new float[spectrum.length / 2];
+		for (int i = 0; i < filter.length; i++) {
+			final double re = spectrum[i * 2];
+			filter[i] = (float)(re / (re * re + nsr));
+		}
+		return filter;
+	}
+	
 	private static Mat fftshift(final Mat inputImg) {
 		Mat outputImg = inputImg.clone();
 		int cx = outputImg.cols() / 2;
@@ -325,37 +516,39 @@ public class WienerFilter {
 	// Compute the Wiener filter, assuming S(f) = 1.  That is, the power spectral density is constant.
 	// 'inputPSR' is the point-spread-function of the same size as the image to be deblurred.
 	// 'nsr' is the noise-to-signal ratio
+	// The filter is returned in the packed CCS format of a real DFT, so it can be multiplied with the
+	// spectrum of a real image by mulSpectrums().
 	private static Mat calcWnrFilter(final Mat inputPSF, double nsr) {
 		Mat h_PSF_shifted = fftshift(inputPSF);
 		
-		ArrayList<Mat> planes = new ArrayList<Mat>(2);
-		planes.add(h_PSF_shifted);
-		planes.add(Mat.zeros(inputPSF.size(), CvType.CV_32F));
-		
-		Mat complexI = new Mat();
-		Core.merge(planes, complexI);
-		Core.dft(complexI, complexI);
-		Core.split(complexI, planes);
-		
-		// Compute absolute value of planes.get(0) squared
-		Mat zeroMat = Mat.zeros(inputPSF.size(), CvType.CV_32F);
-		Mat absMat = new Mat();
-		Core.absdiff(planes.get(0), zeroMat, absMat);
-		Mat denom = new Mat();
-		Core.pow(absMat, 2, denom);
-		
-		Mat denomAdded = new Mat();
-		Core.add(denom, new Scalar(nsr), denomAdded);
-		
-		Mat output_G = new Mat();
-		Core.divide(planes.get(0), denomAdded, output_G);
-		
-		// Add an all-zero complex component to output_G
-		final ArrayList<Mat> complexOutputPlanes = new ArrayList<Mat>(2);
-		complexOutputPlanes.add(output_G);
-		complexOutputPlanes.add(Mat.zeros(inputPSF.size(), CvType.CV_32F));
-		Core.merge(complexOutputPlanes, output_G);
+		// Compute the real DFT of the PSF
+		final Mat spectrum = new Mat();
+		Core.dft(h_PSF_shifted, spectrum);
+		
+		final int rows = spectrum.rows();
+		final int cols = spectrum.cols();
+		final float[] values = new float[rows * cols];
+		spectrum.get(0, 0, values);
+		
+		// G = Re(H) / (Re(H)^2 + nsr), which is real, so its imaginary parts are 0.
+		// In CCS, the first column (and the last one, if the width is even) holds the real and imaginary parts
+		// of the frequencies in alternate rows.  The other columns do the same in alternate columns.
+		for (int y = 0; y < rows; y++) {
+			for (int x = 0; x < cols; x++) {
+				final boolean isRealColumn = x == 0 || (x == cols - 1 && cols % 2 == 0);
+				final boolean isImaginary = isRealColumn ? (y > 0 && y % 2 == 0) : (x % 2 == 0);
+				final int i = y * cols + x;
+				if (isImaginary) {
+					values[i] = 0;
+				} else {
+					final double re = values[i];
+					values[i] = (float)(re / (re * re + nsr));
+				}
+			}
+		}
 		
+		final Mat output_G = new Mat(rows, cols, CvType.CV_32F);
+		output_G.put(0, 0, values);
 		return output_G;
 	}
 }
@@ -623,6 +623,20 @@ public class GPUProgram {
 		return new GPUMem(mem, arrayPointer, type, new GPURange(0, numElements), accessType);
 	}
 	
+	/** Reserve blank memory for floats on the GPU, without a Java array behind it.
+	 * This is for buffers that are only used between kernels, so it cannot be copied to or from the CPU,
+	 * and kernels that use it must not be run with executeKernel() or copyFromGPU().
+	 * @param numElements The number of floats to allocate.
+	 * @param accessType GPUProgram.WRITE, GPUProgram.READ, or GPUProgram.READ_WRITE
+	 * @return GPUMem pointer to the new memory allocated on the GPU.
+	 */
+	public static GPUMem allocateFloatMemoryOnGPU(int numElements, long accessType) {
+		cl_mem mem = CL.clCreateBuffer(context, accessType, (long)numElements * Sizeof.cl_float, null, null);
+		allocCounter++;
+		
+		return new GPUMem(mem, null, ArrayType.FLOAT, new GPURange(0, numElements), accessType);
+	}
+	
 	/** Copy an array to the GPU and return a GPU pointer.
 	 * If existingMem is specified, then it will copy over that GPU memory.
 	 * @param arr The array to copy to the GPU.